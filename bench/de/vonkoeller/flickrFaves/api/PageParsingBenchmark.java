@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.api;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+
+import com.flickr4java.flickr.RESTResponse;
+import com.flickr4java.flickr.photos.PhotoUtils;
+
+import de.vonkoeller.flickrFaves.bench.Benchmark;
+import de.vonkoeller.flickrFaves.bench.Fixtures;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Turns one page of flickr.favorites.getList into photos the way
+ *         CompressedREST and Favorites do: DOM parsing, response parsing and
+ *         photo list creation.
+ */
+public class PageParsingBenchmark extends Benchmark {
+
+	/** The page size flickrFaves requests. */
+	private static final int PER_PAGE = 500;
+
+	private byte[] page;
+
+	PageParsingBenchmark() {
+		super("page/" + PER_PAGE);
+	}
+
+	public static List<Benchmark> variants() {
+		return Collections.<Benchmark> singletonList(new PageParsingBenchmark());
+	}
+
+	@Override
+	public void setUp() {
+		page = Fixtures.favoritesPage(1, PER_PAGE, PER_PAGE * 10).getBytes(
+				StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public Object run() throws Exception {
+		Document document = DocumentBuilderFactory.newInstance()
+				.newDocumentBuilder().parse(new ByteArrayInputStream(page));
+		RESTResponse response = new RESTResponse();
+		response.parse(document);
+		return PhotoUtils.createPhotoList(response.getPayload());
+	}
+
+	@Override
+	public long getBytesPerRun() {
+		return page.length;
+	}
+}
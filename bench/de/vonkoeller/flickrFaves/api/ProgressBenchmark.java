@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.api;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.JLabel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
+
+import de.vonkoeller.flickrFaves.bench.Benchmark;
+import de.vonkoeller.flickrFaves.download.DownloadTask;
+import de.vonkoeller.flickrFaves.gui.TransferMonitor;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Reports progress to the Swing progress view. "progress/swing"
+ *         reports a single transfer as the classic engine does, once per
+ *         512 byte block; "progress/frame" advances 500 concurrent
+ *         transfers by a block each and then updates the transfer table
+ *         once, as the monitor's timer does. Each run waits until the event
+ *         dispatch thread has caught up, so the updates are measured
+ *         including their processing.
+ */
+public class ProgressBenchmark extends Benchmark {
+
+	/** Progress updates per run. */
+	private static final int UPDATES = 1000;
+
+	/** The transfers under way for "progress/frame". */
+	private static final int TRANSFERS = 500;
+
+	/** Whether to update many transfers and the table instead of one. */
+	private final boolean frames;
+
+	private DownloadTask[] tasks;
+
+	private TransferMonitor monitor;
+
+	private Favorites.SwingProgress progress;
+
+	private long bytes = 0;
+
+	ProgressBenchmark(String name, boolean frames) {
+		super(name);
+		this.frames = frames;
+	}
+
+	public static List<Benchmark> variants() {
+		return Arrays.<Benchmark> asList(new ProgressBenchmark(
+				"progress/swing", false), new ProgressBenchmark(
+				"progress/frame", true));
+	}
+
+	@Override
+	public void setUp() {
+		monitor = new TransferMonitor();
+		progress = new Favorites.SwingProgress(1, 0, new JProgressBar(),
+				monitor, new JLabel());
+		tasks = new DownloadTask[frames ? TRANSFERS : 1];
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i] = new DownloadTask(null, null, (10000000 + i) + ".jpg",
+					i + 1);
+			progress.statusChanged(tasks[i], "Downloading...");
+			progress.transferStarted(tasks[i], Integer.MAX_VALUE);
+		}
+	}
+
+	@Override
+	public Object run() throws Exception {
+		bytes += 512;
+		if (frames)
+			for (DownloadTask task : tasks)
+				progress.bytesTransferred(task, bytes);
+		else
+			for (int i = 0; i < UPDATES; i++)
+				progress.bytesTransferred(tasks[0], bytes += 512);
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				// wait for the updates queued before
+				if (frames)
+					monitor.refresh();
+			}
+		});
+		return bytes;
+	}
+
+	@Override
+	public int getOperationsPerRun() {
+		return frames ? TRANSFERS : UPDATES;
+	}
+}
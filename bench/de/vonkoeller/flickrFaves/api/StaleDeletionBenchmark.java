@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.api;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import de.vonkoeller.flickrFaves.bench.Benchmark;
+import de.vonkoeller.flickrFaves.bench.Fixtures;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Reconciles a download directory with the list of faves: filters the
+ *         directory listing for fave files and finds those that are no
+ *         longer faves. One percent of the files are stale. The files are
+ *         never touched, so this measures the lookups only.
+ */
+public class StaleDeletionBenchmark extends Benchmark {
+
+	private final int count;
+
+	private String[] listing;
+
+	private Set<String> faveIds;
+
+	StaleDeletionBenchmark(int count) {
+		super("stale/" + count);
+		this.count = count;
+	}
+
+	public static List<Benchmark> variants() {
+		List<Benchmark> variants = new ArrayList<Benchmark>();
+		for (int count : new int[] { 10000, 100000, 1000000 })
+			variants.add(new StaleDeletionBenchmark(count));
+		return variants;
+	}
+
+	@Override
+	public void setUp() {
+		String[] ids = Fixtures.faveIds(count + count / 100);
+		faveIds = new HashSet<String>(count * 2);
+		// the newest faves are not downloaded yet, the oldest are stale
+		for (int i = count / 100; i < ids.length; i++)
+			faveIds.add(ids[i]);
+		listing = new String[count + 2];
+		for (int i = 0; i < count; i++)
+			listing[i] = ids[i] + (i % 50 == 0 ? ".mp4" : ".jpg");
+		listing[count] = ".flickrFaves-checksums";
+		listing[count + 1] = "." + ids[0] + ".jpg.exclude";
+	}
+
+	@Override
+	public Object run() {
+		File dir = new File("faves");
+		List<File> downloaded = new ArrayList<File>(listing.length);
+		for (String name : listing)
+			if (Favorites.isFaveFile(name))
+				downloaded.add(new File(dir, name));
+		return Favorites.findStaleFaves(
+				downloaded.toArray(new File[downloaded.size()]), faveIds)
+				.size();
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.bench;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         A single benchmark. The runner calls setUp once, then run as often
+ *         as fits into each warmup and measurement iteration, and finally
+ *         tearDown.
+ */
+public abstract class Benchmark {
+
+	private final String name;
+
+	/**
+	 * @param name
+	 *            The name, including parameters, e.g. "copy/classic/8MB".
+	 */
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Prepares fixtures; not measured.
+	 */
+	public void setUp() throws Exception {
+		// nothing by default
+	}
+
+	/**
+	 * Runs the measured code once.
+	 *
+	 * @return A result that the runner keeps alive so that the JIT cannot
+	 *         remove the work.
+	 */
+	public abstract Object run() throws Exception;
+
+	/**
+	 * Removes fixtures; not measured.
+	 */
+	public void tearDown() throws Exception {
+		// nothing by default
+	}
+
+	/**
+	 * @return The number of operations one call of run performs.
+	 */
+	public int getOperationsPerRun() {
+		return 1;
+	}
+
+	/**
+	 * @return The number of bytes one call of run processes, or 0 if
+	 *         throughput in bytes is meaningless.
+	 */
+	public long getBytesPerRun() {
+		return 0;
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.vonkoeller.flickrFaves.api.PageParsingBenchmark;
+import de.vonkoeller.flickrFaves.api.ProgressBenchmark;
+import de.vonkoeller.flickrFaves.api.StaleDeletionBenchmark;
+import de.vonkoeller.flickrFaves.download.CopyLoopBenchmark;
+import de.vonkoeller.flickrFaves.download.ImageProbeBenchmark;
+import de.vonkoeller.flickrFaves.rendition.RenditionBenchmark;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Runs the benchmarks of the hot paths offline. Every benchmark is
+ *         warmed up and then measured in several timed iterations; the mean
+ *         time per operation and its standard deviation across iterations
+ *         are printed.
+ *
+ *         Arguments select benchmarks whose name contains one of them. The
+ *         system properties "bench.warmup" and "bench.iterations" set the
+ *         number of iterations (default 3 and 5), "bench.millis" their
+ *         length (default 1000).
+ */
+public final class BenchmarkRunner {
+
+	/** Keeps results alive; volatile so that the store cannot be dropped. */
+	private static volatile Object sink;
+
+	/**
+	 * Utility class -- cannot be instantiated.
+	 */
+	private BenchmarkRunner() {
+		// empty on purpose
+	}
+
+	/**
+	 * @return All benchmarks.
+	 */
+	static List<Benchmark> all() {
+		List<Benchmark> all = new ArrayList<Benchmark>();
+		all.addAll(CopyLoopBenchmark.variants());
+		all.addAll(ImageProbeBenchmark.variants());
+		all.addAll(StaleDeletionBenchmark.variants());
+		all.addAll(PageParsingBenchmark.variants());
+		all.addAll(ProgressBenchmark.variants());
+		all.addAll(RenditionBenchmark.variants());
+		return all;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int warmup = Integer.getInteger("bench.warmup", 3);
+		int iterations = Integer.getInteger("bench.iterations", 5);
+		long millis = Long.getLong("bench.millis", 1000);
+
+		System.out.println(String.format("%-36s %14s %12s %14s %10s",
+				"benchmark", "ns/op", "+-", "ops/s", "MB/s"));
+		for (Benchmark b : all()) {
+			if (!selected(b.getName(), args))
+				continue;
+			b.setUp();
+			try {
+				for (int i = 0; i < warmup; i++)
+					iteration(b, millis);
+				double[] nanosPerOp = new double[iterations];
+				for (int i = 0; i < iterations; i++)
+					nanosPerOp[i] = iteration(b, millis);
+				report(b, nanosPerOp);
+			} finally {
+				b.tearDown();
+			}
+		}
+	}
+
+	private static boolean selected(String name, String[] filters) {
+		if (filters.length == 0)
+			return true;
+		for (String f : filters)
+			if (name.contains(f))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Calls run until the time is up, but at least once.
+	 *
+	 * @return The mean time per operation in nanoseconds.
+	 */
+	private static double iteration(Benchmark b, long millis)
+			throws Exception {
+		long runs = 0;
+		long start = System.nanoTime();
+		long end = start + millis * 1000000;
+		long now;
+		do {
+			sink = b.run();
+			runs++;
+			now = System.nanoTime();
+		} while (now < end);
+		return (double) (now - start) / (runs * b.getOperationsPerRun());
+	}
+
+	private static void report(Benchmark b, double[] nanosPerOp) {
+		double mean = 0;
+		for (double n : nanosPerOp)
+			mean += n;
+		mean /= nanosPerOp.length;
+		double variance = 0;
+		for (double n : nanosPerOp)
+			variance += (n - mean) * (n - mean);
+		double stddev = nanosPerOp.length > 1 ? Math.sqrt(variance
+				/ (nanosPerOp.length - 1)) : 0;
+		double bytesPerOp = (double) b.getBytesPerRun()
+				/ b.getOperationsPerRun();
+		String mbPerSecond = bytesPerOp > 0 ? String.format("%10.1f",
+				bytesPerOp / mean * 1e9 / (1024 * 1024)) : String.format(
+				"%10s", "-");
+		System.out.println(String.format("%-36s %14.1f %12.1f %14.1f %s",
+				b.getName(), mean, stddev, 1e9 / mean, mbPerSecond));
+	}
+}
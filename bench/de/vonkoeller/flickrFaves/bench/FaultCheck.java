@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.bench;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import javax.swing.JLabel;
+import javax.swing.JProgressBar;
+
+import de.vonkoeller.flickrFaves.api.AuthHolder;
+import de.vonkoeller.flickrFaves.api.Favorites;
+import de.vonkoeller.flickrFaves.config.Options;
+import de.vonkoeller.flickrFaves.download.Layout;
+import de.vonkoeller.flickrFaves.gui.TransferMonitor;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Syncs against a StandInFlickr without and then with injected faults
+ *         and checks that the faults only cost time: no corrupt file and no
+ *         part file may be left behind, and at most as many faves as faults
+ *         were expected may be missing after the first faulty sync, and its
+ *         throughput must stay at "faults.minThroughputRatio" (default 0.25)
+ *         of the clean sync's or above. A second faulty sync must fill in
+ *         the gaps. Exits with 1 if a check fails.
+ *
+ *         Faults are configured as described at Faults.fromProperties; by
+ *         default every kind has a probability of 2%. Stalls last 3 seconds
+ *         and the download timeout is 2 seconds unless set otherwise.
+ */
+public final class FaultCheck {
+
+	/**
+	 * Utility class -- cannot be instantiated.
+	 */
+	private FaultCheck() {
+		// empty on purpose
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (System.getProperty(Options.PREFIX + "downloadTimeout") == null)
+			System.setProperty(Options.PREFIX + "downloadTimeout", "2");
+		if (System.getProperty("faults.stallMillis") == null)
+			System.setProperty("faults.stallMillis", "3000");
+		if (System.getProperty("faults.all") == null)
+			System.setProperty("faults.all", "0.02");
+		int faves = Integer.getInteger("standIn.faves", 300);
+		byte[] image = Fixtures.jpeg(Integer.getInteger("standIn.width", 1024),
+				Integer.getInteger("standIn.height", 768));
+		Faults faults = Faults.fromProperties();
+		AuthHolder.setToken("standin-token");
+
+		StandInFlickr clean = new StandInFlickr(faves, image, 0, 0);
+		clean.start(0);
+		clean.configure();
+		File cleanDir = Fixtures.tempDir("clean");
+		double cleanSeconds;
+		try {
+			cleanSeconds = sync(cleanDir);
+		} finally {
+			clean.stop();
+			Fixtures.delete(cleanDir);
+		}
+		report("clean", faves, cleanSeconds, cleanSeconds, faves);
+
+		// the faulty stand-in gets the same port as the API host is only
+		// configured once
+		StandInFlickr faulty = new StandInFlickr(faves, image, 0, 0, faults);
+		faulty.start(Integer.parseInt(System.getProperty(Options.PREFIX
+				+ "apiPort")));
+		File dir = Fixtures.tempDir("faulty");
+		boolean passed;
+		try {
+			double seconds = sync(dir);
+			int downloaded = check(dir, image);
+			report("faulty", faves, seconds, cleanSeconds, downloaded);
+			int allowed = (int) Math.ceil(faves
+					* faults.getTotalProbability());
+			passed = downloaded >= 0 && faves - downloaded <= allowed;
+			if (faves - downloaded > allowed)
+				System.out.println("FAILED: " + (faves - downloaded)
+						+ " faves missing, at most " + allowed + " expected");
+			double minRatio = Double.parseDouble(System.getProperty(
+					"faults.minThroughputRatio", "0.25"));
+			if (cleanSeconds / seconds < minRatio) {
+				System.out.println(String.format("FAILED: throughput dropped "
+						+ "to %.0f%% of clean, at least %.0f%% expected",
+						100 * cleanSeconds / seconds, 100 * minRatio));
+				passed = false;
+			}
+
+			seconds = sync(dir);
+			int again = check(dir, image);
+			report("again", faves, seconds, cleanSeconds, again);
+			if (again >= 0 && again < Math.min(faves, downloaded + 1)
+					&& downloaded < faves) {
+				System.out.println("FAILED: the second sync did not fill in "
+						+ "any missing fave");
+				passed = false;
+			}
+			passed &= again >= 0;
+			System.out.println("injected: " + faults.getInjected());
+		} finally {
+			faulty.stop();
+			Fixtures.delete(dir);
+		}
+		System.out.println(passed ? "PASSED" : "FAILED");
+		System.exit(passed ? 0 : 1);
+	}
+
+	private static double sync(File dir) {
+		long start = System.nanoTime();
+		Favorites.downloadAllFaves(dir.getPath(), true, false, false, 0,
+				false, 0, true, null, new JProgressBar(), new TransferMonitor(),
+				new JLabel());
+		return (System.nanoTime() - start) / 1e9;
+	}
+
+	/**
+	 * Compares every downloaded fave with the served image.
+	 *
+	 * @return The number of downloaded faves or -1 if a corrupt or part file
+	 *         is left.
+	 */
+	private static int check(File dir, byte[] image) throws Exception {
+		int downloaded = 0;
+		boolean ok = true;
+		// faves may be kept in shard directories
+		for (File file : Layout.listFiles(dir, new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return true;
+			}
+		})) {
+			String name = file.getName();
+			if (name.endsWith(".part")) {
+				System.out.println("FAILED: part file " + name + " left");
+				ok = false;
+			} else if (name.matches("\\d+\\.jpg")) {
+				if (Arrays.equals(image, Files.readAllBytes(file.toPath()))) {
+					downloaded++;
+				} else {
+					System.out.println("FAILED: " + name + " is corrupt ("
+							+ file.length() + " of " + image.length
+							+ " bytes)");
+					ok = false;
+				}
+			}
+		}
+		return ok ? downloaded : -1;
+	}
+
+	private static void report(String name, int faves, double seconds,
+			double cleanSeconds, int downloaded) {
+		System.out.println(String.format(
+				"faults/%-6s %6d of %6d faves %8.2f s %8.1f faves/s "
+						+ "%6.0f%% of clean throughput", name, downloaded,
+				faves, seconds, faves / seconds, 100 * cleanSeconds
+						/ seconds));
+	}
+}
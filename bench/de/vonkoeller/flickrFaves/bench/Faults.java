@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.bench;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         The faults a StandInFlickr injects into image responses, each with
+ *         its own probability per request.
+ */
+public class Faults {
+
+	/**
+	 * The faults seen in production.
+	 */
+	public enum Kind {
+		/** The body stops for a while halfway. */
+		STALL,
+		/** "504 Gateway Timeout" instead of the image. */
+		GATEWAY_TIMEOUT,
+		/** The connection is closed before the response. */
+		RESET,
+		/** The connection is closed halfway through the body. */
+		TRUNCATE,
+		/** Content-Length announces half the image, which is all sent. */
+		WRONG_LENGTH,
+		/** A redirect to the "photo unavailable" placeholder. */
+		PLACEHOLDER,
+		/** A new ETag, as if the fave had changed since the last request. */
+		CHANGED
+	}
+
+	/** No faults at all. */
+	public static final Faults NONE = new Faults(
+			new EnumMap<Kind, Double>(Kind.class), 0, 0);
+
+	private final Map<Kind, Double> probabilities;
+
+	/** How long a stall lasts, in milliseconds. */
+	private final long stallMillis;
+
+	private final Random random;
+
+	/** How often each kind has been injected. */
+	private final AtomicLongArray injected = new AtomicLongArray(
+			Kind.values().length);
+
+	/**
+	 * @param probabilities
+	 *            The probability of each kind of fault per request; kinds
+	 *            that are missing are never injected.
+	 * @param stallMillis
+	 *            How long a stall lasts, in milliseconds.
+	 * @param seed
+	 *            The seed of the random decisions.
+	 */
+	public Faults(Map<Kind, Double> probabilities, long stallMillis, long seed) {
+		this.probabilities = new EnumMap<Kind, Double>(probabilities);
+		this.stallMillis = stallMillis;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Reads the probabilities from the system properties "faults.stall",
+	 * "faults.gatewayTimeout", "faults.reset", "faults.truncate",
+	 * "faults.wrongLength", "faults.placeholder" and "faults.changed", all 0
+	 * by default, or the value of "faults.all" if set. "faults.stallMillis"
+	 * (default 30000) is the length of a stall, "faults.seed" (default 1)
+	 * the seed.
+	 */
+	public static Faults fromProperties() {
+		String all = System.getProperty("faults.all");
+		Map<Kind, Double> probabilities = new EnumMap<Kind, Double>(
+				Kind.class);
+		for (Kind kind : Kind.values()) {
+			String value = System.getProperty("faults." + propertyName(kind),
+					all);
+			if (value != null)
+				probabilities.put(kind, Double.valueOf(value));
+		}
+		return new Faults(probabilities, Long.getLong("faults.stallMillis",
+				30000), Long.getLong("faults.seed", 1));
+	}
+
+	/**
+	 * @return The name of a kind in properties, e.g. "gatewayTimeout".
+	 */
+	static String propertyName(Kind kind) {
+		String[] words = kind.name().toLowerCase().split("_");
+		StringBuilder name = new StringBuilder(words[0]);
+		for (int i = 1; i < words.length; i++)
+			name.append(Character.toUpperCase(words[i].charAt(0))).append(
+					words[i].substring(1));
+		return name.toString();
+	}
+
+	/**
+	 * Decides which fault to inject into the next response, if any.
+	 *
+	 * @return The fault or null.
+	 */
+	public Kind next() {
+		double draw;
+		synchronized (random) {
+			draw = random.nextDouble();
+		}
+		for (Map.Entry<Kind, Double> e : probabilities.entrySet()) {
+			draw -= e.getValue();
+			if (draw < 0) {
+				injected.incrementAndGet(e.getKey().ordinal());
+				return e.getKey();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The sum of all probabilities.
+	 */
+	public double getTotalProbability() {
+		double total = 0;
+		for (double p : probabilities.values())
+			total += p;
+		return total;
+	}
+
+	public long getStallMillis() {
+		return stallMillis;
+	}
+
+	/**
+	 * @return How often each kind has been injected, e.g. "stall=3 reset=1".
+	 */
+	public String getInjected() {
+		StringBuilder summary = new StringBuilder();
+		for (Kind kind : Kind.values()) {
+			long count = injected.get(kind.ordinal());
+			if (count > 0)
+				summary.append(summary.length() > 0 ? " " : "")
+						.append(propertyName(kind)).append('=').append(count);
+		}
+		return summary.length() > 0 ? summary.toString() : "none";
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Generates the inputs of the benchmarks. Everything is synthetic and
+ *         seeded, so that runs are comparable without network access or real
+ *         faves.
+ */
+public final class Fixtures {
+
+	/** The id of the first generated fave; ids have more than seven digits. */
+	public static final long FIRST_ID = 10000000L;
+
+	/**
+	 * Utility class -- cannot be instantiated.
+	 */
+	private Fixtures() {
+		// empty on purpose
+	}
+
+	/**
+	 * @return A JPEG of the given dimensions with a gradient and some noise,
+	 *         so that it compresses about as well as a photo.
+	 */
+	public static byte[] jpeg(int width, int height) throws IOException {
+		BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(width * 31 + height);
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++) {
+				int r = (x * 255 / width + random.nextInt(32)) & 0xff;
+				int g = (y * 255 / height + random.nextInt(32)) & 0xff;
+				int b = ((x + y) & 0xff) ^ random.nextInt(16);
+				image.setRGB(x, y, (r << 16) | (g << 8) | b);
+			}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "jpg", out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return size pseudo-random bytes.
+	 */
+	public static byte[] bytes(int size) {
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * @return The ids of count faves, as the Flickr API returns them.
+	 */
+	public static String[] faveIds(int count) {
+		String[] ids = new String[count];
+		for (int i = 0; i < count; i++)
+			ids[i] = Long.toString(FIRST_ID + i);
+		return ids;
+	}
+
+	/**
+	 * @return The response to flickr.favorites.getList for one page, with the
+	 *         extras flickrFaves requests.
+	 */
+	public static String favoritesPage(int page, int perPage, int total) {
+		return favoritesPage(page, perPage, total,
+				"https://live.staticflickr.com/65535/");
+	}
+
+	/**
+	 * @param imageBase
+	 *            The URL all image URLs start with, up to the file name.
+	 * @return The response to flickr.favorites.getList for one page, with
+	 *         image URLs pointing at imageBase.
+	 */
+	public static String favoritesPage(int page, int perPage, int total,
+			String imageBase) {
+		StringBuilder xml = new StringBuilder(perPage * 600);
+		int pages = (total + perPage - 1) / perPage;
+		xml.append("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n");
+		xml.append("<rsp stat=\"ok\">\n<photos page=\"").append(page)
+				.append("\" pages=\"").append(pages)
+				.append("\" perpage=\"").append(perPage)
+				.append("\" total=\"").append(total).append("\">\n");
+		Random random = new Random(page);
+		int first = (page - 1) * perPage;
+		for (int i = first; i < Math.min(total, first + perPage); i++) {
+			long id = FIRST_ID + i;
+			String secret = Long.toHexString(random.nextLong()).substring(0, 8);
+			String base = imageBase + id + "_";
+			int width = 3000 + random.nextInt(3000);
+			int height = 2000 + random.nextInt(2000);
+			xml.append("\t<photo id=\"").append(id)
+					.append("\" owner=\"12345678@N0").append(i % 10)
+					.append("\" secret=\"").append(secret)
+					.append("\" server=\"65535\" farm=\"66\" title=\"Fave ")
+					.append(i).append("\" ispublic=\"1\" isfriend=\"0\"")
+					.append(" isfamily=\"0\" date_faved=\"1300000000\"")
+					.append(" dateupload=\"")
+					.append(1200000000 + random.nextInt(100000000))
+					.append("\"")
+					.append(" license=\"").append(i % 11)
+					.append("\" ownername=\"Owner ").append(i % 10)
+					.append("\" tags=\"fave").append(i % 7)
+					.append(" stand-in\"")
+					.append(" media=\"photo\" media_status=\"ready\"")
+					.append(" originalsecret=\"").append(secret)
+					.append("\" originalformat=\"jpg\" url_o=\"")
+					.append(base).append(secret).append("_o.jpg\" height_o=\"")
+					.append(height).append("\" width_o=\"").append(width)
+					.append("\" url_k=\"").append(base).append(secret)
+					.append("_k.jpg\" height_k=\"1365\" width_k=\"2048\"")
+					.append(" url_h=\"").append(base).append(secret)
+					.append("_h.jpg\" height_h=\"1067\" width_h=\"1600\"")
+					.append(" url_l=\"").append(base).append(secret)
+					.append("_b.jpg\" height_l=\"683\" width_l=\"1024\" />\n");
+		}
+		xml.append("</photos>\n</rsp>\n");
+		return xml.toString();
+	}
+
+	/**
+	 * @return A new, empty temporary directory.
+	 */
+	public static File tempDir(String prefix) throws IOException {
+		return Files.createTempDirectory("flickrFaves-" + prefix).toFile();
+	}
+
+	/**
+	 * Deletes a directory created by tempDir and everything in it.
+	 */
+	public static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files)
+				delete(f);
+		dir.delete();
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.swing.JLabel;
+import javax.swing.JProgressBar;
+
+import de.vonkoeller.flickrFaves.api.AuthHolder;
+import de.vonkoeller.flickrFaves.api.Favorites;
+import de.vonkoeller.flickrFaves.config.Options;
+import de.vonkoeller.flickrFaves.gui.TransferMonitor;
+import de.vonkoeller.flickrFaves.metrics.RunReport;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Measures how the phases before the downloads scale with the size of
+ *         the account. For every size, the download directory is populated
+ *         with empty placeholder files for 95% of the faves, exclusion files
+ *         for the other 5% and 1% stale faves, and a complete sync against a
+ *         StandInFlickr then lists, deletes stale faves and plans without
+ *         transferring a single image.
+ *
+ *         Prints the wall time of each phase, taken from the run report, and
+ *         the heap high-water mark, or where the heap ran out. The sizes are
+ *         set with the system property "scale.sizes" (default
+ *         "10000,100000,1000000").
+ */
+public final class ScaleBenchmark {
+
+	/** Matches a phase in the run report, e.g. "listing": 1234. */
+	private static final Pattern PHASE = Pattern
+			.compile("\"(\\w+)\": (\\d+)");
+
+	/**
+	 * Utility class -- cannot be instantiated.
+	 */
+	private ScaleBenchmark() {
+		// empty on purpose
+	}
+
+	public static void main(String[] args) throws Exception {
+		String[] sizes = System.getProperty("scale.sizes",
+				"10000,100000,1000000").split(",");
+		byte[] image = Fixtures.jpeg(16, 16);
+		AuthHolder.setToken("standin-token");
+
+		System.out.println(String.format("%9s %10s %10s %10s %10s %10s %10s",
+				"faves", "total ms", "listing", "stale", "planning",
+				"download", "heap MB"));
+		int port = 0;
+		for (String size : sizes) {
+			int faves = Integer.parseInt(size.trim());
+			File dir = Fixtures.tempDir("scale");
+			StandInFlickr standIn = new StandInFlickr(faves, image, 0, 0);
+			try {
+				populate(dir, faves);
+				standIn.start(port);
+				if (port == 0) {
+					// the API host is only configured once per JVM
+					standIn.configure();
+					port = standIn.getPort();
+				}
+				run(dir, faves);
+			} finally {
+				standIn.stop();
+				Fixtures.delete(dir);
+			}
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Creates placeholders, exclusion files and stale faves.
+	 */
+	private static void populate(File dir, int faves) throws IOException {
+		for (int i = 0; i < faves; i++) {
+			String name = (Fixtures.FIRST_ID + i) + ".jpg";
+			if (i % 20 == 19)
+				new File(dir, "." + name + ".exclude").createNewFile();
+			else
+				new File(dir, name).createNewFile();
+		}
+		for (int i = 0; i < faves / 100; i++)
+			new File(dir, (Fixtures.FIRST_ID - 1 - i) + ".jpg")
+					.createNewFile();
+	}
+
+	private static void run(File dir, int faves) throws IOException {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			pool.resetPeakUsage();
+		long start = System.nanoTime();
+		try {
+			Favorites.downloadAllFaves(dir.getPath(), true, false, false, 0,
+					false, 0, true, null, new JProgressBar(),
+					new TransferMonitor(), new JLabel());
+		} catch (OutOfMemoryError e) {
+			// that is where the tool breaks
+			System.gc();
+			System.out.println(String.format("%9d out of memory after %d ms "
+					+ "with a maximum heap of %d MB", faves,
+					(System.nanoTime() - start) / 1000000, Runtime
+							.getRuntime().maxMemory() / (1024 * 1024)));
+			return;
+		}
+		long total = (System.nanoTime() - start) / 1000000;
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		Map<String, Long> phases = readPhases(dir);
+		System.out.println(String.format(
+				"%9d %10d %10d %10d %10d %10d %10d", faves, total,
+				phases.get("listing"), phases.get("staleDeletion"),
+				phases.get("planning"), phases.get("download"),
+				peak / (1024 * 1024)));
+	}
+
+	/**
+	 * @return The wall time of each phase in the newest run report.
+	 */
+	private static Map<String, Long> readPhases(File dir) throws IOException {
+		File[] reports = new File(dir, RunReport.DIRNAME).listFiles();
+		File newest = null;
+		for (File report : reports)
+			if (newest == null
+					|| report.getName().compareTo(newest.getName()) > 0)
+				newest = report;
+		Map<String, Long> phases = new LinkedHashMap<String, Long>();
+		BufferedReader in = new BufferedReader(new FileReader(newest));
+		try {
+			boolean inPhases = false;
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.contains("\"phasesMs\""))
+					inPhases = true;
+				else if (inPhases && line.contains("}"))
+					break;
+				else if (inPhases) {
+					Matcher m = PHASE.matcher(line);
+					if (m.find())
+						phases.put(m.group(1), Long.valueOf(m.group(2)));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return phases;
+	}
+}
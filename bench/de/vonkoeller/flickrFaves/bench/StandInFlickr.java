@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.vonkoeller.flickrFaves.concurrent.Threads;
+import de.vonkoeller.flickrFaves.config.Options;
+import de.vonkoeller.flickrFaves.gui.Constants;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         A local stand-in for Flickr to measure complete syncs without
+ *         network access. It answers flickr.favorites.getList for an account
+ *         of a given size, the OAuth calls (authorization is granted right
+ *         away) and serves one generated JPEG for all faves, with a given
+ *         latency per request and bandwidth per connection. Faults can be
+ *         injected into the image responses.
+ *
+ *         Point FlickrFaves at it with the options printed on start, i.e.
+ *         "apiHost", "apiPort" and "apiScheme".
+ */
+public class StandInFlickr {
+
+	/** The user all faves belong to. */
+	private static final String NSID = "12345678@N00";
+
+	/** Images are sent in chunks of this size to pace the bandwidth. */
+	private static final int CHUNK_SIZE = 8 * 1024;
+
+	/** A 1x1 PNG standing in for Flickr's "photo unavailable" image. */
+	private static final byte[] PLACEHOLDER = Base64.getDecoder().decode(
+			"iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAYAAAAfFcSJAAAADUlEQVR4nGP4"
+					+ "z8DwHwAFAAH/iZk9HQAAAABJRU5ErkJggg==");
+
+	/** The number of faves of the account. */
+	private final int faves;
+
+	/** The image served for every fave. */
+	private final byte[] image;
+
+	/** Delay before every response, in milliseconds. */
+	private final long latencyMillis;
+
+	/** Bytes per second per connection; 0 for unlimited. */
+	private final long bytesPerSecond;
+
+	/** The faults injected into image responses. */
+	private final Faults faults;
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	/**
+	 * @param faves
+	 *            The number of faves of the account.
+	 * @param image
+	 *            The image served for every fave.
+	 * @param latencyMillis
+	 *            Delay before every response, in milliseconds.
+	 * @param bytesPerSecond
+	 *            Bandwidth per connection; 0 for unlimited.
+	 */
+	public StandInFlickr(int faves, byte[] image, long latencyMillis,
+			long bytesPerSecond) {
+		this(faves, image, latencyMillis, bytesPerSecond, Faults.NONE);
+	}
+
+	/**
+	 * @param faves
+	 *            The number of faves of the account.
+	 * @param image
+	 *            The image served for every fave.
+	 * @param latencyMillis
+	 *            Delay before every response, in milliseconds.
+	 * @param bytesPerSecond
+	 *            Bandwidth per connection; 0 for unlimited.
+	 * @param faults
+	 *            The faults to inject into image responses.
+	 */
+	public StandInFlickr(int faves, byte[] image, long latencyMillis,
+			long bytesPerSecond, Faults faults) {
+		this.faves = faves;
+		this.image = image;
+		this.latencyMillis = latencyMillis;
+		this.bytesPerSecond = bytesPerSecond;
+		this.faults = faults;
+	}
+
+	/**
+	 * Starts serving.
+	 *
+	 * @param port
+	 *            The port to listen on; 0 for any free port.
+	 */
+	public void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", port),
+				0);
+		server.createContext("/services/rest/", new RestHandler());
+		server.createContext("/services/oauth/", new OAuthHandler());
+		server.createContext("/photos/", new ImageHandler());
+		server.createContext("/placeholder/", new PlaceholderHandler());
+		executor = Threads.newExecutor();
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * @return The port the stand-in listens on.
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Points FlickrFaves in this JVM at the stand-in. Must be called before
+	 * the Flickr interface is first used.
+	 */
+	public void configure() {
+		System.setProperty(Options.PREFIX + "apiHost", "localhost");
+		System.setProperty(Options.PREFIX + "apiPort", "" + getPort());
+		System.setProperty(Options.PREFIX + "apiScheme", "http");
+	}
+
+	/**
+	 * Waits for the configured latency.
+	 */
+	private void delay() {
+		sleep(latencyMillis);
+	}
+
+	/**
+	 * Sends a complete response.
+	 */
+	private void respond(HttpExchange exchange, int status,
+			String contentType, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		String accept = exchange.getRequestHeaders().getFirst(
+				"Accept-Encoding");
+		if (accept != null && accept.contains("gzip")) {
+			ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+			GZIPOutputStream out = new GZIPOutputStream(gzipped);
+			out.write(bytes);
+			out.close();
+			bytes = gzipped.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	/**
+	 * @return The decoded parameters of the query string and, for POST
+	 *         requests, the form body.
+	 */
+	private static Map<String, String> parameters(HttpExchange exchange)
+			throws IOException {
+		Map<String, String> parameters = new HashMap<String, String>();
+		parse(exchange.getRequestURI().getRawQuery(), parameters);
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int n;
+		while ((n = exchange.getRequestBody().read(buf)) != -1)
+			body.write(buf, 0, n);
+		parse(new String(body.toByteArray(), StandardCharsets.UTF_8),
+				parameters);
+		return parameters;
+	}
+
+	private static void parse(String query, Map<String, String> parameters)
+			throws UnsupportedEncodingException {
+		if (query == null || query.isEmpty())
+			return;
+		for (String parameter : query.split("&")) {
+			int eq = parameter.indexOf('=');
+			if (eq < 0)
+				parameters.put(URLDecoder.decode(parameter, "UTF-8"), "");
+			else
+				parameters.put(URLDecoder.decode(parameter.substring(0, eq),
+						"UTF-8"), URLDecoder.decode(
+						parameter.substring(eq + 1), "UTF-8"));
+		}
+	}
+
+	private static int getInt(Map<String, String> parameters, String name,
+			int def) {
+		try {
+			return Integer.parseInt(parameters.get(name));
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	/**
+	 * The REST API: the favorites list and token checks.
+	 */
+	private class RestHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			Map<String, String> parameters = parameters(exchange);
+			delay();
+			String method = parameters.get("method");
+			String body;
+			if ("flickr.favorites.getList".equals(method)) {
+				body = Fixtures.favoritesPage(
+						getInt(parameters, "page", 1),
+						Math.min(500, getInt(parameters, "per_page", 100)),
+						faves, "http://localhost:" + getPort() + "/photos/");
+			} else if ("flickr.auth.oauth.checkToken".equals(method)) {
+				body = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n"
+						+ "<rsp stat=\"ok\">\n<oauth>\n<token>"
+						+ parameters.get("oauth_token")
+						+ "</token>\n<perms>read</perms>\n<user nsid=\""
+						+ NSID + "\" username=\"standin\""
+						+ " fullname=\"Stand-in\" />\n</oauth>\n</rsp>\n";
+			} else {
+				body = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n"
+						+ "<rsp stat=\"fail\">\n<err code=\"112\" msg=\""
+						+ "Method &quot;" + method
+						+ "&quot; not found\" />\n</rsp>\n";
+			}
+			respond(exchange, 200, "text/xml; charset=utf-8", body);
+		}
+	}
+
+	/**
+	 * The OAuth endpoints; every request is authorized immediately.
+	 */
+	private class OAuthHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			parameters(exchange);
+			delay();
+			String path = exchange.getRequestURI().getPath();
+			if (path.endsWith("/request_token")) {
+				respond(exchange, 200, "text/plain",
+						"oauth_callback_confirmed=true&oauth_token=standin-"
+								+ "request&oauth_token_secret=standin-secret");
+			} else if (path.endsWith("/authorize")) {
+				exchange.getResponseHeaders().set(
+						"Location",
+						Constants.OAUTH_CALLBACK_URL
+								+ "/?oauth_token=standin-request"
+								+ "&oauth_verifier=standin-verifier");
+				exchange.sendResponseHeaders(302, -1);
+				exchange.close();
+			} else if (path.endsWith("/access_token")) {
+				respond(exchange, 200, "text/plain",
+						"fullname=Stand-in&oauth_token=standin-token"
+								+ "&oauth_token_secret=standin-secret"
+								+ "&user_nsid=" + NSID
+								+ "&username=standin");
+			} else {
+				respond(exchange, 404, "text/plain", "Not found");
+			}
+		}
+	}
+
+	/**
+	 * The image hosts: the same image for every fave, paced to the
+	 * configured bandwidth, unless a fault is injected.
+	 */
+	private class ImageHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			parameters(exchange);
+			delay();
+			Faults.Kind fault = faults.next();
+			if (fault == Faults.Kind.RESET) {
+				// the server closes the connection if a handler fails
+				throw new IOException("Injected connection reset");
+			}
+			if (fault == Faults.Kind.GATEWAY_TIMEOUT) {
+				respond(exchange, 504, "text/html",
+						"<html><body>504 Gateway Timeout</body></html>");
+				return;
+			}
+			if (fault == Faults.Kind.PLACEHOLDER) {
+				exchange.getResponseHeaders().set(
+						"Location",
+						"http://localhost:" + getPort()
+								+ "/placeholder/photo_unavailable.png");
+				exchange.sendResponseHeaders(302, -1);
+				exchange.close();
+				return;
+			}
+			// a changed fave gets a new ETag, so If-Range no longer matches
+			String etag = fault == Faults.Kind.CHANGED ? "\"fave-"
+					+ System.nanoTime() + "\"" : "\"fave\"";
+			exchange.getResponseHeaders().set("ETag", etag);
+			// serve a byte range "bytes=first-last" if asked to and the
+			// client's copy is still current
+			int first = 0;
+			int last = image.length - 1;
+			int status = 200;
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+			if (range != null && range.startsWith("bytes=")
+					&& (ifRange == null || ifRange.equals(etag))) {
+				String[] bounds = range.substring(6).split("-", 2);
+				first = Integer.parseInt(bounds[0]);
+				if (bounds.length > 1 && bounds[1].length() > 0)
+					last = Math.min(last, Integer.parseInt(bounds[1]));
+				status = 206;
+				exchange.getResponseHeaders().set("Content-Range",
+						"bytes " + first + "-" + last + "/" + image.length);
+			}
+			int length = last + 1 - first;
+			if (fault == Faults.Kind.WRONG_LENGTH)
+				length /= 2;
+			exchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+			exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+			if ("HEAD".equals(exchange.getRequestMethod())) {
+				exchange.getResponseHeaders().set("Content-Length",
+						"" + length);
+				exchange.sendResponseHeaders(status, -1);
+				exchange.close();
+				return;
+			}
+			exchange.sendResponseHeaders(status, length);
+			OutputStream out = exchange.getResponseBody();
+			long start = System.nanoTime();
+			for (int sent = 0; sent < length; sent += CHUNK_SIZE) {
+				if (sent >= length / 2 && sent - CHUNK_SIZE < length / 2) {
+					if (fault == Faults.Kind.TRUNCATE) {
+						out.flush();
+						throw new IOException("Injected truncation");
+					}
+					if (fault == Faults.Kind.STALL) {
+						out.flush();
+						sleep(faults.getStallMillis());
+					}
+				}
+				int chunk = Math.min(CHUNK_SIZE, length - sent);
+				out.write(image, first + sent, chunk);
+				if (bytesPerSecond > 0)
+					pace(start, sent + chunk);
+			}
+			out.close();
+		}
+
+		/**
+		 * Sleeps until sending sent bytes has taken as long as the bandwidth
+		 * requires.
+		 */
+		private void pace(long start, long sent) {
+			long due = start + sent * TimeUnit.SECONDS.toNanos(1)
+					/ bytesPerSecond;
+			long wait = due - System.nanoTime();
+			if (wait > 0)
+				sleep(TimeUnit.NANOSECONDS.toMillis(wait));
+		}
+	}
+
+	/**
+	 * The "photo unavailable" placeholder Flickr redirects to.
+	 */
+	private class PlaceholderHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			parameters(exchange);
+			exchange.getResponseHeaders().set("Content-Type", "image/png");
+			exchange.sendResponseHeaders(200, PLACEHOLDER.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(PLACEHOLDER);
+			out.close();
+		}
+	}
+
+	private static void sleep(long millis) {
+		if (millis <= 0)
+			return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Runs the stand-in until the JVM is stopped. Configured via the system
+	 * properties "standIn.port" (default 8099), "standIn.faves" (default
+	 * 1000), "standIn.width" and "standIn.height" of the image (default 2048
+	 * by 1536), "standIn.latencyMillis" (default 0) and
+	 * "standIn.bytesPerSecond" (default 0, i.e. unlimited). Faults are
+	 * configured as described at Faults.fromProperties.
+	 */
+	public static void main(String[] args) throws Exception {
+		StandInFlickr standIn = new StandInFlickr(Integer.getInteger(
+				"standIn.faves", 1000), Fixtures.jpeg(
+				Integer.getInteger("standIn.width", 2048),
+				Integer.getInteger("standIn.height", 1536)), Long.getLong(
+				"standIn.latencyMillis", 0), Long.getLong(
+				"standIn.bytesPerSecond", 0), Faults.fromProperties());
+		standIn.start(Integer.getInteger("standIn.port", 8099));
+		System.out.println("Stand-in for Flickr listening; start FlickrFaves "
+				+ "with -D" + Options.PREFIX + "apiHost=localhost -D"
+				+ Options.PREFIX + "apiPort=" + standIn.getPort() + " -D"
+				+ Options.PREFIX + "apiScheme=http");
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.bench;
+
+import java.io.File;
+
+import javax.swing.JLabel;
+import javax.swing.JProgressBar;
+
+import de.vonkoeller.flickrFaves.api.AuthHolder;
+import de.vonkoeller.flickrFaves.api.Favorites;
+import de.vonkoeller.flickrFaves.gui.TransferMonitor;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Runs complete syncs against a StandInFlickr in the same JVM and
+ *         prints their wall time and throughput: a first sync into an empty
+ *         directory, then a second one that finds everything downloaded.
+ *
+ *         The stand-in is configured via the same "standIn.*" system
+ *         properties as StandInFlickr.main, except that it listens on a free
+ *         port. FlickrFaves options such as "flickrFaves.downloadEngine"
+ *         apply as usual.
+ */
+public final class SyncBenchmark {
+
+	/**
+	 * Utility class -- cannot be instantiated.
+	 */
+	private SyncBenchmark() {
+		// empty on purpose
+	}
+
+	public static void main(String[] args) throws Exception {
+		int faves = Integer.getInteger("standIn.faves", 1000);
+		byte[] image = Fixtures.jpeg(Integer.getInteger("standIn.width", 2048),
+				Integer.getInteger("standIn.height", 1536));
+		StandInFlickr standIn = new StandInFlickr(faves, image, Long.getLong(
+				"standIn.latencyMillis", 0), Long.getLong(
+				"standIn.bytesPerSecond", 0));
+		standIn.start(0);
+		standIn.configure();
+		AuthHolder.setToken("standin-token");
+
+		File dir = Fixtures.tempDir("sync");
+		try {
+			sync("first", dir, faves, (long) faves * image.length);
+			sync("again", dir, faves, 0);
+		} finally {
+			Fixtures.delete(dir);
+			standIn.stop();
+		}
+		System.exit(0);
+	}
+
+	private static void sync(String name, File dir, int faves, long bytes) {
+		long start = System.nanoTime();
+		Favorites.downloadAllFaves(dir.getPath(), true, false, false, 0,
+				false, 0, true, null, new JProgressBar(), new TransferMonitor(),
+				new JLabel());
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format(
+				"sync/%-6s %8d faves %10.2f s %10.1f faves/s %10.1f MB/s",
+				name, faves, seconds, faves / seconds, bytes / seconds
+						/ (1024 * 1024)));
+	}
+}
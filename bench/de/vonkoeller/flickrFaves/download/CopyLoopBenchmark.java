@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.download;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Flow.Subscription;
+
+import de.vonkoeller.flickrFaves.bench.Benchmark;
+import de.vonkoeller.flickrFaves.bench.Fixtures;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Copies a body into a file the way the classic engine does (512 byte
+ *         blocks through buffered streams) and the way the async engine does
+ *         (16 KB buffers into a file channel), checksums included.
+ */
+public class CopyLoopBenchmark extends Benchmark {
+
+	/** The buffer size HttpClient hands to body subscribers. */
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private static final DownloadListener NO_PROGRESS = new DownloadListener() {
+		public void statusChanged(DownloadTask task, String status) {
+		}
+
+		public void transferStarted(DownloadTask task, long size) {
+		}
+
+		public void bytesTransferred(DownloadTask task, long bytesCopied) {
+		}
+
+		public void taskFinished(DownloadTask task, Outcome outcome) {
+		}
+	};
+
+	private static final Subscription UNBOUNDED = new Subscription() {
+		public void request(long n) {
+		}
+
+		public void cancel() {
+		}
+	};
+
+	private final boolean channel;
+
+	private final int size;
+
+	private byte[] body;
+
+	private File dir;
+
+	private File file;
+
+	private DownloadTask task;
+
+	CopyLoopBenchmark(boolean channel, int size) {
+		super("copy/" + (channel ? "channel" : "classic") + "/"
+				+ (size / 1024) + "KB");
+		this.channel = channel;
+		this.size = size;
+	}
+
+	public static List<Benchmark> variants() {
+		List<Benchmark> variants = new ArrayList<Benchmark>();
+		for (int size : new int[] { 256 * 1024, 8 * 1024 * 1024 }) {
+			variants.add(new CopyLoopBenchmark(false, size));
+			variants.add(new CopyLoopBenchmark(true, size));
+		}
+		return variants;
+	}
+
+	@Override
+	public void setUp() throws Exception {
+		body = Fixtures.bytes(size);
+		dir = Fixtures.tempDir("copy");
+		file = new File(dir, Fixtures.FIRST_ID + ".jpg");
+		task = new DownloadTask(null, dir, file.getName(), 1);
+	}
+
+	@Override
+	public Object run() throws Exception {
+		if (channel) {
+			FileChannelSubscriber subscriber = new FileChannelSubscriber(file,
+					size, task, NO_PROGRESS);
+			subscriber.onSubscribe(UNBOUNDED);
+			for (int offset = 0; offset < size; offset += BUFFER_SIZE)
+				subscriber.onNext(Collections.singletonList(ByteBuffer.wrap(
+						body, offset, Math.min(BUFFER_SIZE, size - offset))));
+			subscriber.onComplete();
+			subscriber.getBody().toCompletableFuture().join();
+			return subscriber.getChecksum();
+		}
+		StreamingChecksum checksum = StreamingChecksum.create();
+		BufferedInputStream inS = new BufferedInputStream(
+				new ByteArrayInputStream(body));
+		BufferedOutputStream outS = new BufferedOutputStream(
+				DiskSpace.openPreallocated(file, size));
+		try {
+			ClassicDownloadEngine.downloadImage(inS, outS, size, checksum,
+					task, NO_PROGRESS);
+		} finally {
+			outS.close();
+		}
+		return checksum.getValue();
+	}
+
+	@Override
+	public void tearDown() {
+		Fixtures.delete(dir);
+	}
+
+	@Override
+	public long getBytesPerRun() {
+		return size;
+	}
+}
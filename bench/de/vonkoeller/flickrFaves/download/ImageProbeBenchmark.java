@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.download;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+
+import de.vonkoeller.flickrFaves.bench.Benchmark;
+import de.vonkoeller.flickrFaves.bench.Fixtures;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Determines the dimensions of a downloaded JPEG: "decode" the way
+ *         the size check does today, by decoding the whole image, and "probe"
+ *         by reading only the header, as a baseline for what the check could
+ *         cost.
+ */
+public class ImageProbeBenchmark extends Benchmark {
+
+	private final boolean decode;
+
+	private final int width;
+
+	private final int height;
+
+	private File dir;
+
+	private File file;
+
+	ImageProbeBenchmark(boolean decode, int width, int height) {
+		super("image/" + (decode ? "decode" : "probe") + "/" + width + "x"
+				+ height);
+		this.decode = decode;
+		this.width = width;
+		this.height = height;
+	}
+
+	public static List<Benchmark> variants() {
+		List<Benchmark> variants = new ArrayList<Benchmark>();
+		for (int[] size : new int[][] { { 1024, 768 }, { 4000, 3000 } }) {
+			variants.add(new ImageProbeBenchmark(true, size[0], size[1]));
+			variants.add(new ImageProbeBenchmark(false, size[0], size[1]));
+		}
+		return variants;
+	}
+
+	@Override
+	public void setUp() throws Exception {
+		dir = Fixtures.tempDir("image");
+		file = new File(dir, Fixtures.FIRST_ID + ".jpg");
+		Files.write(file.toPath(), Fixtures.jpeg(width, height));
+	}
+
+	@Override
+	public Object run() throws Exception {
+		if (decode)
+			return Images.getBufferedImage(file).getWidth();
+		ImageInputStream in = new FileImageInputStream(file);
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				return reader.getWidth(0) + reader.getHeight(0);
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public void tearDown() {
+		Fixtures.delete(dir);
+	}
+
+	@Override
+	public long getBytesPerRun() {
+		return file.length();
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.rendition;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.vonkoeller.flickrFaves.bench.Benchmark;
+import de.vonkoeller.flickrFaves.bench.Fixtures;
+import de.vonkoeller.flickrFaves.download.Images;
+import de.vonkoeller.flickrFaves.rendition.Renditions.Mode;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Scales a decoded 4000x3000 photo to a screen size, cropping or
+ *         fitting it, the way the rendition stage does for every size.
+ */
+public class RenditionBenchmark extends Benchmark {
+
+	private final Mode mode;
+
+	private final RenditionSize size;
+
+	private BufferedImage image;
+
+	RenditionBenchmark(Mode mode, RenditionSize size) {
+		super("rendition/" + mode.name().toLowerCase() + "/" + size);
+		this.mode = mode;
+		this.size = size;
+	}
+
+	public static List<Benchmark> variants() {
+		List<Benchmark> variants = new ArrayList<Benchmark>();
+		for (RenditionSize size : RenditionSize.parseList("1920x1080,3840x2160"))
+			for (Mode mode : Mode.values())
+				variants.add(new RenditionBenchmark(mode, size));
+		return variants;
+	}
+
+	@Override
+	public void setUp() throws Exception {
+		File dir = Fixtures.tempDir("rendition");
+		try {
+			File file = new File(dir, Fixtures.FIRST_ID + ".jpg");
+			Files.write(file.toPath(), Fixtures.jpeg(4000, 3000));
+			image = Images.getBufferedImage(file);
+		} finally {
+			Fixtures.delete(dir);
+		}
+	}
+
+	@Override
+	public Object run() {
+		return Renditions.render(image, size.getWidth(), size.getHeight(),
+				mode);
+	}
+
+	@Override
+	public void tearDown() {
+		image = null;
+	}
+}
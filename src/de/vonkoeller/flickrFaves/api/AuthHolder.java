@@ -80,7 +80,7 @@ public class AuthHolder {
 		auth = null;
 		// delete token from preferences
 		Preferences prefs = Preferences.userNodeForPackage(AuthHolder.class);
-		prefs.remove("token");
+		prefs.remove(getPrefsKey());
 	}
 
 	/**
@@ -90,7 +90,7 @@ public class AuthHolder {
 		// load this class' preferences
 		Preferences prefs = Preferences.userNodeForPackage(AuthHolder.class);
 		// save token
-		prefs.put("token", getToken());
+		prefs.put(getPrefsKey(), getToken());
 	}
 
 	/**
@@ -100,7 +100,7 @@ public class AuthHolder {
 		// load this class' preferences
 		Preferences prefs = Preferences.userNodeForPackage(AuthHolder.class);
 		// load token
-		setToken(prefs.get("token", null));
+		setToken(prefs.get(getPrefsKey(), null));
 		// if loaded token is text 'null', set to actual null
 		if ("null".equals(getToken()))
 			setToken(null);
@@ -108,6 +108,17 @@ public class AuthHolder {
 		buildAuthFromToken();
 	}
 
+	/**
+	 * @return The preferences key of the token. Tokens of an API host
+	 *         configured via the "apiHost" option are kept apart from the one
+	 *         for flickr.com.
+	 */
+	private static String getPrefsKey() {
+		if (!InterfaceHolder.isHostConfigured())
+			return "token";
+		return "token@" + InterfaceHolder.getHostUrl();
+	}
+
 	/**
 	 * Saves the flickrj auth object and the token it contains.
 	 * 
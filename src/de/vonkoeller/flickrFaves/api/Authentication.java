@@ -28,8 +28,10 @@ import com.flickr4java.flickr.auth.Permission;
 
 import de.vonkoeller.flickrFaves.exceptions.FlickrFaveException;
 import de.vonkoeller.flickrFaves.gui.Constants;
+import org.scribe.builder.ServiceBuilder;
 import org.scribe.model.Token;
 import org.scribe.model.Verifier;
+import org.scribe.oauth.OAuthService;
 
 /**
  * @author Magnus von Koeller
@@ -48,10 +50,18 @@ public class Authentication {
 		Flickr flickrI = InterfaceHolder.getFlickrI();
 		AuthInterface authI = flickrI.getAuthInterface();
 
-		Token token = authI.getRequestToken(Constants.OAUTH_CALLBACK_URL);
-		AuthHolder.setRequestToken(token);
-
-		String url = authI.getAuthorizationUrl(token, Permission.READ);
+		OAuthService service = getConfiguredService();
+		String url;
+		if (service == null) {
+			Token token = authI.getRequestToken(Constants.OAUTH_CALLBACK_URL);
+			AuthHolder.setRequestToken(token);
+			url = authI.getAuthorizationUrl(token, Permission.READ);
+		} else {
+			Token token = service.getRequestToken();
+			AuthHolder.setRequestToken(token);
+			url = service.getAuthorizationUrl(token) + "&perms="
+					+ Permission.READ;
+		}
 
 		try {
 			return new URL(url);
@@ -72,7 +82,11 @@ public class Authentication {
 		AuthInterface authI = flickrI.getAuthInterface();
 
 		try {
-			Token accessToken = authI.getAccessToken(AuthHolder.getRequestToken(), new Verifier(AuthHolder.getVerifier()));
+			OAuthService service = getConfiguredService();
+			Verifier verifier = new Verifier(AuthHolder.getVerifier());
+			Token accessToken = service == null ? authI.getAccessToken(
+					AuthHolder.getRequestToken(), verifier) : service
+					.getAccessToken(AuthHolder.getRequestToken(), verifier);
 
 			Auth auth = authI.checkToken(accessToken);
 
@@ -102,4 +116,18 @@ public class Authentication {
 		return AuthHolder.getAuth() != null;
 	}
 
+	/**
+	 * @return The OAuth service of the API host configured via the "apiHost"
+	 *         option, or null if flickr.com is used. flickr4java's
+	 *         AuthInterface always authorizes against flickr.com.
+	 */
+	private static OAuthService getConfiguredService() {
+		if (!InterfaceHolder.isHostConfigured())
+			return null;
+		return new ServiceBuilder().provider(FlickrOAuthApi.class)
+				.apiKey(InterfaceHolder.API_KEY)
+				.apiSecret(InterfaceHolder.SHARED_SECRET)
+				.callback(Constants.OAUTH_CALLBACK_URL).build();
+	}
+
 }
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.api;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.RESTResponse;
+import com.flickr4java.flickr.RequestContext;
+import com.flickr4java.flickr.Response;
+import com.flickr4java.flickr.Transport;
+import com.flickr4java.flickr.auth.Auth;
+
+import de.vonkoeller.flickrFaves.debug.Tracer;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Transport decorator that keeps successful responses of read-only API
+ *         methods on disk. Entries are keyed by method and parameters, expire
+ *         after a TTL and are evicted least-recently-used first once the cache
+ *         exceeds its size limit. A hit never reaches the wrapped transport.
+ */
+public class CachingTransport extends Transport {
+
+	/** The API methods whose responses may be cached. */
+	private static final Set<String> CACHEABLE_METHODS = new HashSet<String>(
+			Arrays.asList("flickr.favorites.getList"));
+
+	/** Parameters that differ on every request and must not be in the key. */
+	private static final Set<String> VOLATILE_PARAMS = new HashSet<String>(
+			Arrays.asList("oauth_nonce", "oauth_timestamp", "oauth_signature"));
+
+	/** The suffix of cache entry files. */
+	private static final String SUFFIX = ".xml";
+
+	/** The transport that actually talks to Flickr. */
+	private final Transport delegate;
+
+	/** The directory holding the cache entries. */
+	private final File dir;
+
+	/** Time in ms after which an entry is stale. */
+	private final long ttl;
+
+	/** The maximum total size of all entries in bytes. */
+	private final long maxBytes;
+
+	/** Entry file name to size, in least-recently-used order. */
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(
+			16, 0.75f, true);
+
+	/** The total size of all entries in bytes. */
+	private long totalBytes = 0;
+
+	/** Whether cached entries are ignored, e.g. for a consistent listing. */
+	private volatile boolean bypassed = false;
+
+	/** Number of requests answered from the cache. */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** Number of cacheable requests that had to go to the wrapped transport. */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param delegate
+	 *            The transport to wrap.
+	 * @param dir
+	 *            The cache directory; created if necessary.
+	 * @param ttl
+	 *            Time in ms after which an entry is stale.
+	 * @param maxBytes
+	 *            The maximum total size of the cache in bytes.
+	 */
+	public CachingTransport(Transport delegate, File dir, long ttl,
+			long maxBytes) {
+		this.delegate = delegate;
+		this.dir = dir;
+		this.ttl = ttl;
+		this.maxBytes = maxBytes;
+
+		// look like the wrapped transport to the flickr4java interfaces
+		setTransportType(delegate.getTransportType());
+		setHost(delegate.getHost());
+		setPort(delegate.getPort());
+		setPath(delegate.getPath());
+		setScheme(delegate.getScheme());
+		setResponseClass(RESTResponse.class);
+
+		dir.mkdirs();
+		loadIndex();
+	}
+
+	/**
+	 * Rebuilds the LRU index from the entries already on disk, using the file
+	 * modification time as last access time.
+	 */
+	private void loadIndex() {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		List<File> sorted = new ArrayList<File>();
+		for (File f : files) {
+			if (f.getName().endsWith(SUFFIX))
+				sorted.add(f);
+		}
+		sorted.sort(new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		for (File f : sorted) {
+			entries.put(f.getName(), f.length());
+			totalBytes += f.length();
+		}
+		evict();
+	}
+
+	@Override
+	public Response get(String path, Map<String, Object> parameters,
+			String apiKey, String sharedSecret) throws FlickrException {
+		String method = String.valueOf(parameters.get("method"));
+		if (!CACHEABLE_METHODS.contains(method))
+			return delegate.get(path, parameters, apiKey, sharedSecret);
+
+		String name = buildKey(path, parameters) + SUFFIX;
+		Response cached = bypassed ? null : read(name);
+		if (cached != null) {
+			hits.incrementAndGet();
+			Tracer.trace("API cache hit for " + method + "...");
+			return cached;
+		}
+
+		misses.incrementAndGet();
+		Response response = delegate.get(path, parameters, apiKey,
+				sharedSecret);
+		if (!response.isError())
+			write(name, response);
+		return response;
+	}
+
+	/**
+	 * Makes all requests go to the wrapped transport, e.g. while the faves
+	 * are listed to find stale ones: pages of different age could miss a
+	 * fave that moved from one page to another. Fresh responses are still
+	 * stored for later runs.
+	 * 
+	 * @param bypassed
+	 *            Whether to ignore the cached entries.
+	 */
+	public void setBypassed(boolean bypassed) {
+		this.bypassed = bypassed;
+	}
+
+	@Override
+	public Response post(String path, Map<String, Object> parameters,
+			String apiKey, String sharedSecret, boolean multipart)
+			throws FlickrException {
+		return delegate.post(path, parameters, apiKey, sharedSecret,
+				multipart);
+	}
+
+	@Override
+	public Response getNonOAuth(String path, Map<String, String> parameters)
+			throws FlickrException {
+		return delegate.getNonOAuth(path, parameters);
+	}
+
+	/**
+	 * Builds the cache key from path, the stable parameters and the current
+	 * user so that different accounts never share entries.
+	 *
+	 * @return The hex-encoded SHA-256 of the request description.
+	 */
+	private String buildKey(String path, Map<String, Object> parameters) {
+		StringBuilder key = new StringBuilder(path);
+		for (Map.Entry<String, Object> e : new TreeMap<String, Object>(
+				parameters).entrySet()) {
+			if (VOLATILE_PARAMS.contains(e.getKey()))
+				continue;
+			key.append('&').append(e.getKey()).append('=')
+					.append(e.getValue());
+		}
+		Auth auth = RequestContext.getRequestContext().getAuth();
+		if (auth != null)
+			key.append("&token=").append(auth.getToken());
+		return sha256(key.toString());
+	}
+
+	/**
+	 * @return The response stored under name, or null if there is none or it
+	 *         has expired or cannot be read.
+	 */
+	private synchronized Response read(String name) {
+		// get, unlike containsKey, counts as an access for the LRU order
+		if (entries.get(name) == null)
+			return null;
+		File file = new File(dir, name);
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), StandardCharsets.UTF_8));
+			try {
+				long created = Long.parseLong(in.readLine());
+				if (System.currentTimeMillis() - created > ttl) {
+					in.close();
+					remove(name);
+					return null;
+				}
+				Document doc = DocumentBuilderFactory.newInstance()
+						.newDocumentBuilder().parse(new InputSource(in));
+				RESTResponse response = new RESTResponse();
+				response.parse(doc);
+				file.setLastModified(System.currentTimeMillis());
+				return response;
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			Tracer.trace("Dropping unreadable API cache entry " + name + ": "
+					+ e);
+			remove(name);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the document behind the given response under name and evicts old
+	 * entries if the cache has grown too large.
+	 */
+	private synchronized void write(String name, Response response) {
+		Collection<Element> payload = response.getPayloadCollection();
+		if (payload == null || payload.isEmpty())
+			return;
+		Document doc = payload.iterator().next().getOwnerDocument();
+		File file = new File(dir, name);
+		try {
+			Writer out = new OutputStreamWriter(new FileOutputStream(file),
+					StandardCharsets.UTF_8);
+			try {
+				out.write(Long.toString(System.currentTimeMillis()));
+				out.write('\n');
+				Transformer t = TransformerFactory.newInstance()
+						.newTransformer();
+				t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+				t.transform(new DOMSource(doc), new StreamResult(out));
+			} finally {
+				out.close();
+			}
+		} catch (Exception e) {
+			Tracer.trace("Could not write API cache entry " + name + ": " + e);
+			file.delete();
+			return;
+		}
+		Long old = entries.put(name, file.length());
+		if (old != null)
+			totalBytes -= old;
+		totalBytes += file.length();
+		evict();
+	}
+
+	/**
+	 * Removes least-recently-used entries until the cache fits its limit.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+		while (totalBytes > maxBytes && it.hasNext()) {
+			Map.Entry<String, Long> eldest = it.next();
+			it.remove();
+			totalBytes -= eldest.getValue();
+			new File(dir, eldest.getKey()).delete();
+		}
+	}
+
+	/**
+	 * Deletes a single entry from disk and index.
+	 */
+	private void remove(String name) {
+		Long size = entries.remove(name);
+		if (size != null)
+			totalBytes -= size;
+		new File(dir, name).delete();
+	}
+
+	/**
+	 * Deletes all cache entries.
+	 */
+	public synchronized void clear() {
+		for (String name : entries.keySet())
+			new File(dir, name).delete();
+		entries.clear();
+		totalBytes = 0;
+	}
+
+	/**
+	 * @return The number of requests answered from the cache.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of cacheable requests that missed the cache.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return The current total size of the cache in bytes.
+	 */
+	public synchronized long getSize() {
+		return totalBytes;
+	}
+
+	private static String sha256(String s) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+					s.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest)
+				hex.append(String.format("%02x", b & 0xff));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every JRE must support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+}
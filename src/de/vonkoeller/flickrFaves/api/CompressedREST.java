@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.api;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.scribe.builder.ServiceBuilder;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Token;
+import org.scribe.model.Verb;
+import org.scribe.oauth.OAuthService;
+import org.w3c.dom.Document;
+
+import com.flickr4java.flickr.FlickrRuntimeException;
+import com.flickr4java.flickr.REST;
+import com.flickr4java.flickr.RESTResponse;
+import com.flickr4java.flickr.RequestContext;
+import com.flickr4java.flickr.Response;
+import com.flickr4java.flickr.auth.Auth;
+
+import de.vonkoeller.flickrFaves.debug.Tracer;
+import de.vonkoeller.flickrFaves.gui.Constants;
+import de.vonkoeller.flickrFaves.metrics.Metrics;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         REST transport that asks Flickr for gzip or deflate encoded GET
+ *         responses and parses them while they are being decompressed.
+ *         Connections are kept alive so that consecutive list pages reuse the
+ *         same connection to the API host. POST requests are left to flickr4java.
+ */
+public class CompressedREST extends REST {
+
+	/** Prefix of the plain-text body Flickr sends on OAuth failures. */
+	private static final String OAUTH_PROBLEM = "oauth_problem=";
+
+	/** Bytes received on the wire, i.e. before decompression. */
+	private final AtomicLong wireBytes = new AtomicLong();
+
+	/** Bytes handed to the XML parser, i.e. after decompression. */
+	private final AtomicLong decodedBytes = new AtomicLong();
+
+	@Override
+	public Response get(String path, Map<String, Object> parameters,
+			String apiKey, String sharedSecret) {
+		OAuthRequest request = new OAuthRequest(Verb.GET, buildBaseUrl(path));
+		for (Map.Entry<String, Object> e : parameters.entrySet())
+			request.addQuerystringParameter(e.getKey(),
+					String.valueOf(e.getValue()));
+		if (isProxyAuth())
+			request.addHeader("Proxy-Authorization", "Basic "
+					+ getProxyCredentials());
+		request.addHeader("Accept-Encoding", "gzip, deflate");
+		request.setConnectionKeepAlive(true);
+		request.setConnectTimeout(Constants.DOWNLOAD_TIMEOUT, TimeUnit.SECONDS);
+		request.setReadTimeout(Constants.DOWNLOAD_TIMEOUT, TimeUnit.SECONDS);
+
+		// sign like flickr4java's REST does, but without JAXB
+		Auth auth = RequestContext.getRequestContext().getAuth();
+		if (auth != null) {
+			OAuthService service = new ServiceBuilder()
+					.provider(FlickrOAuthApi.class).apiKey(apiKey)
+					.apiSecret(sharedSecret).build();
+			service.signRequest(
+					new Token(auth.getToken(), auth.getTokenSecret()), request);
+		} else if (!parameters.containsKey("api_key")) {
+			request.addQuerystringParameter("api_key", apiKey);
+		}
+
+		Metrics.apiCall(String.valueOf(parameters.get("method")));
+		org.scribe.model.Response scribeResponse = request.send();
+		CountingInputStream wire = null;
+		try {
+			wire = new CountingInputStream(scribeResponse.getStream());
+			InputStream body = new BufferedInputStream(decode(wire,
+					getHeader(scribeResponse, "Content-Encoding")));
+
+			// Flickr answers OAuth problems with plain text instead of XML
+			body.mark(OAUTH_PROBLEM.length());
+			byte[] start = new byte[OAUTH_PROBLEM.length()];
+			int n = body.read(start);
+			body.reset();
+			if (n == start.length
+					&& OAUTH_PROBLEM.equals(new String(start,
+							StandardCharsets.US_ASCII)))
+				throw new FlickrRuntimeException(readFully(body));
+
+			// the parser closes its input; keep the stream open for draining
+			CountingInputStream decoded = new CountingInputStream(body) {
+				@Override
+				public void close() {
+					// empty on purpose
+				}
+			};
+			Document document = DocumentBuilderFactory.newInstance()
+					.newDocumentBuilder().parse(decoded);
+			Response response = new RESTResponse();
+			response.parse(document);
+
+			// drain so that the connection can be reused
+			byte[] rest = new byte[4096];
+			while (wire.read(rest, 0, rest.length) != -1)
+				;
+
+			wireBytes.addAndGet(wire.getCount());
+			decodedBytes.addAndGet(decoded.getCount());
+			return response;
+		} catch (FlickrRuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new FlickrRuntimeException(e);
+		} finally {
+			if (wire != null) {
+				try {
+					wire.close();
+				} catch (IOException e) {
+					Tracer.trace("Could not close API response stream: " + e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The URL of the API endpoint without query string. The port is
+	 *         only included if it is not the scheme's default.
+	 */
+	private String buildBaseUrl(String path) {
+		int port = getPort();
+		boolean defaultPort = port <= 0
+				|| ("https".equals(getScheme()) && port == 443)
+				|| ("http".equals(getScheme()) && port == 80);
+		return getScheme() + "://" + getHost()
+				+ (defaultPort ? "" : ":" + port) + path;
+	}
+
+	/**
+	 * @return The value of the named response header, ignoring case, or null.
+	 */
+	private static String getHeader(org.scribe.model.Response response,
+			String name) {
+		for (Map.Entry<String, String> e : response.getHeaders().entrySet()) {
+			if (name.equalsIgnoreCase(e.getKey()))
+				return e.getValue();
+		}
+		return null;
+	}
+
+	/**
+	 * Wraps the raw stream in a decompressing stream matching the
+	 * Content-Encoding header.
+	 */
+	private static InputStream decode(InputStream in, String encoding)
+			throws IOException {
+		if (encoding == null)
+			return in;
+		encoding = encoding.trim().toLowerCase();
+		if ("gzip".equals(encoding) || "x-gzip".equals(encoding))
+			return new GZIPInputStream(in, 8192);
+		if ("deflate".equals(encoding))
+			return new InflaterInputStream(in);
+		return in;
+	}
+
+	private static String readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int n;
+		while ((n = in.read(buf)) != -1)
+			out.write(buf, 0, n);
+		return new String(out.toByteArray(), StandardCharsets.UTF_8).trim();
+	}
+
+	/**
+	 * @return The number of response bytes received on the wire.
+	 */
+	public long getWireBytes() {
+		return wireBytes.get();
+	}
+
+	/**
+	 * @return The number of response bytes after decompression.
+	 */
+	public long getDecodedBytes() {
+		return decodedBytes.get();
+	}
+
+	/**
+	 * Input stream that counts the bytes read through it.
+	 */
+	static class CountingInputStream extends FilterInputStream {
+
+		private long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1)
+				count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0)
+				count += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		long getCount() {
+			return count;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.api;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.RESTResponse;
+import com.flickr4java.flickr.Response;
+import com.flickr4java.flickr.Transport;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Transport decorator that picks the "date_faved" attribute out of
+ *         each page of the list of faves, which flickr4java does not keep in
+ *         its Photo objects. Only the dates of the most recent page are kept.
+ */
+public class FaveDateTransport extends Transport {
+
+	/** The transport that actually talks to Flickr. */
+	private final Transport delegate;
+
+	/** Fave id to date faved in seconds since the epoch, of the last page. */
+	private final Map<String, Long> dates = new HashMap<String, Long>();
+
+	/**
+	 * @param delegate
+	 *            The transport to wrap.
+	 */
+	public FaveDateTransport(Transport delegate) {
+		this.delegate = delegate;
+
+		// look like the wrapped transport to the flickr4java interfaces
+		setTransportType(delegate.getTransportType());
+		setHost(delegate.getHost());
+		setPort(delegate.getPort());
+		setPath(delegate.getPath());
+		setScheme(delegate.getScheme());
+		setResponseClass(RESTResponse.class);
+	}
+
+	@Override
+	public Response get(String path, Map<String, Object> parameters,
+			String apiKey, String sharedSecret) throws FlickrException {
+		Response response = delegate.get(path, parameters, apiKey,
+				sharedSecret);
+		if ("flickr.favorites.getList".equals(parameters.get("method"))
+				&& !response.isError())
+			record(response.getPayload());
+		return response;
+	}
+
+	@Override
+	public Response post(String path, Map<String, Object> parameters,
+			String apiKey, String sharedSecret, boolean multipart)
+			throws FlickrException {
+		return delegate.post(path, parameters, apiKey, sharedSecret,
+				multipart);
+	}
+
+	@Override
+	public Response getNonOAuth(String path, Map<String, String> parameters)
+			throws FlickrException {
+		return delegate.getNonOAuth(path, parameters);
+	}
+
+	/**
+	 * @return When a fave of the most recently listed page was faved, in
+	 *         seconds since the epoch, or -1 if unknown.
+	 */
+	public synchronized long getFaveDate(String id) {
+		Long date = dates.get(id);
+		return date == null ? -1 : date;
+	}
+
+	private synchronized void record(Element photos) {
+		dates.clear();
+		if (photos == null)
+			return;
+		NodeList list = photos.getElementsByTagName("photo");
+		for (int i = 0; i < list.getLength(); i++) {
+			Element photo = (Element) list.item(i);
+			try {
+				dates.put(photo.getAttribute("id"), Long.valueOf(photo
+						.getAttribute("date_faved")));
+			} catch (NumberFormatException e) {
+				// no date for this one
+			}
+		}
+	}
+}
@@ -18,30 +18,20 @@
  */
 package de.vonkoeller.flickrFaves.api;
 
-import java.awt.image.BufferedImage;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
-import javax.imageio.ImageIO;
-import javax.imageio.ImageReadParam;
-import javax.imageio.ImageReader;
-import javax.imageio.ImageTypeSpecifier;
-import javax.imageio.stream.FileImageInputStream;
-import javax.imageio.stream.ImageInputStream;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JProgressBar;
@@ -52,12 +42,34 @@ import com.flickr4java.flickr.FlickrException;
 import com.flickr4java.flickr.RequestContext;
 import com.flickr4java.flickr.favorites.FavoritesInterface;
 import com.flickr4java.flickr.photos.Photo;
-import com.flickr4java.flickr.photos.PhotosInterface;
+import com.flickr4java.flickr.photos.PhotoList;
 
+import de.vonkoeller.flickrFaves.archive.PackArchive;
+import de.vonkoeller.flickrFaves.concurrent.Threads;
+import de.vonkoeller.flickrFaves.config.Options;
+import de.vonkoeller.flickrFaves.debug.DeleteEvent;
+import de.vonkoeller.flickrFaves.debug.PageFetchEvent;
 import de.vonkoeller.flickrFaves.debug.Tracer;
+import de.vonkoeller.flickrFaves.debug.Tracer.Level;
+import de.vonkoeller.flickrFaves.download.AsyncDownloadEngine;
+import de.vonkoeller.flickrFaves.download.Budget;
+import de.vonkoeller.flickrFaves.download.ChecksumIndex;
+import de.vonkoeller.flickrFaves.download.ClassicDownloadEngine;
+import de.vonkoeller.flickrFaves.download.ContentStore;
+import de.vonkoeller.flickrFaves.download.DiskSpace;
+import de.vonkoeller.flickrFaves.download.DownloadEngine;
+import de.vonkoeller.flickrFaves.download.DownloadListener;
+import de.vonkoeller.flickrFaves.download.DownloadTask;
+import de.vonkoeller.flickrFaves.download.Layout;
+import de.vonkoeller.flickrFaves.download.MetadataFilter;
+import de.vonkoeller.flickrFaves.download.Scheduler;
+import de.vonkoeller.flickrFaves.download.ThreadPerTaskDownloadEngine;
 import de.vonkoeller.flickrFaves.exceptions.FlickrFaveException;
-import de.vonkoeller.flickrFaves.gui.Constants;
 import de.vonkoeller.flickrFaves.gui.FlickrFaves;
+import de.vonkoeller.flickrFaves.gui.TransferMonitor;
+import de.vonkoeller.flickrFaves.metrics.Metrics;
+import de.vonkoeller.flickrFaves.metrics.RunReport;
+import de.vonkoeller.flickrFaves.rendition.Renditions;
 
 /**
  * @author Magnus von Koeller
@@ -66,6 +78,14 @@ import de.vonkoeller.flickrFaves.gui.FlickrFaves;
  */
 public class Favorites {
 
+	/** The file names of downloaded faves. */
+	private static final Pattern FAVE_FILE = Pattern
+			.compile("\\d{7,}\\.(jpg|mp4)");
+
+	/** The files marking faves that are not to be downloaded again. */
+	private static final Pattern EXCLUSION_FILE = Pattern
+			.compile("\\.\\d{7,}\\.(jpg|mp4)\\.exclude");
+
 	/**
 	 * Download all faves according to the given parameters.
 	 * 
@@ -84,20 +104,19 @@ public class Favorites {
 	 * @param maxFaves
 	 *            The maximum number of photos to download
 	 * @param flickrFaves
-	 *            The parent JPanel
+	 *            The parent JPanel; may be null if there is no window
 	 * @param totalProgress
 	 *            The overall progress bar; needed for updates
-	 * @param fileProgress
-	 *            The download progress bar; needed for updates
+	 * @param transfers
+	 *            Shows the individual transfers; may be null
 	 * @param progressMsg
 	 *            The JLabel containing progress message; needed for updates
 	 */
-	@SuppressWarnings("unchecked")
 	public static void downloadAllFaves(String dir, boolean downloadPhotos,
 			boolean downloadVideos, boolean overwrite, int minSize,
 			boolean maxFavesEnabled, int maxFaves, boolean deleteStale,
 			final FlickrFaves flickrFaves, final JProgressBar totalProgress,
-			final JProgressBar fileProgress, final JLabel progressMsg) {
+			final TransferMonitor transfers, final JLabel progressMsg) {
 		if (!downloadPhotos && !downloadVideos) {
 			throw new IllegalArgumentException(
 					"Must enable download of at least one of photos and videos.");
@@ -106,49 +125,105 @@ public class Favorites {
 		// get interfaces
 		Flickr flickrI = InterfaceHolder.getFlickrI();
 		FavoritesInterface favI = flickrI.getFavoritesInterface();
-		PhotosInterface photoI = flickrI.getPhotosInterface();
 
 		// for some reason the request context gets lost here, reset it
 		AuthHolder.ensureCorrectRequestContext(RequestContext
 				.getRequestContext());
 
+		// stale faves may only be deleted based on a fresh list
+		CachingTransport apiCache = InterfaceHolder.getApiCache();
+		if (apiCache != null)
+			apiCache.setBypassed(deleteStale);
+
+		// faves can also be downloaded page by page as they are listed
+		File dirFile = new File(dir);
+		if (Options.getBoolean("streaming", false)) {
+			StreamingSync sync = new StreamingSync(dirFile, downloadPhotos,
+					downloadVideos, overwrite, minSize, maxFavesEnabled ? maxFaves
+							: Integer.MAX_VALUE, deleteStale, totalProgress,
+					transfers, progressMsg);
+			int numFailedDownloads = sync.run(favI);
+			showOutcome(flickrFaves, numFailedDownloads, sync.getNumFaves());
+			return;
+		}
+
 		// get list of all favorites, looping over pages of 500 faves as
 		// that is the maximum number of photos that Flickr allows to be
 		// retrieved per page
 		Tracer.trace("Now getting list of faves...");
+		// the time budget includes listing the faves
+		Budget budget = Budget.fromOptions();
+		RunReport report = new RunReport(dirFile);
+		report.startPhase("listing");
 		List<String> faves = new LinkedList<String>();
 		HashMap<String, Photo> favesMap = new HashMap<String, Photo>();
-		Collection pl;
+		PhotoList<Photo> pl;
 		int i = 1;
+		MetadataSidecar sidecar = null;
 		try {
+			// titles, owners, licenses and tags come with the same pages
+			sidecar = MetadataSidecar.fromOptions(dirFile);
+			FaveDateTransport faveDates = InterfaceHolder.getFaveDates();
 			while (true) {
-				Tracer.trace("Now getting page " + i + " of list of faves...");
 				// get next page of pictures
-				Set<String> extras = new HashSet<String>();
-				extras.add("media");
-				extras.add("originalsecret");
-				extras.add("url_o");
-				extras.add("url_k");
-				extras.add("url_h");
-				extras.add("url_b");
-
-				pl = favI.getList(null, 500, i++, extras);
+				pl = fetchPage(favI, i++, sidecar != null);
 				// none left? then we're done
 				if (pl.isEmpty())
 					break;
-				for (Object cur : pl) {
-					Photo curPhoto = (Photo) cur;
+				for (Photo curPhoto : pl) {
 					faves.add(curPhoto.getId());
 					favesMap.put(curPhoto.getId(), curPhoto);
+					if (sidecar != null)
+						sidecar.write(curPhoto, faveDates == null ? -1
+								: faveDates.getFaveDate(curPhoto.getId()));
 				}
 			}
+			if (sidecar != null)
+				Tracer.trace("Wrote metadata of " + sidecar.commit()
+						+ " faves to " + MetadataSidecar.FILENAME + "...");
 		} catch (Exception e) {
+			if (sidecar != null)
+				sidecar.abort();
 			throw new FlickrFaveException("Error while retrieving list of "
 					+ "faves.", e);
 		}
 
+		// sizes and checksums of the faves downloaded to this directory
+		ChecksumIndex checksums = new ChecksumIndex(dirFile);
+
+		// screen-sized renditions of the photos, if enabled
+		Renditions renditions = Renditions.fromOptions(dirFile, checksums);
+
+		// move the faves over if another layout has been configured
+		Layout layout = Layout.create();
+		report.startPhase("migration");
+		try {
+			int moved = layout.migrate(dirFile, favesMap,
+					new FilenameFilter() {
+						public boolean accept(File dir, String name) {
+							return isFaveFile(name) || isExclusionFile(name);
+						}
+					});
+			if (moved > 0)
+				Tracer.trace("Moved " + moved + " files to the "
+						+ layout.getName() + " layout...");
+		} catch (IOException e) {
+			throw new FlickrFaveException("Error while moving faves to the "
+					+ layout.getName() + " layout.", e);
+		}
+
+		// the archive faves are packed into, if enabled
+		PackArchive pack;
+		try {
+			pack = PackArchive.fromOptions(dirFile);
+		} catch (IOException e) {
+			throw new FlickrFaveException("Error while opening the pack "
+					+ "archive.", e);
+		}
+
 		// if enabled: delete stale faves
 		if (deleteStale) {
+			report.startPhase("staleDeletion");
 			Tracer.trace("Now delete stale faves...");
 
 			// update progress message
@@ -159,27 +234,26 @@ public class Favorites {
 				}
 			});
 
-			// get list of files in directory; only files with format
-			// xxxxxxxx.jpg|.mp4 where x are all digits are of interest
-			File[] downloadedFaves = new File(dir)
-					.listFiles(new FilenameFilter() {
-						public boolean accept(File dir, String name) {
-							return name.matches("\\d{7,}\\.jpg")
-									|| name.matches("\\d{7,}\\.mp4");
-						}
-					});
+			// get list of files in directory and its shards; only files
+			// with format xxxxxxxx.jpg|.mp4 where x are all digits are of
+			// interest
+			List<File> listing = listFaveFiles(dirFile);
+			File[] downloadedFaves = listing
+					.toArray(new File[listing.size()]);
 
 			// go through all these files and check whether they are still
 			// faves
-			for (File toCheck : downloadedFaves) {
-				// cut off ".jpg" or ".mp4"
-				String id = toCheck.getName().substring(0,
-						toCheck.getName().length() - 4);
-				if (!faves.contains(id)) {
-					Tracer.trace("Now deleting stale fave " + toCheck.getName());
-					toCheck.delete();
-				}
-			}
+			for (File toCheck : findStaleFaves(downloadedFaves,
+					favesMap.keySet()))
+				deleteStaleFave(toCheck, checksums, renditions);
+
+			// packed faves are only marked as removed; their space is
+			// reclaimed when the archive is compacted
+			if (pack != null)
+				for (String name : pack.getFilenames())
+					if (!favesMap.containsKey(name.substring(0,
+							name.length() - 4)))
+						removeStalePacked(name, pack, checksums, renditions);
 		}
 
 		// did we load too many images? then truncate list
@@ -199,248 +273,126 @@ public class Favorites {
 			}
 		});
 
-		// iterate over all faves
+		// the content store shared by all download directories, if enabled
+		String storeDir = Options.getString("contentStore", null);
+		ContentStore store = storeDir == null ? null : new ContentStore(
+				new File(storeDir));
+
+		// unwanted dimensions, if filters are configured
+		MetadataFilter filter = MetadataFilter.fromOptions();
+
+		// plan the downloads, skipping faves that need not be downloaded
+		report.startPhase("planning");
+		Planner planner = new Planner(dirFile, layout, checksums,
+				downloadPhotos, downloadVideos, overwrite, minSize, filter,
+				store, pack);
+		Scheduler queue = Scheduler.create();
+		queue.setBudget(budget);
+		queue.carryOver(dirFile);
+		report.setScheduler(queue);
 		i = 0; // overall counter
 		int numFailedDownloads = 0; // counter for failed downloads
+		long estimatedBytes = 0; // expected size of all planned downloads
 		try {
 			for (String cur : faves) {
-				// update progress bar, message and counter
-				final int curI = i++;
+				final DownloadTask task = planner.plan(favesMap.get(cur), ++i);
+				if (task == null)
+					continue;
+				estimatedBytes += DiskSpace.estimate(task);
+				queue.add(task);
+			}
+
+			// warn early if the faves will not all fit; downloads stop
+			// before the disk is full and leave the rest for the next run
+			long free = dirFile.getUsableSpace() - DiskSpace.getReserve();
+			if (estimatedBytes > free)
+				Tracer.trace(Level.WARN, "The planned downloads need about "
+						+ (estimatedBytes >> 20) + " MB but only "
+						+ (Math.max(0, free) >> 20)
+						+ " MB are free; faves that do not fit "
+						+ "are left for the next run...");
+
+			// download all remaining faves
+			report.startPhase("download");
+			Tracer.trace("Downloading " + queue.size() + " faves in "
+					+ queue.getName() + " order...");
+			SwingProgress progress = new SwingProgress(numFaves, numFaves
+					- queue.size(), totalProgress, transfers, progressMsg);
+			DownloadListener listener = report.recording(Metrics
+					.recording(progress));
+			if (store != null)
+				listener = store.recording(listener);
+			if (renditions != null)
+				listener = renditions.recording(listener);
+			if (budget != null)
+				listener = budget.recording(listener);
+			numFailedDownloads = createEngine().downloadAll(queue, minSize,
+					listener);
+			String stoppedBy = queue.getStoppedBy();
+			if ("disk".equals(stoppedBy))
+				Tracer.trace(Level.WARN, "Stopped early: not enough disk "
+						+ "space...");
+			else if (stoppedBy != null)
+				Tracer.trace("Stopped early: the " + stoppedBy
+						+ " budget is used up...");
+			int remaining = queue.saveRemaining(dirFile);
+			if (remaining > 0)
+				Tracer.trace("Saved " + remaining
+						+ " remaining faves for the next run...");
+			if (store != null && Options.getBoolean("pruneContentStore", false))
+				Tracer.trace("Pruned " + store.prune()
+						+ " unreferenced faves from the content store...");
+			// photos that were already there may still lack renditions
+			if (renditions != null && stoppedBy != null) {
+				Tracer.trace("Skipping renditions of earlier downloads: "
+						+ "stopped early by " + stoppedBy + "...");
+			} else if (renditions != null) {
+				report.startPhase("renditions");
 				SwingUtilities.invokeLater(new Runnable() {
 					public void run() {
-						totalProgress.setValue(curI);
-						progressMsg.setText("" + (curI + 1) + "/" + numFaves
-								+ ": Checking size...");
-						totalProgress.revalidate();
+						progressMsg.setText("Rendering wallpapers...");
 						progressMsg.revalidate();
 					}
 				});
-
-				// initialize base filename and check whether to download at all
-				String curFilename;
-				Photo curPhoto = favesMap.get(cur);
-				if ("photo".equals(curPhoto.getMedia())) {
-					if (!downloadPhotos) {
-						Tracer.trace("Skipping " + cur
-								+ " because it is a photo and "
-								+ "we are not downloading photos...");
-						continue;
-					} else {
-						curFilename = cur + ".jpg";
-					}
-				} else if ("video".equals(curPhoto.getMedia())) {
-					if (!downloadVideos) {
-						Tracer.trace("Skipping " + cur
-								+ " because it is a video and "
-								+ "we are not downloading videos...");
-						continue;
-					} else {
-						curFilename = cur + ".mp4";
-					}
-				} else {
-					throw new IllegalStateException("Unknown media type: "
-							+ curPhoto.getMedia());
-				}
-				String curFullPath = dir + File.separator + curFilename;
-
-				// check whether this image should be excluded
-				File excl = new File(dir + File.separator + "." + curFilename
-						+ ".exclude");
-				if (excl.exists()) {
-					Tracer.trace("Excluding " + curFilename
-							+ " because of exlcusion file...");
-					continue;
-				}
-
-				// check whether this file is already downloaded; in that case
-				// and if overwriting is disabled, we can save time by skipping
-				// the resolution and file size check
-				File out = new File(curFullPath);
-				if (out.exists() && !overwrite) {
-					Tracer.trace("Skipping file " + curFilename
-							+ " -- overwrite disabled...");
-					continue;
-				}
-
-				// check size by getting all sizes and seeing whether one is
-				// big enough
-				Tracer.trace("Now downloading largest size for " + cur);
-
-				String originalUrl = null;
-				try {
-					originalUrl = curPhoto.getOriginalUrl();
-				} catch (FlickrException e) {
-					// if the original url just isn't available, fine. no need
-					// to panic.
-				}
-
-				// download the largest available size
-				HttpURLConnection urlConn = openHttpConnection(originalUrl);
-				if (urlConn == null || urlConn.getResponseCode() != 200)
-					urlConn = openHttpConnection(curPhoto.getLarge2048Url());
-				if (urlConn == null || urlConn.getResponseCode() != 200)
-					urlConn = openHttpConnection(curPhoto.getLarge1600Url());
-				if (urlConn == null || urlConn.getResponseCode() != 200)
-					urlConn = openHttpConnection(curPhoto.getLargeUrl());
-
-				// a URL is available, download it, check size later
-				if (urlConn != null) {
-					// update progress message
-					SwingUtilities.invokeLater(new Runnable() {
-						public void run() {
-							progressMsg.setText("" + (curI + 1) + "/"
-									+ numFaves + ": Connecting...");
-							progressMsg.revalidate();
-						}
-					});
-
-					// set timeout
-					urlConn.setConnectTimeout(Constants.DOWNLOAD_TIMEOUT * 1000);
-					urlConn.setReadTimeout(Constants.DOWNLOAD_TIMEOUT * 1000);
-
-					// get file size
-					final int fileSize = urlConn.getContentLength();
-
-					// check if this image is already downloaded
-					if (out.exists()) {
-						// if overwrite is not enabled, then the file was
-						// already skipped earlier (see above) to save time
-
-						// also skip if it is already downloaded and the file
-						// size matches (otherwise incomplete download =>
-						// delete)
-						if (fileSize == out.length()) {
-							Tracer.trace("Skipping file " + curFilename
-									+ " -- already downloaded...");
-							continue;
-						}
-						// delete file otherwise -- overwrite is enabled and
-						// file sizes do not match
-						else {
-							Tracer.trace("Deleting and re-downloading file "
-									+ curFilename + "...");
-							out.delete();
-						}
-					}
-
-					// open URL for download
-					try {
-						BufferedInputStream inS = new BufferedInputStream(
-								urlConn.getInputStream());
-						// open file for saving
-						BufferedOutputStream outS = new BufferedOutputStream(
-								new FileOutputStream(curFullPath));
-
-						// initialize and enable file progress bar
-						SwingUtilities.invokeLater(new Runnable() {
-							public void run() {
-								fileProgress.setIndeterminate(false);
-								fileProgress.setEnabled(true);
-								fileProgress.setValue(0);
-								fileProgress.setMaximum(fileSize);
-								fileProgress.revalidate();
-								progressMsg.setText("" + (curI + 1) + "/"
-										+ numFaves + ": Downloading...");
-								progressMsg.revalidate();
-							}
-						});
-
-						Tracer.trace("Now downloading " + curFilename
-								+ " from " + urlConn.getURL());
-
-						// start copying, byte by byte
-						try {
-							// try to download image; might time out
-							downloadImage(inS, outS, fileSize, fileProgress);
-						} catch (IOException e) {
-							/*
-							 * An IOException at this point often means that the
-							 * connection has timed out or that there is a
-							 * network issue of some sort. This should result in
-							 * the more specific SocketTimeoutException;
-							 * however, it can also result in other IOExceptions
-							 * such as a generic '504 gateway timeout'.
-							 * Therefore we retry retry downloading the whole
-							 * image once.
-							 */
-							Tracer.trace("Caught IOException while attempting download... Retrying whole image...");
-							inS.close();
-							urlConn = (HttpURLConnection) urlConn.getURL()
-									.openConnection();
-
-							// set timeout
-							urlConn.setConnectTimeout(Constants.DOWNLOAD_TIMEOUT * 1000);
-							urlConn.setReadTimeout(Constants.DOWNLOAD_TIMEOUT * 1000);
-
-							inS = new BufferedInputStream(
-									urlConn.getInputStream());
-							outS = new BufferedOutputStream(
-									new FileOutputStream(curFullPath));
-							try {
-								downloadImage(inS, outS, fileSize, fileProgress);
-							} catch (IOException e2) {
-								// connection timed out again -- give up
-								Tracer.trace("Caught IOException again... Giving up...");
-								numFailedDownloads++;
-								continue;
-							}
-						}
-
-						// close streams
-						inS.close();
-						outS.close();
-					} catch (IOException e) {
-						/*
-						 * Getting an IOException here really shouldn't happen;
-						 * however, we might as well handle it graciously and
-						 * try downloading the other photos.
-						 */
-						Tracer.trace("Caught IOException outside downloadImage() "
-								+ "while attemption to download "
-								+ curFilename
-								+ " -- failing gracefully");
-						numFailedDownloads++;
-						continue;
-					} finally {
-						// reset and disable file progress bar -- download done
-						SwingUtilities.invokeLater(new Runnable() {
-							public void run() {
-								fileProgress.setIndeterminate(true);
-								fileProgress.setEnabled(false);
-								fileProgress.revalidate();
-							}
-						});
-					}
-
-					Tracer.trace("Checking dimensions of the downloaded file...");
-					File downloadedFile = new File(curFullPath);
-					BufferedImage image = null;
-					try {
-						image = getBufferedImage(downloadedFile);
-					} catch (Exception e) {
-						Tracer.trace("Exception "
-								+ e
-								+ " occured when trying to get file dimensions. Ignoring...");
-					}
-					if (!downloadedFile.exists()
-							|| (image != null && image.getWidth() < minSize && image
-									.getHeight() < minSize)) {
-						Tracer.trace("Image not large enough! Deleting and excluding.");
-
-						// image is too small
-						if (downloadedFile != null)
-							downloadedFile.delete();
-
-						// make sure that we don't try this again
-						excl.createNewFile();
-					}
-
-					Tracer.trace("Done downloading " + curFilename + "...");
-				}
-
+				for (String cur : faves)
+					renditions.submit(new File(layout.dirFor(dirFile, cur,
+							favesMap.get(cur)), cur + ".jpg"));
 			}
 		} catch (Exception e) {
 			throw new FlickrFaveException("Error while downloading faves.", e);
+		} finally {
+			if (renditions != null)
+				renditions.await();
+			// renditions are made from the loose files, so pack them last
+			if (pack != null) {
+				report.startPhase("packing");
+				packFaves(pack, dirFile, progressMsg);
+			}
+			checksums.save();
+			report.write(Options.getInt("runReports", 20));
+		}
+
+		showOutcome(flickrFaves, numFailedDownloads, faves.size());
+	}
+
+	/**
+	 * Tells the user how many faves could not be downloaded and switches the
+	 * window to its done state.
+	 *
+	 * @param flickrFaves
+	 *            The parent JPanel; may be null if there is no window
+	 * @param numFailedDownloads
+	 *            The number of faves that could not be downloaded.
+	 * @param numFaves
+	 *            The number of faves that were to be downloaded.
+	 */
+	static void showOutcome(final FlickrFaves flickrFaves,
+			int numFailedDownloads, int numFaves) {
+		// without a window, e.g. in benchmarks, the outcome is only traced
+		if (flickrFaves == null) {
+			Tracer.trace("Done; " + numFailedDownloads
+					+ " faves could not be downloaded.");
+			return;
 		}
 
 		if (numFailedDownloads > 0)
@@ -453,7 +405,7 @@ public class Favorites {
 									+ "<br>they could not be accessed or because of a network error."
 									+ "<br>This should not happen -- but downloading the other"
 									+ "<br>"
-									+ (faves.size() - numFailedDownloads)
+									+ (numFaves - numFailedDownloads)
 									+ " photos was successful.",
 							"Download Failed", JOptionPane.ERROR_MESSAGE);
 
@@ -464,116 +416,286 @@ public class Favorites {
 		});
 	}
 
-	private static void downloadImage(BufferedInputStream inS,
-			BufferedOutputStream outS, int fileSize,
-			final JProgressBar fileProgress) throws IOException {
-		int numBytesRead = 0;
-		int bytesCopied = 0;
-		byte[] bytesRead = new byte[512];
-		while (true) {
-			// read bytes; retry three times in case of timeout
-			boolean success = false;
-			int timeOutCount = 0;
-			while (!success) {
-				try {
-					numBytesRead = inS.read(bytesRead, 0, 512);
-					success = true;
-				} catch (IOException e) {
-					/*
-					 * An IOException at this point often means that the
-					 * connection has timed out or that there is a network issue
-					 * of some sort. This should result in the more specific
-					 * SocketTimeoutException; however, it can also result in
-					 * other IOExceptions such as a generic '504 gateway
-					 * timeout'. Therefore we retry retry downloading the whole
-					 * image once.
-					 */
-					timeOutCount++;
-					if (timeOutCount > 2)
-						throw e;
-					// try again
-					success = false;
-					Tracer.trace("Connection error (IOException) #"
-							+ timeOutCount + ", retrying last block...");
-				}
-			}
-			// end of file? -- then stop loop
-			if (numBytesRead < 1)
-				break;
-			// write bytes and update count
-			outS.write(bytesRead, 0, numBytesRead);
-			bytesCopied += numBytesRead;
-
-			// update label with progress if file size is
-			// available
-			final int curBytesCopied = bytesCopied;
-			if (fileSize > 0) {
-				SwingUtilities.invokeLater(new Runnable() {
-					public void run() {
-						fileProgress.setValue(curBytesCopied);
-						fileProgress.revalidate();
-					}
-				});
-			}
+	/**
+	 * Fetches a page of the list of faves with everything needed to plan
+	 * their downloads.
+	 * 
+	 * @param favI
+	 *            The favorites interface.
+	 * @param page
+	 *            The page, starting at 1.
+	 * @param metadata
+	 *            Whether to include the extras of the metadata sidecar.
+	 * @return The faves on the page; empty if there are no more.
+	 */
+	static PhotoList<Photo> fetchPage(FavoritesInterface favI, int page,
+			boolean metadata) throws FlickrException {
+		Tracer.trace("Now getting page " + page + " of list of faves...");
+		Set<String> extras = new HashSet<String>();
+		extras.add("media");
+		extras.add("date_upload");
+		extras.add("originalsecret");
+		extras.add("url_o");
+		extras.add("url_k");
+		extras.add("url_h");
+		extras.add("url_b");
+		if (metadata)
+			extras.addAll(Arrays.asList(MetadataSidecar.EXTRAS));
+
+		PageFetchEvent fetch = new PageFetchEvent();
+		fetch.begin();
+		PhotoList<Photo> pl = favI.getList(null, 500, page, extras);
+		fetch.end();
+		if (fetch.shouldCommit()) {
+			fetch.page = page;
+			fetch.faves = pl.size();
+			fetch.commit();
+		}
+		Metrics.FAVES_LISTED.add(pl.size());
+		return pl;
+	}
+
+	/**
+	 * Deletes a downloaded fave that is no longer a fave, along with its
+	 * checksum and renditions.
+	 */
+	static void deleteStaleFave(File toCheck, ChecksumIndex checksums,
+			Renditions renditions) {
+		Tracer.trace("Now deleting stale fave " + toCheck.getName());
+		DeleteEvent delete = new DeleteEvent();
+		delete.begin();
+		toCheck.delete();
+		delete.end();
+		if (delete.shouldCommit()) {
+			delete.file = toCheck.getName();
+			delete.commit();
 		}
+		checksums.remove(toCheck.getName());
+		if (renditions != null)
+			renditions.remove(toCheck.getName());
 	}
 
-	private static BufferedImage getBufferedImage(File stream)
-			throws FileNotFoundException, IOException {
-		BufferedImage bufferedImage = null;
-		ImageInputStream imageStream = new FileImageInputStream(stream);
+	/**
+	 * Marks a packed fave that is no longer a fave as removed.
+	 */
+	static void removeStalePacked(String name, PackArchive pack,
+			ChecksumIndex checksums, Renditions renditions) {
+		Tracer.trace("Now removing stale fave " + name
+				+ " from the pack archive");
+		pack.remove(name);
+		checksums.remove(name);
+		if (renditions != null)
+			renditions.remove(name);
+	}
 
-		Iterator<ImageReader> iter = ImageIO.getImageReaders(imageStream);
+	/**
+	 * Lists the fave files in a download directory and its shards.
+	 */
+	private static List<File> listFaveFiles(File dir) {
+		return Layout.listFiles(dir, new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return isFaveFile(name);
+			}
+		});
+	}
 
-		Exception lastException = null;
-		while (iter.hasNext()) {
-			ImageReader reader = null;
+	/**
+	 * Moves all loose faves into the pack archive, compacts it if too much
+	 * of it is taken up by removed faves, and closes it. Errors are only
+	 * traced; faves that could not be packed stay loose until the next run.
+	 */
+	static void packFaves(PackArchive pack, File dir,
+			final JLabel progressMsg) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				progressMsg.setText("Packing faves...");
+				progressMsg.revalidate();
+			}
+		});
+		try {
+			int packed = pack.absorb(listFaveFiles(dir));
+			Tracer.trace("Packed " + packed + " faves...");
+			long freed = pack.compactIfNeeded();
+			if (freed > 0)
+				Tracer.trace("Compacted the pack archive, freeing "
+						+ (freed >> 20) + " MB...");
+		} catch (IOException e) {
+			Tracer.trace(Level.WARN, "Could not pack faves: " + e);
+		} finally {
 			try {
-				reader = (ImageReader) iter.next();
-				ImageReadParam param = reader.getDefaultReadParam();
-				reader.setInput(imageStream, true, true);
-				Iterator<ImageTypeSpecifier> imageTypes = reader
-						.getImageTypes(0);
-				while (imageTypes.hasNext()) {
-					ImageTypeSpecifier imageTypeSpecifier = imageTypes.next();
-					int bufferedImageType = imageTypeSpecifier
-							.getBufferedImageType();
-					if (bufferedImageType == BufferedImage.TYPE_BYTE_GRAY) {
-						param.setDestinationType(imageTypeSpecifier);
-						break;
-					}
-				}
-				bufferedImage = reader.read(0, param);
-				if (null != bufferedImage)
-					break;
-			} catch (Exception e) {
-				lastException = e;
-			} finally {
-				if (null != reader)
-					reader.dispose();
+				pack.close();
+			} catch (IOException e) {
+				Tracer.trace(Level.WARN, "Could not close the pack archive: "
+						+ e);
 			}
 		}
-		// If you don't have an image at the end of all readers
-		if (null == bufferedImage) {
-			if (null != lastException) {
-				throw new RuntimeException(lastException);
-			}
+	}
+
+	/**
+	 * @param name
+	 *            A file name.
+	 * @return true if the name has the format of a downloaded fave, i.e.
+	 *         "&lt;id&gt;.jpg" or "&lt;id&gt;.mp4" with an id of at least seven
+	 *         digits.
+	 */
+	static boolean isFaveFile(String name) {
+		return FAVE_FILE.matcher(name).matches();
+	}
+
+	/**
+	 * @param name
+	 *            A file name.
+	 * @return true if the name has the format of an exclusion file, i.e.
+	 *         ".&lt;id&gt;.jpg.exclude" or ".&lt;id&gt;.mp4.exclude".
+	 */
+	static boolean isExclusionFile(String name) {
+		return EXCLUSION_FILE.matcher(name).matches();
+	}
+
+	/**
+	 * Finds the downloaded faves that are no longer faves.
+	 * 
+	 * @param downloadedFaves
+	 *            The fave files in the download directory.
+	 * @param faveIds
+	 *            The ids of all current faves.
+	 * @return The files whose id is not among faveIds.
+	 */
+	static List<File> findStaleFaves(File[] downloadedFaves,
+			Set<String> faveIds) {
+		List<File> stale = new ArrayList<File>();
+		for (File toCheck : downloadedFaves) {
+			// cut off ".jpg" or ".mp4"
+			String name = toCheck.getName();
+			if (!faveIds.contains(name.substring(0, name.length() - 4)))
+				stale.add(toCheck);
 		}
-		return bufferedImage;
+		return stale;
 	}
 
-	private static HttpURLConnection openHttpConnection(String url)
-			throws IOException {
-		if (url == null)
-			return null;
+	/**
+	 * Creates the download engine selected via the "downloadEngine" option:
+	 * "classic", "async" or "threads". The default is "threads" if virtual
+	 * threads are enabled and "classic" otherwise.
+	 * 
+	 * @return A new download engine.
+	 */
+	static DownloadEngine createEngine() {
+		String name = Options.getString("downloadEngine",
+				Threads.isVirtual() ? "threads" : "classic");
+		if ("threads".equals(name)) {
+			Tracer.trace("Using one thread per download...");
+			return new ThreadPerTaskDownloadEngine(Options.getInt(
+					"maxConcurrentDownloads", 64));
+		}
+		if ("async".equals(name)) {
+			Tracer.trace("Using the asynchronous download engine...");
+			return new AsyncDownloadEngine(Options.getInt(
+					"maxConcurrentDownloads", 64), Options.getInt(
+					"downloadThreads", 4));
+		}
+		return new ClassicDownloadEngine();
+	}
+
+	/**
+	 * Shows the progress reported by the download engine in the GUI. The
+	 * transfers are handed to the transfer monitor, which samples them on
+	 * its own; the total progress bar and the message are updated at most
+	 * once per pass of the event dispatch thread, however many faves finish
+	 * in the meantime.
+	 */
+	static class SwingProgress implements DownloadListener {
+
+		/** The total number of faves. */
+		private final int numFaves;
+
+		/** The number of faves handled so far. */
+		private final AtomicInteger handled;
+
+		/** The latest status message. */
+		private volatile String status = null;
+
+		/** Whether an update of the progress bar and message is queued. */
+		private final AtomicBoolean updateQueued = new AtomicBoolean();
+
+		private final JProgressBar totalProgress;
+
+		/** Shows the individual transfers; may be null. */
+		private final TransferMonitor transfers;
+
+		private final JLabel progressMsg;
+
+		SwingProgress(int numFaves, int alreadyHandled,
+				JProgressBar totalProgress, TransferMonitor transfers,
+				JLabel progressMsg) {
+			this.numFaves = numFaves;
+			this.handled = new AtomicInteger(alreadyHandled);
+			this.totalProgress = totalProgress;
+			this.transfers = transfers;
+			this.progressMsg = progressMsg;
+			update();
+		}
+
+		/**
+		 * Counts faves that were handled without being downloaded, e.g.
+		 * because they were already there.
+		 */
+		void skipped(int count) {
+			if (count > 0) {
+				handled.addAndGet(count);
+				update();
+			}
+		}
+
+		public void statusChanged(DownloadTask task, String status) {
+			this.status = "" + task.getNumber() + "/" + numFaves + ": "
+					+ status;
+			update();
+			if (transfers != null)
+				transfers.statusChanged(task, status);
+		}
+
+		public void transferStarted(DownloadTask task, long size) {
+			if (transfers != null)
+				transfers.transferStarted(task, size);
+		}
+
+		public void bytesTransferred(DownloadTask task, long bytesCopied) {
+			if (transfers != null)
+				transfers.bytesTransferred(task, bytesCopied);
+		}
+
+		public void taskFailed(DownloadTask task, Throwable cause) {
+			if (transfers != null)
+				transfers.taskFailed(task, cause);
+		}
 
-		// disable redirects to make sure we don't get the image not
-		// available image
-		HttpURLConnection.setFollowRedirects(false);
-		HttpURLConnection largestUrl = (HttpURLConnection) new URL(url)
-				.openConnection();
-		largestUrl.connect();
+		public void taskFinished(DownloadTask task, Outcome outcome) {
+			handled.incrementAndGet();
+			update();
+			if (transfers != null)
+				transfers.taskFinished(task, outcome);
+		}
 
-		return largestUrl;
+		/**
+		 * Shows the current count and status, unless an update is still
+		 * queued, which will then show them.
+		 */
+		private void update() {
+			if (!updateQueued.compareAndSet(false, true))
+				return;
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					updateQueued.set(false);
+					totalProgress.setValue(handled.get());
+					totalProgress.revalidate();
+					String current = status;
+					if (current != null) {
+						progressMsg.setText(current);
+						progressMsg.revalidate();
+					}
+				}
+			});
+		}
 	}
 }
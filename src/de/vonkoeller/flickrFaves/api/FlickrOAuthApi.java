@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.api;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.scribe.builder.api.FlickrApi;
+import org.scribe.exceptions.OAuthSignatureException;
+import org.scribe.model.Token;
+import org.scribe.services.SignatureService;
+import org.scribe.utils.OAuthEncoder;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Scribe's FlickrApi, with two changes: signatures are encoded with
+ *         java.util.Base64, as scribe's default needs JAXB, which is no
+ *         longer part of Java 11; and if the "apiHost" option is set, the
+ *         OAuth endpoints are on that host.
+ */
+public class FlickrOAuthApi extends FlickrApi {
+
+	/** The path of the OAuth endpoints on a configured API host. */
+	private static final String PATH = "/services/oauth/";
+
+	@Override
+	public String getRequestTokenEndpoint() {
+		if (!InterfaceHolder.isHostConfigured())
+			return super.getRequestTokenEndpoint();
+		return InterfaceHolder.getHostUrl() + PATH + "request_token";
+	}
+
+	@Override
+	public String getAccessTokenEndpoint() {
+		if (!InterfaceHolder.isHostConfigured())
+			return super.getAccessTokenEndpoint();
+		return InterfaceHolder.getHostUrl() + PATH + "access_token";
+	}
+
+	@Override
+	public String getAuthorizationUrl(Token requestToken) {
+		if (!InterfaceHolder.isHostConfigured())
+			return super.getAuthorizationUrl(requestToken);
+		return InterfaceHolder.getHostUrl() + PATH + "authorize?oauth_token="
+				+ requestToken.getToken();
+	}
+
+	@Override
+	public SignatureService getSignatureService() {
+		return new HmacSha1SignatureService();
+	}
+
+	/**
+	 * HMAC-SHA1 signatures exactly like scribe's, without JAXB.
+	 */
+	static class HmacSha1SignatureService implements SignatureService {
+
+		public String getSignature(String baseString, String apiSecret,
+				String tokenSecret) {
+			String key = OAuthEncoder.encode(apiSecret) + '&'
+					+ OAuthEncoder.encode(tokenSecret);
+			try {
+				Mac mac = Mac.getInstance("HmacSHA1");
+				mac.init(new SecretKeySpec(
+						key.getBytes(StandardCharsets.UTF_8), "HmacSHA1"));
+				return Base64.getEncoder().encodeToString(
+						mac.doFinal(baseString.getBytes(StandardCharsets.UTF_8)));
+			} catch (Exception e) {
+				throw new OAuthSignatureException(baseString, e);
+			}
+		}
+
+		public String getSignatureMethod() {
+			return "HMAC-SHA1";
+		}
+	}
+}
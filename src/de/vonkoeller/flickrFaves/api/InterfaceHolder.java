@@ -18,13 +18,14 @@
  */
 package de.vonkoeller.flickrFaves.api;
 
-import javax.xml.parsers.ParserConfigurationException;
-
 import com.flickr4java.flickr.Flickr;
 import com.flickr4java.flickr.REST;
 import com.flickr4java.flickr.RequestContext;
+import com.flickr4java.flickr.Transport;
 
+import de.vonkoeller.flickrFaves.config.Options;
 import de.vonkoeller.flickrFaves.exceptions.FlickrFaveException;
+import de.vonkoeller.flickrFaves.gui.Constants;
 
 /**
  * @author Magnus von Koeller
@@ -42,6 +43,15 @@ public class InterfaceHolder {
 	/** The current flickr instance. */
 	private static Flickr flickr = null;
 
+	/** The compressing REST transport, if enabled. */
+	private static CompressedREST compressedTransport = null;
+
+	/** The API response cache, if enabled. */
+	private static CachingTransport apiCache = null;
+
+	/** Picks up the dates faves were faved, if metadata is written. */
+	private static FaveDateTransport faveDates = null;
+
 	/**
 	 * This class is a singleton and therefore not instantiable.
 	 */
@@ -58,7 +68,7 @@ public class InterfaceHolder {
 	public static Flickr getFlickrI() {
 		if (flickr == null) {
 			try {
-				flickr = new Flickr(API_KEY, SHARED_SECRET, new REST());
+				flickr = new Flickr(API_KEY, SHARED_SECRET, buildTransport());
 			} catch (IllegalArgumentException e) {
 				throw new FlickrFaveException(
 						"Could not instantiate Flickr object.", e);
@@ -68,4 +78,82 @@ public class InterfaceHolder {
 		}
 		return flickr;
 	}
+
+	/**
+	 * Builds the transport used to talk to Flickr. Unless disabled via the
+	 * "compressedTransport" option, responses are requested compressed. The
+	 * "apiHost", "apiPort" and "apiScheme" options point it at another host,
+	 * e.g. a local stand-in for Flickr. The transport is wrapped in the
+	 * response cache if enabled via the "apiCache" option, and picks up the
+	 * dates faves were faved if the "metadata" option is set.
+	 * 
+	 * @return The transport.
+	 */
+	private static Transport buildTransport() {
+		Transport transport;
+		if (Options.getBoolean("compressedTransport", true)) {
+			compressedTransport = new CompressedREST();
+			transport = compressedTransport;
+		} else {
+			transport = new REST();
+		}
+		transport.setHost(Options.getString("apiHost", transport.getHost()));
+		transport.setPort(Options.getInt("apiPort", transport.getPort()));
+		transport.setScheme(Options.getString("apiScheme",
+				transport.getScheme()));
+		if (Options.getBoolean("apiCache", false)) {
+			apiCache = new CachingTransport(transport, Options.getDir(
+					"apiCacheDir", "cache"), Options.getLong(
+					"apiCacheTtlSeconds", Constants.API_CACHE_TTL) * 1000,
+					Options.getLong("apiCacheMaxBytes",
+							Constants.API_CACHE_MAX_BYTES));
+			transport = apiCache;
+		}
+		if (Options.getBoolean("metadata", false)) {
+			faveDates = new FaveDateTransport(transport);
+			transport = faveDates;
+		}
+		return transport;
+	}
+
+	/**
+	 * @return true if the API host has been changed via the "apiHost" option.
+	 */
+	static boolean isHostConfigured() {
+		return Options.getString("apiHost", null) != null;
+	}
+
+	/**
+	 * @return The URL of the configured API host without path, e.g.
+	 *         "http://localhost:8099". The port is only included if set via
+	 *         the "apiPort" option.
+	 */
+	static String getHostUrl() {
+		int port = Options.getInt("apiPort", 0);
+		return Options.getString("apiScheme", "https") + "://"
+				+ Options.getString("apiHost", "api.flickr.com")
+				+ (port > 0 ? ":" + port : "");
+	}
+
+	/**
+	 * @return The compressing transport, or null if it is disabled.
+	 */
+	public static CompressedREST getCompressedTransport() {
+		return compressedTransport;
+	}
+
+	/**
+	 * @return The API response cache, or null if caching is disabled.
+	 */
+	public static CachingTransport getApiCache() {
+		return apiCache;
+	}
+
+	/**
+	 * @return The transport picking up the dates faves were faved, or null if
+	 *         no metadata is written.
+	 */
+	public static FaveDateTransport getFaveDates() {
+		return faveDates;
+	}
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.api;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Date;
+
+import com.flickr4java.flickr.people.User;
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.tags.Tag;
+
+import de.vonkoeller.flickrFaves.config.Options;
+import de.vonkoeller.flickrFaves.debug.Tracer;
+import de.vonkoeller.flickrFaves.metrics.RunReport;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Writes title, owner, license, tags and dates of every fave to
+ *         "metadata.jsonl" in the download directory, one JSON object per
+ *         line in the order of the list of faves. The metadata comes with the
+ *         pages of the list, so no further API calls are needed. Lines are
+ *         written as each page arrives into a temporary file, which replaces
+ *         the previous file only once the whole list has been read.
+ */
+public class MetadataSidecar {
+
+	/** The name of the file within the download directory. */
+	public static final String FILENAME = "metadata.jsonl";
+
+	/** The extras to request with each page of the list of faves. */
+	public static final String[] EXTRAS = { "license", "owner_name", "tags" };
+
+	/** The names of Flickr's licenses by id. */
+	private static final String[] LICENSES = { "All Rights Reserved",
+			"CC BY-NC-SA 2.0", "CC BY-NC 2.0", "CC BY-NC-ND 2.0", "CC BY 2.0",
+			"CC BY-SA 2.0", "CC BY-ND 2.0", "No known copyright restrictions",
+			"United States Government Work", "CC0 1.0", "Public Domain Mark 1.0" };
+
+	/** The file written to. */
+	private final File file;
+
+	/** The file being written until the list is complete. */
+	private final File tmp;
+
+	private final Writer out;
+
+	/** The number of faves written. */
+	private int written = 0;
+
+	/**
+	 * Starts the sidecar if enabled via the "metadata" option.
+	 *
+	 * @param dir
+	 *            The download directory.
+	 * @return The sidecar or null if disabled.
+	 */
+	public static MetadataSidecar fromOptions(File dir) throws IOException {
+		if (!Options.getBoolean("metadata", false))
+			return null;
+		return new MetadataSidecar(dir);
+	}
+
+	/**
+	 * @param dir
+	 *            The download directory.
+	 */
+	public MetadataSidecar(File dir) throws IOException {
+		file = new File(dir, FILENAME);
+		tmp = new File(dir, FILENAME + ".tmp");
+		dir.mkdirs();
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+				tmp), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Writes the line of one fave.
+	 *
+	 * @param photo
+	 *            The fave's metadata from the list of faves.
+	 * @param faved
+	 *            When it was faved in seconds since the epoch, or -1 if
+	 *            unknown.
+	 */
+	public void write(Photo photo, long faved) throws IOException {
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("{\"id\":").append(RunReport.quote(photo.getId()));
+		field(sb, "media", photo.getMedia());
+		field(sb, "title", photo.getTitle());
+		User owner = photo.getOwner();
+		if (owner != null) {
+			field(sb, "owner", owner.getId());
+			field(sb, "ownerName", owner.getUsername());
+		}
+		field(sb, "license", photo.getLicense());
+		field(sb, "licenseName", licenseName(photo.getLicense()));
+		sb.append(",\"tags\":[");
+		String sep = "";
+		if (photo.getTags() != null)
+			for (Tag tag : photo.getTags()) {
+				sb.append(sep).append(RunReport.quote(tag.getValue()));
+				sep = ",";
+			}
+		sb.append(']');
+		if (faved >= 0)
+			field(sb, "faved", Instant.ofEpochSecond(faved).toString());
+		Date posted = photo.getDatePosted();
+		if (posted != null)
+			field(sb, "uploaded", posted.toInstant().toString());
+		sb.append("}\n");
+		out.write(sb.toString());
+		written++;
+	}
+
+	/**
+	 * Replaces the previous file with the one written.
+	 *
+	 * @return The number of faves written.
+	 */
+	public int commit() throws IOException {
+		out.close();
+		Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		return written;
+	}
+
+	/**
+	 * Discards what has been written, keeping the previous file.
+	 */
+	public void abort() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			Tracer.trace("Could not close " + tmp + ": " + e);
+		}
+		tmp.delete();
+	}
+
+	/**
+	 * @return The name of a Flickr license or null if unknown.
+	 */
+	static String licenseName(String id) {
+		try {
+			int n = Integer.parseInt(id);
+			return n >= 0 && n < LICENSES.length ? LICENSES[n] : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static void field(StringBuilder sb, String name, String value) {
+		if (value != null && value.length() > 0)
+			sb.append(",\"").append(name).append("\":")
+					.append(RunReport.quote(value));
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.api;
+
+import java.io.File;
+
+import com.flickr4java.flickr.photos.Photo;
+
+import de.vonkoeller.flickrFaves.archive.PackArchive;
+import de.vonkoeller.flickrFaves.debug.Tracer;
+import de.vonkoeller.flickrFaves.download.ChecksumIndex;
+import de.vonkoeller.flickrFaves.download.ContentStore;
+import de.vonkoeller.flickrFaves.download.DownloadListener.Outcome;
+import de.vonkoeller.flickrFaves.download.DownloadTask;
+import de.vonkoeller.flickrFaves.download.Layout;
+import de.vonkoeller.flickrFaves.download.MetadataFilter;
+import de.vonkoeller.flickrFaves.metrics.Metrics;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Decides for each listed fave whether it needs to be downloaded and
+ *         where to, skipping faves that are unwanted, excluded or already
+ *         there.
+ */
+class Planner {
+
+	private final File dir;
+
+	private final Layout layout;
+
+	private final ChecksumIndex checksums;
+
+	private final boolean downloadPhotos;
+
+	private final boolean downloadVideos;
+
+	private final boolean overwrite;
+
+	/** The minimum size in pixels, also for faves from the store. */
+	private final int minSize;
+
+	/** Unwanted dimensions; may be null. */
+	private final MetadataFilter filter;
+
+	/** The shared content store; may be null. */
+	private final ContentStore store;
+
+	/** The pack archive; may be null. */
+	private final PackArchive pack;
+
+	Planner(File dir, Layout layout, ChecksumIndex checksums,
+			boolean downloadPhotos, boolean downloadVideos, boolean overwrite,
+			int minSize, MetadataFilter filter, ContentStore store,
+			PackArchive pack) {
+		this.dir = dir;
+		this.layout = layout;
+		this.checksums = checksums;
+		this.downloadPhotos = downloadPhotos;
+		this.downloadVideos = downloadVideos;
+		this.overwrite = overwrite;
+		this.minSize = minSize;
+		this.filter = filter;
+		this.store = store;
+		this.pack = pack;
+	}
+
+	/**
+	 * @param curPhoto
+	 *            The fave's metadata from the list of faves.
+	 * @param number
+	 *            The position of the fave in the list, starting at 1.
+	 * @return The download to make or null if the fave is skipped.
+	 */
+	DownloadTask plan(Photo curPhoto, int number) {
+		final String cur = curPhoto.getId();
+
+		// initialize base filename and check whether to download at all
+		String curFilename;
+		if ("photo".equals(curPhoto.getMedia())) {
+			if (!downloadPhotos) {
+				Tracer.debug(() -> "Skipping " + cur
+						+ " because it is a photo and "
+						+ "we are not downloading photos...");
+				return null;
+			} else {
+				curFilename = cur + ".jpg";
+			}
+		} else if ("video".equals(curPhoto.getMedia())) {
+			if (!downloadVideos) {
+				Tracer.debug(() -> "Skipping " + cur
+						+ " because it is a video and "
+						+ "we are not downloading videos...");
+				return null;
+			} else {
+				curFilename = cur + ".mp4";
+			}
+		} else {
+			throw new IllegalStateException("Unknown media type: "
+					+ curPhoto.getMedia());
+		}
+		final DownloadTask task = new DownloadTask(curPhoto, layout.dirFor(
+				dir, cur, curPhoto), curFilename, number);
+		task.setChecksumIndex(checksums);
+
+		// check whether this image should be excluded
+		if (task.getExclusionFile().exists()) {
+			Tracer.debug(() -> "Excluding " + task
+					+ " because of exlcusion file...");
+			Metrics.FAVES_EXCLUDED.inc();
+			return null;
+		}
+
+		// check whether the listed dimensions are wanted at all
+		final String rejection = filter == null
+				|| !"photo".equals(curPhoto.getMedia()) ? null : filter
+				.reject(curPhoto);
+		if (rejection != null) {
+			Tracer.debug(() -> "Filtering out " + task + ": " + rejection);
+			Metrics.FAVES_FILTERED.inc();
+			return null;
+		}
+
+		// check whether this file is already downloaded; in that case
+		// and if overwriting is disabled, we can save time by skipping
+		// the resolution and file size check
+		if (task.getTarget().exists() && !overwrite) {
+			Tracer.debug(() -> "Skipping file " + task
+					+ " -- overwrite disabled...");
+			Metrics.FAVES_SKIPPED.inc();
+			return null;
+		}
+
+		// packed faves can only be compared by downloading them
+		if (pack != null && pack.contains(curFilename) && !overwrite) {
+			Tracer.debug(() -> "Skipping file " + task
+					+ " -- already packed...");
+			Metrics.FAVES_SKIPPED.inc();
+			return null;
+		}
+
+		// maybe another directory already has this fave
+		task.getTarget().getParentFile().mkdirs();
+		Outcome stored = store == null ? null : store.linkInto(task, minSize);
+		if (stored == Outcome.SKIPPED) {
+			Metrics.FAVES_SKIPPED.inc();
+			return null;
+		}
+		if (stored == Outcome.TOO_SMALL) {
+			Metrics.FAVES_EXCLUDED.inc();
+			return null;
+		}
+		return task;
+	}
+}
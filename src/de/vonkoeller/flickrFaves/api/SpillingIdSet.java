@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.api;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import de.vonkoeller.flickrFaves.debug.Tracer;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         A set of numeric fave ids whose memory use is bounded. Ids are
+ *         collected in an array; whenever it is full, it is sorted and
+ *         written to a file in the spill directory, which is on disk rather
+ *         than in a tmpfs /tmp. Once all ids are added, the files are
+ *         merged into one sorted file which is mapped into memory for binary
+ *         searches. As long as the ids fit into the array, nothing is
+ *         written.
+ */
+class SpillingIdSet {
+
+	/** The spill directory within the download directory by default. */
+	static final String DIRNAME = ".flickrFaves-ids";
+
+	/** Ids added since the last spill. */
+	private final long[] buffer;
+
+	/** Where spilled ids are written; created when first needed. */
+	private final File spillDir;
+
+	/** Whether spillDir was created here and is deleted again. */
+	private boolean createdSpillDir = false;
+
+	private int buffered = 0;
+
+	/** Sorted runs of ids written so far. */
+	private final List<File> runs = new ArrayList<File>();
+
+	/** All ids, sorted and without duplicates, once finished. */
+	private LongBuffer sorted = null;
+
+	/** The file sorted is mapped from, if the ids were spilled. */
+	private File merged = null;
+
+	/**
+	 * @param threshold
+	 *            The number of ids kept in memory before spilling them.
+	 * @param spillDir
+	 *            The directory to write spilled ids to.
+	 */
+	SpillingIdSet(int threshold, File spillDir) {
+		buffer = new long[Math.max(1, threshold)];
+		this.spillDir = spillDir;
+	}
+
+	/**
+	 * Adds an id; must not be called once finished.
+	 */
+	void add(long id) throws IOException {
+		if (buffered == buffer.length)
+			spill();
+		buffer[buffered++] = id;
+	}
+
+	/**
+	 * Sorts and, if ids were spilled, merges them so that they can be
+	 * looked up.
+	 */
+	void finish() throws IOException {
+		if (runs.isEmpty()) {
+			Arrays.sort(buffer, 0, buffered);
+			sorted = LongBuffer.wrap(buffer, 0, dedupe(buffer, buffered));
+			return;
+		}
+		spill();
+		merged = File.createTempFile("flickrFaves-ids", ".merged", spillDir);
+		long count = merge(runs, merged);
+		for (File run : runs)
+			run.delete();
+		runs.clear();
+		if (count == 0) {
+			sorted = LongBuffer.allocate(0);
+			return;
+		}
+		RandomAccessFile raf = new RandomAccessFile(merged, "r");
+		try {
+			sorted = raf.getChannel().map(MapMode.READ_ONLY, 0, count * 8)
+					.asLongBuffer();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return Whether an id was added; only valid once finished.
+	 */
+	boolean contains(long id) {
+		int low = 0;
+		int high = sorted.limit() - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long value = sorted.get(mid);
+			if (value < id)
+				low = mid + 1;
+			else if (value > id)
+				high = mid - 1;
+			else
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return The number of distinct ids; only valid once finished.
+	 */
+	int size() {
+		return sorted.limit();
+	}
+
+	/**
+	 * @return Whether the ids did not fit into memory.
+	 */
+	boolean isSpilled() {
+		return merged != null || !runs.isEmpty();
+	}
+
+	/**
+	 * Deletes the spilled files and, if it was created for them, the spill
+	 * directory.
+	 */
+	void close() {
+		for (File run : runs)
+			run.delete();
+		runs.clear();
+		sorted = null;
+		// a mapped file cannot be deleted on all platforms until unmapped
+		if (merged != null && !merged.delete())
+			merged.deleteOnExit();
+		if (createdSpillDir)
+			spillDir.delete();
+	}
+
+	private void spill() throws IOException {
+		if (buffered == 0)
+			return;
+		Arrays.sort(buffer, 0, buffered);
+		int count = dedupe(buffer, buffered);
+		if (spillDir.mkdirs())
+			createdSpillDir = true;
+		File run = File.createTempFile("flickrFaves-ids", ".run", spillDir);
+		runs.add(run);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(run)));
+		try {
+			for (int i = 0; i < count; i++)
+				out.writeLong(buffer[i]);
+		} finally {
+			out.close();
+		}
+		Tracer.debug(() -> "Spilled " + count + " fave ids to " + run);
+		buffered = 0;
+	}
+
+	/**
+	 * Moves the distinct values of a sorted array to its start.
+	 *
+	 * @return The number of distinct values.
+	 */
+	private static int dedupe(long[] values, int length) {
+		int count = 0;
+		for (int i = 0; i < length; i++)
+			if (count == 0 || values[count - 1] != values[i])
+				values[count++] = values[i];
+		return count;
+	}
+
+	/**
+	 * Merges sorted runs into one sorted file without duplicates.
+	 *
+	 * @return The number of ids written.
+	 */
+	private static long merge(List<File> runs, File target) throws IOException {
+		PriorityQueue<Run> heads = new PriorityQueue<Run>();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(target)));
+		long count = 0;
+		try {
+			for (File file : runs) {
+				Run run = new Run(file);
+				if (run.advance())
+					heads.add(run);
+			}
+			boolean first = true;
+			long last = 0;
+			while (!heads.isEmpty()) {
+				Run run = heads.poll();
+				if (first || run.head != last) {
+					out.writeLong(run.head);
+					last = run.head;
+					first = false;
+					count++;
+				}
+				if (run.advance())
+					heads.add(run);
+			}
+		} finally {
+			out.close();
+			for (Run run : heads)
+				run.in.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Reads a sorted run one id at a time.
+	 */
+	private static class Run implements Comparable<Run> {
+
+		final DataInputStream in;
+
+		long head;
+
+		Run(File file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+		}
+
+		/**
+		 * @return false, after closing the run, if there are no more ids.
+		 */
+		boolean advance() throws IOException {
+			try {
+				head = in.readLong();
+				return true;
+			} catch (EOFException e) {
+				in.close();
+				return false;
+			}
+		}
+
+		public int compareTo(Run other) {
+			return Long.compare(head, other.head);
+		}
+	}
+}
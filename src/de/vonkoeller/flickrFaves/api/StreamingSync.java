@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.api;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import javax.swing.JLabel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
+
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.favorites.FavoritesInterface;
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.PhotoList;
+
+import de.vonkoeller.flickrFaves.api.Favorites.SwingProgress;
+import de.vonkoeller.flickrFaves.archive.PackArchive;
+import de.vonkoeller.flickrFaves.config.Options;
+import de.vonkoeller.flickrFaves.debug.Tracer;
+import de.vonkoeller.flickrFaves.debug.Tracer.Level;
+import de.vonkoeller.flickrFaves.download.Budget;
+import de.vonkoeller.flickrFaves.download.ChecksumIndex;
+import de.vonkoeller.flickrFaves.download.ContentStore;
+import de.vonkoeller.flickrFaves.download.DiskSpace;
+import de.vonkoeller.flickrFaves.download.DownloadEngine;
+import de.vonkoeller.flickrFaves.download.DownloadListener;
+import de.vonkoeller.flickrFaves.download.DownloadTask;
+import de.vonkoeller.flickrFaves.download.Layout;
+import de.vonkoeller.flickrFaves.download.MetadataFilter;
+import de.vonkoeller.flickrFaves.download.Scheduler;
+import de.vonkoeller.flickrFaves.exceptions.FlickrFaveException;
+import de.vonkoeller.flickrFaves.gui.Constants;
+import de.vonkoeller.flickrFaves.gui.TransferMonitor;
+import de.vonkoeller.flickrFaves.metrics.Metrics;
+import de.vonkoeller.flickrFaves.metrics.RunReport;
+import de.vonkoeller.flickrFaves.rendition.Renditions;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Downloads faves page by page while they are listed, enabled with
+ *         the "streaming" option. Each page of the list is planned,
+ *         downloaded and dropped before the next one is fetched, so that
+ *         the metadata of all faves is never held at once. The faves of a
+ *         page are downloaded in schedule order; the pages themselves in
+ *         list order. Stale faves are found by listing the ids of all
+ *         faves once more after downloading; the ids are spilled to disk
+ *         once there are more than the "idSpillThreshold" option allows.
+ */
+class StreamingSync {
+
+	private final File dir;
+
+	private final boolean downloadPhotos;
+
+	private final boolean downloadVideos;
+
+	private final boolean overwrite;
+
+	private final int minSize;
+
+	/** The maximum number of faves to download. */
+	private final int maxFaves;
+
+	private final boolean deleteStale;
+
+	private final JProgressBar totalProgress;
+
+	/** Shows the individual transfers; may be null. */
+	private final TransferMonitor transfers;
+
+	private final JLabel progressMsg;
+
+	/** The number of faves to download, once the first page is listed. */
+	private int numFaves = 0;
+
+	StreamingSync(File dir, boolean downloadPhotos, boolean downloadVideos,
+			boolean overwrite, int minSize, int maxFaves, boolean deleteStale,
+			JProgressBar totalProgress, TransferMonitor transfers,
+			JLabel progressMsg) {
+		this.dir = dir;
+		this.downloadPhotos = downloadPhotos;
+		this.downloadVideos = downloadVideos;
+		this.overwrite = overwrite;
+		this.minSize = minSize;
+		this.maxFaves = maxFaves;
+		this.deleteStale = deleteStale;
+		this.totalProgress = totalProgress;
+		this.transfers = transfers;
+		this.progressMsg = progressMsg;
+	}
+
+	/**
+	 * @return The number of faves that were to be downloaded.
+	 */
+	int getNumFaves() {
+		return numFaves;
+	}
+
+	/**
+	 * Lists and downloads all faves, then deletes stale ones if enabled.
+	 *
+	 * @param favI
+	 *            The favorites interface.
+	 * @return The number of faves that could not be downloaded.
+	 */
+	int run(FavoritesInterface favI) {
+		// the time budget includes listing the faves
+		Budget budget = Budget.fromOptions();
+		RunReport report = new RunReport(dir);
+		ChecksumIndex checksums = new ChecksumIndex(dir);
+		Renditions renditions = Renditions.fromOptions(dir, checksums);
+		Layout layout = Layout.create();
+		boolean migrating;
+		PackArchive pack;
+		MetadataSidecar sidecar;
+		try {
+			// faves are moved to another layout one by one as they are
+			// listed
+			migrating = layout.needsMigration(dir);
+			pack = PackArchive.fromOptions(dir);
+			sidecar = MetadataSidecar.fromOptions(dir);
+		} catch (IOException e) {
+			throw new FlickrFaveException("Error while preparing the "
+					+ "download directory.", e);
+		}
+		SpillingIdSet ids = null;
+
+		String storeDir = Options.getString("contentStore", null);
+		ContentStore store = storeDir == null ? null : new ContentStore(
+				new File(storeDir));
+		Planner planner = new Planner(dir, layout, checksums, downloadPhotos,
+				downloadVideos, overwrite, minSize, MetadataFilter.fromOptions(),
+				store, pack);
+		Scheduler queue = Scheduler.create();
+		queue.setBudget(budget);
+		queue.carryOver(dir);
+		report.setScheduler(queue);
+		DownloadEngine engine = Favorites.createEngine();
+		FaveDateTransport faveDates = InterfaceHolder.getFaveDates();
+
+		// listing, planning and downloading overlap, so they are reported
+		// as one phase
+		report.startPhase("download");
+		Tracer.trace("Now getting and downloading faves page by page...");
+		int numFailedDownloads = 0;
+		int numListed = 0;
+		String stoppedBy = null;
+		boolean warnedAboutSpace = false;
+		SwingProgress progress = null;
+		DownloadListener listener = null;
+		try {
+			for (int page = 1;; page++) {
+				PhotoList<Photo> pl;
+				try {
+					pl = Favorites.fetchPage(favI, page, sidecar != null);
+				} catch (FlickrException e) {
+					throw new FlickrFaveException("Error while retrieving "
+							+ "list of faves.", e);
+				}
+				// none left? then we're done
+				if (pl.isEmpty())
+					break;
+				if (progress == null) {
+					numFaves = Math.min(pl.getTotal(), maxFaves);
+					progress = new SwingProgress(numFaves, 0, totalProgress,
+							transfers, progressMsg);
+					listener = createListener(progress, report, store,
+							renditions, budget);
+					final int maximum = numFaves;
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							totalProgress.setMaximum(maximum);
+							totalProgress.setIndeterminate(false);
+							totalProgress.revalidate();
+						}
+					});
+				}
+
+				// plan the page, skipping faves that need not be downloaded
+				List<Photo> planned = new ArrayList<Photo>(pl.size());
+				long estimatedBytes = 0;
+				for (Photo curPhoto : pl) {
+					String id = curPhoto.getId();
+					if (sidecar != null)
+						sidecar.write(curPhoto, faveDates == null ? -1
+								: faveDates.getFaveDate(id));
+					if (migrating)
+						layout.migrateFave(dir, id, curPhoto, id + ".jpg", id
+								+ ".mp4", "." + id + ".jpg.exclude", "." + id
+								+ ".mp4.exclude");
+					// once stopped, faves are only listed
+					if (stoppedBy != null || numListed >= maxFaves)
+						continue;
+					planned.add(curPhoto);
+					DownloadTask task = planner.plan(curPhoto, ++numListed);
+					if (task == null)
+						continue;
+					estimatedBytes += DiskSpace.estimate(task);
+					queue.add(task);
+				}
+				progress.skipped(planned.size() - queue.size());
+				if (queue.size() > 0) {
+					long free = dir.getUsableSpace() - DiskSpace.getReserve();
+					if (estimatedBytes > free && !warnedAboutSpace) {
+						Tracer.trace(Level.WARN, "The faves of page " + page
+								+ " need about " + (estimatedBytes >> 20)
+								+ " MB but only " + (Math.max(0, free) >> 20)
+								+ " MB are free; faves that do not fit "
+								+ "are left for the next run...");
+						warnedAboutSpace = true;
+					}
+					Tracer.trace("Downloading " + queue.size()
+							+ " faves of page " + page + " in "
+							+ queue.getName() + " order...");
+					numFailedDownloads += engine.downloadAll(queue, minSize,
+							listener);
+					stoppedBy = queue.getStoppedBy();
+					if ("disk".equals(stoppedBy))
+						Tracer.trace(Level.WARN, "Stopped early: not enough "
+								+ "disk space...");
+					else if (stoppedBy != null)
+						Tracer.trace("Stopped early: the " + stoppedBy
+								+ " budget is used up...");
+				}
+
+				if (stoppedBy != null) {
+					// the rest of the list is only needed to write
+					// metadata or move faves
+					if (sidecar == null && !migrating)
+						break;
+				} else if (renditions != null) {
+					// photos that were already there may still lack
+					// renditions
+					for (Photo curPhoto : planned)
+						renditions.submit(new File(layout.dirFor(dir,
+								curPhoto.getId(), curPhoto), curPhoto.getId()
+								+ ".jpg"));
+				}
+			}
+
+			if (sidecar != null)
+				Tracer.trace("Wrote metadata of " + sidecar.commit()
+						+ " faves to " + MetadataSidecar.FILENAME + "...");
+			int remaining = queue.saveRemaining(dir);
+			if (remaining > 0)
+				Tracer.trace("Saved " + remaining
+						+ " remaining faves for the next run...");
+			if (migrating) {
+				layout.finishMigration(dir);
+				Tracer.trace("Moved the faves to the " + layout.getName()
+						+ " layout...");
+			}
+			if (store != null && Options.getBoolean("pruneContentStore", false))
+				Tracer.trace("Pruned " + store.prune()
+						+ " unreferenced faves from the content store...");
+
+			// if enabled: delete stale faves
+			if (deleteStale) {
+				report.startPhase("staleDeletion");
+				String spillDir = Options.getString("idSpillDir", null);
+				ids = new SpillingIdSet(Options.getInt("idSpillThreshold",
+						Constants.ID_SPILL_THRESHOLD),
+						spillDir == null ? new File(dir, SpillingIdSet.DIRNAME)
+								: new File(spillDir));
+				if (listIds(favI, ids))
+					deleteStaleFaves(ids, checksums, renditions, pack);
+			}
+			sidecar = null;
+		} catch (FlickrFaveException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new FlickrFaveException("Error while downloading faves.", e);
+		} finally {
+			if (sidecar != null)
+				sidecar.abort();
+			if (ids != null)
+				ids.close();
+			if (renditions != null)
+				renditions.await();
+			// renditions are made from the loose files, so pack them last
+			if (pack != null) {
+				report.startPhase("packing");
+				Favorites.packFaves(pack, dir, progressMsg);
+			}
+			checksums.save();
+			report.write(Options.getInt("runReports", 20));
+		}
+		return numFailedDownloads;
+	}
+
+	/**
+	 * Chains the listeners that record and show the progress of downloads.
+	 */
+	private static DownloadListener createListener(SwingProgress progress,
+			RunReport report, ContentStore store, Renditions renditions,
+			Budget budget) {
+		DownloadListener listener = report.recording(Metrics
+				.recording(progress));
+		if (store != null)
+			listener = store.recording(listener);
+		if (renditions != null)
+			listener = renditions.recording(listener);
+		if (budget != null)
+			listener = budget.recording(listener);
+		return listener;
+	}
+
+	/**
+	 * Lists the ids of all faves once more, fetching the pages right after
+	 * one another. While downloading, hours may pass between two pages; a
+	 * fave removed in the meantime shifts the later pages, so that another
+	 * one can fall between two pages and would be taken for stale.
+	 * 
+	 * @return false if the list changed while it was read, in which case no
+	 *         fave may be deleted.
+	 */
+	private static boolean listIds(FavoritesInterface favI,
+			SpillingIdSet ids) throws FlickrException, IOException {
+		Tracer.trace("Now getting the ids of all faves...");
+		int total = -1;
+		for (int page = 1;; page++) {
+			PhotoList<Photo> pl = favI.getList(null, 500, page,
+					Collections.<String> emptySet());
+			if (pl.isEmpty())
+				break;
+			if (total < 0) {
+				total = pl.getTotal();
+			} else if (pl.getTotal() != total) {
+				Tracer.trace(Level.WARN, "The faves changed while they were "
+						+ "listed; not deleting stale faves...");
+				return false;
+			}
+			for (Photo curPhoto : pl)
+				ids.add(Long.parseLong(curPhoto.getId()));
+		}
+		ids.finish();
+		if (ids.size() < total) {
+			Tracer.trace(Level.WARN, "Only " + ids.size() + " of " + total
+					+ " faves were listed; not deleting stale faves...");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Deletes the downloaded and packed faves whose ids were not listed,
+	 * walking the download directory rather than listing it up front.
+	 */
+	private void deleteStaleFaves(final SpillingIdSet ids,
+			final ChecksumIndex checksums, final Renditions renditions,
+			PackArchive pack) throws IOException {
+		Tracer.trace("Now delete stale faves...");
+
+		// update progress message
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				progressMsg.setText("Deleting stale faves...");
+				progressMsg.revalidate();
+			}
+		});
+
+		if (ids.isSpilled())
+			Tracer.trace("Spilled the ids of " + ids.size()
+					+ " faves to disk...");
+		Layout.forEachFile(dir, new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return Favorites.isFaveFile(name);
+			}
+		}, new Consumer<File>() {
+			public void accept(File toCheck) {
+				if (!isListed(ids, toCheck.getName()))
+					Favorites.deleteStaleFave(toCheck, checksums, renditions);
+			}
+		});
+
+		// packed faves are only marked as removed; their space is
+		// reclaimed when the archive is compacted
+		if (pack != null)
+			for (String name : pack.getFilenames())
+				if (!isListed(ids, name))
+					Favorites.removeStalePacked(name, pack, checksums,
+							renditions);
+	}
+
+	/**
+	 * @return Whether the id in a fave's file name was listed.
+	 */
+	private static boolean isListed(SpillingIdSet ids, String name) {
+		// cut off ".jpg" or ".mp4"
+		try {
+			return ids.contains(Long.parseLong(name.substring(0,
+					name.length() - 4)));
+		} catch (NumberFormatException e) {
+			// too long to be an id
+			return false;
+		}
+	}
+}
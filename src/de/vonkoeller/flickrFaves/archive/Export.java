@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.archive;
+
+import java.io.File;
+import java.io.IOException;
+
+import de.vonkoeller.flickrFaves.download.Layout;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Writes the faves of a pack archive back to loose files, arranged
+ *         in the layout set via the "layout" option. Faves that already
+ *         exist with the right size are not written again, so an
+ *         interrupted export can simply be started again. Usage:
+ *         <code>java -cp FlickrFaves.jar
+ *         de.vonkoeller.flickrFaves.archive.Export &lt;pack dir&gt;
+ *         &lt;target dir&gt;</code>
+ */
+public final class Export {
+
+	/**
+	 * Utility class -- cannot be instantiated.
+	 */
+	private Export() {
+		// empty on purpose
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: Export <pack dir> <target dir>");
+			System.exit(2);
+		}
+		File packDir = new File(args[0]);
+		if (!packDir.isDirectory()) {
+			System.err.println("No pack archive in " + packDir);
+			System.exit(1);
+		}
+		// a lost index is rebuilt from the segments
+		export(new PackArchive(packDir, Long.MAX_VALUE), new File(args[1]),
+				Layout.create());
+	}
+
+	/**
+	 * Writes all packed faves to a directory.
+	 *
+	 * @return The number of faves written.
+	 */
+	public static int export(PackArchive archive, File target, Layout layout)
+			throws IOException {
+		int written = 0;
+		int total = 0;
+		for (String filename : archive.getFilenames()) {
+			total++;
+			// the date layout needs the metadata; such faves go to the top
+			File dir = layout.dirFor(target, filename.substring(0,
+					filename.indexOf('.')), null);
+			if (dir == null)
+				dir = target;
+			dir.mkdirs();
+			File file = new File(dir, filename);
+			if (file.length() == archive.getLength(filename))
+				continue;
+			archive.extract(filename, file);
+			written++;
+		}
+		archive.close();
+		System.out.println("Exported " + written + " of " + total
+				+ " faves to " + target);
+		return written;
+	}
+}
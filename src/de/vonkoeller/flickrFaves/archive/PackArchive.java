@@ -0,0 +1,637 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.archive;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import de.vonkoeller.flickrFaves.config.Options;
+import de.vonkoeller.flickrFaves.debug.Tracer;
+import de.vonkoeller.flickrFaves.debug.Tracer.Level;
+import de.vonkoeller.flickrFaves.download.DiskSpace;
+import de.vonkoeller.flickrFaves.gui.Constants;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Keeps faves packed into a few large segment files instead of one
+ *         file each. Faves are only ever appended to the newest segment;
+ *         every record is a header with the file name and size followed by
+ *         the file's bytes, so the segments can be read on their own. The
+ *         index "faves.idx" holds one "&lt;segment&gt; &lt;offset&gt;
+ *         &lt;length&gt; &lt;file name&gt;" line per fave and "-
+ *         &lt;file name&gt;" for removed ones, and is kept in memory for
+ *         lookups by name. Removed faves stay in their segment until the
+ *         archive is compacted.
+ */
+public class PackArchive {
+
+	/** The name of the index file within the archive directory. */
+	public static final String INDEX = "faves.idx";
+
+	/** Marks the start of a record. */
+	private static final int MAGIC = 0x46465031;
+
+	/** The names of segment files. */
+	private static final Pattern SEGMENT = Pattern
+			.compile("faves-(\\d{5})\\.pack");
+
+	/** The archive directory. */
+	private final File dir;
+
+	/** A new segment is started once the current one reaches this size. */
+	private final long segmentBytes;
+
+	/** File name to entry, in the order the faves were packed. */
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	/** The number of the segment appended to. */
+	private int segment = 1;
+
+	/** The segment appended to; opened lazily. */
+	private FileChannel current = null;
+
+	/** Appends to the index; opened lazily. */
+	private Writer appender = null;
+
+	/** The file behind appender, to force it to disk. */
+	private FileOutputStream appenderStream = null;
+
+	/** Whether entries were removed or superseded since the last save. */
+	private boolean dirty = false;
+
+	/**
+	 * Opens the archive configured via the "pack" option.
+	 *
+	 * @param downloadDir
+	 *            The download directory.
+	 * @return The archive or null if faves are kept as loose files.
+	 */
+	public static PackArchive fromOptions(File downloadDir)
+			throws IOException {
+		if (!Options.getBoolean("pack", false))
+			return null;
+		String dirName = Options.getString("packDir", null);
+		return new PackArchive(dirName == null ? new File(downloadDir, "pack")
+				: new File(dirName), Options.getLong("packSegmentMB",
+				Constants.PACK_SEGMENT_MB) * 1024 * 1024);
+	}
+
+	/**
+	 * Opens an archive, creating its directory if necessary. If the index
+	 * is missing, it is rebuilt from the segments. Anything after the last
+	 * record of the newest segment, such as a record torn by a crash, is cut
+	 * off before new records are appended.
+	 *
+	 * @param dir
+	 *            The archive directory.
+	 * @param segmentBytes
+	 *            The size at which a new segment is started.
+	 */
+	public PackArchive(File dir, long segmentBytes) throws IOException {
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		dir.mkdirs();
+		for (int number : segmentNumbers())
+			segment = Math.max(segment, number);
+		File index = new File(dir, INDEX);
+		if (index.exists())
+			load(index);
+		else
+			rebuild();
+		truncateTail();
+	}
+
+	/**
+	 * @return Whether a fave is packed.
+	 */
+	public synchronized boolean contains(String filename) {
+		return entries.containsKey(filename);
+	}
+
+	/**
+	 * @return The size of a packed fave or -1 if it is not packed.
+	 */
+	public synchronized long getLength(String filename) {
+		Entry e = entries.get(filename);
+		return e == null ? -1 : e.length;
+	}
+
+	/**
+	 * @return The names of all packed faves, in the order they were packed.
+	 */
+	public synchronized List<String> getFilenames() {
+		return new ArrayList<String>(entries.keySet());
+	}
+
+	/**
+	 * Appends a file, replacing an earlier version of it. The index entry is
+	 * written after the data, so an interrupted append leaves nothing but
+	 * unreferenced bytes behind.
+	 *
+	 * @param file
+	 *            The file to pack; left in place.
+	 */
+	public synchronized void add(File file) throws IOException {
+		byte[] name = file.getName().getBytes(StandardCharsets.UTF_8);
+		long length = file.length();
+		ByteBuffer header = ByteBuffer.allocate(4 + 2 + name.length + 8);
+		header.putInt(MAGIC).putShort((short) name.length).put(name)
+				.putLong(length).flip();
+		FileChannel out = segmentFor(header.remaining() + length);
+		long offset = out.size();
+		out.position(offset);
+		while (header.hasRemaining())
+			out.write(header);
+		long dataOffset = out.position();
+		FileChannel in = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ);
+		try {
+			long copied = 0;
+			while (copied < length)
+				copied += in.transferTo(copied, length - copied, out);
+		} finally {
+			in.close();
+		}
+		Entry entry = new Entry(segment, dataOffset, length);
+		if (entries.put(file.getName(), entry) != null)
+			dirty = true;
+		appendIndex(entry.toLine(file.getName()));
+	}
+
+	/**
+	 * Removes a fave. Its bytes stay in its segment until the archive is
+	 * compacted.
+	 */
+	public synchronized void remove(String filename) {
+		if (entries.remove(filename) == null)
+			return;
+		dirty = true;
+		try {
+			appendIndex("- " + filename);
+		} catch (IOException e) {
+			Tracer.trace("Could not append to pack index: " + e);
+		}
+	}
+
+	/**
+	 * Copies a packed fave to a file.
+	 *
+	 * @return false if the fave is not packed.
+	 */
+	public synchronized boolean extract(String filename, File target)
+			throws IOException {
+		Entry e = entries.get(filename);
+		if (e == null)
+			return false;
+		FileChannel in = FileChannel.open(segmentFile(e.segment).toPath(),
+				StandardOpenOption.READ);
+		try {
+			FileChannel out = FileChannel.open(target.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				long copied = 0;
+				while (copied < e.length)
+					copied += in.transferTo(e.offset + copied, e.length
+							- copied, out);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Packs loose faves and deletes them once they are safely on disk. A
+	 * loose fave that is already packed with the same size is left over
+	 * from an interrupted run and only deleted. Stops early, leaving the
+	 * rest loose, if the disk is running full.
+	 *
+	 * @param files
+	 *            The loose faves.
+	 * @return The number of faves packed.
+	 */
+	public synchronized int absorb(List<File> files) throws IOException {
+		List<File> packed = new ArrayList<File>(files.size());
+		int added = 0;
+		for (File file : files) {
+			Entry e = entries.get(file.getName());
+			if (e == null || e.length != file.length()) {
+				if (!DiskSpace.hasRoomFor(dir, file.length())) {
+					Tracer.trace(Level.WARN, "Not enough disk space "
+							+ "to pack " + file.getName()
+							+ " -- leaving the rest loose...");
+					break;
+				}
+				add(file);
+				added++;
+			}
+			packed.add(file);
+		}
+		// only delete what is safely packed
+		sync();
+		for (File file : packed)
+			file.delete();
+		return added;
+	}
+
+	/**
+	 * @return The share of the segments' bytes taken up by removed or
+	 *         superseded faves.
+	 */
+	public synchronized double getGarbageRatio() {
+		long total = 0;
+		for (int number : segmentNumbers())
+			total += segmentFile(number).length();
+		if (total == 0)
+			return 0;
+		long live = 0;
+		for (Map.Entry<String, Entry> e : entries.entrySet())
+			live += recordLength(e.getKey(), e.getValue().length);
+		return Math.max(0, total - live) / (double) total;
+	}
+
+	/**
+	 * Copies all packed faves into new segments, in the order they were
+	 * packed, and deletes the old segments. The new index replaces the old
+	 * one before any segment is deleted. Nothing is copied if the disk has no
+	 * room for the live records.
+	 *
+	 * @return The number of bytes freed.
+	 */
+	public synchronized long compact() throws IOException {
+		long live = 0;
+		for (Map.Entry<String, Entry> e : entries.entrySet())
+			live += recordLength(e.getKey(), e.getValue().length);
+		if (!DiskSpace.hasRoomFor(dir, live)) {
+			Tracer.trace(Level.WARN, "Not enough disk space to compact the "
+					+ "pack archive in " + dir + " -- skipping...");
+			return 0;
+		}
+		long before = 0;
+		Set<Integer> old = new HashSet<Integer>(segmentNumbers());
+		for (int number : old)
+			before += segmentFile(number).length();
+		closeSegment();
+		segment++;
+		// copy first, then switch the index over to the copies
+		Map<String, Entry> copies = new LinkedHashMap<String, Entry>();
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			Entry from = e.getValue();
+			FileChannel in = FileChannel.open(segmentFile(from.segment)
+					.toPath(), StandardOpenOption.READ);
+			try {
+				copies.put(e.getKey(), copy(e.getKey(), from, in));
+			} finally {
+				in.close();
+			}
+		}
+		sync();
+		entries.clear();
+		entries.putAll(copies);
+		dirty = true;
+		saveIndex();
+		long after = 0;
+		for (int number : segmentNumbers()) {
+			if (old.contains(number))
+				segmentFile(number).delete();
+			else
+				after += segmentFile(number).length();
+		}
+		return before - after;
+	}
+
+	/**
+	 * Compacts the archive if more than the share set via the
+	 * "packCompactRatio" option (default 0.25) is garbage.
+	 *
+	 * @return The number of bytes freed.
+	 */
+	public long compactIfNeeded() throws IOException {
+		double ratio = Options.getDouble("packCompactRatio",
+				Constants.PACK_COMPACT_RATIO);
+		return getGarbageRatio() > ratio ? compact() : 0;
+	}
+
+	/**
+	 * Forces the segment and the index to disk, rewrites the index if
+	 * entries were removed, and closes all files.
+	 */
+	public synchronized void close() throws IOException {
+		sync();
+		closeSegment();
+		if (appender != null) {
+			appender.close();
+			appender = null;
+			appenderStream = null;
+		}
+		if (dirty)
+			saveIndex();
+	}
+
+	/**
+	 * Copies one record into the current segment.
+	 */
+	private Entry copy(String filename, Entry from, FileChannel in)
+			throws IOException {
+		long headerLength = recordLength(filename, 0);
+		long start = from.offset - headerLength;
+		FileChannel out = segmentFor(headerLength + from.length);
+		long offset = out.size();
+		out.position(offset);
+		long copied = 0;
+		while (copied < headerLength + from.length)
+			copied += in.transferTo(start + copied, headerLength
+					+ from.length - copied, out);
+		return new Entry(segment, offset + headerLength, from.length);
+	}
+
+	/**
+	 * @return The current segment, after starting a new one if the record
+	 *         would not fit anymore.
+	 */
+	private FileChannel segmentFor(long recordLength) throws IOException {
+		if (current == null)
+			current = openSegment(segment);
+		if (current.size() > 0 && current.size() + recordLength > segmentBytes) {
+			closeSegment();
+			segment++;
+			current = openSegment(segment);
+		}
+		return current;
+	}
+
+	private FileChannel openSegment(int number) throws IOException {
+		return FileChannel.open(segmentFile(number).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.READ);
+	}
+
+	private void closeSegment() throws IOException {
+		if (current != null) {
+			// a full segment may hold faves whose loose files are deleted next
+			current.force(false);
+			current.close();
+			current = null;
+		}
+	}
+
+	private void sync() throws IOException {
+		if (current != null)
+			current.force(false);
+		if (appender != null) {
+			appender.flush();
+			appenderStream.getFD().sync();
+		}
+	}
+
+	private void appendIndex(String line) throws IOException {
+		if (appender == null) {
+			appenderStream = new FileOutputStream(new File(dir, INDEX), true);
+			appender = new OutputStreamWriter(appenderStream,
+					StandardCharsets.UTF_8);
+		}
+		appender.write(line + "\n");
+	}
+
+	private void load(File index) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(index), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] parts = line.split(" ", 4);
+				if (parts.length == 2 && "-".equals(parts[0])) {
+					entries.remove(parts[1]);
+					dirty = true;
+				} else if (parts.length == 4) {
+					try {
+						if (entries.put(parts[3], new Entry(Integer
+								.parseInt(parts[0]), Long.parseLong(parts[1]),
+								Long.parseLong(parts[2]))) != null)
+							dirty = true;
+					} catch (NumberFormatException e) {
+						dirty = true;
+					}
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Cuts the newest segment off after its last indexed record.
+	 */
+	private void truncateTail() throws IOException {
+		File file = segmentFile(segment);
+		if (!file.exists())
+			return;
+		long end = 0;
+		for (Entry e : entries.values())
+			if (e.segment == segment)
+				end = Math.max(end, e.offset + e.length);
+		if (file.length() <= end)
+			return;
+		Tracer.trace(Level.WARN, "Cutting off " + (file.length() - end)
+				+ " unindexed bytes at the end of " + file + "...");
+		FileChannel out = openSegment(segment);
+		try {
+			out.truncate(end);
+			out.force(false);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Rebuilds the index by reading the record headers of all segments. A
+	 * damaged record is skipped by searching for the next record marker.
+	 * Faves removed before the index was lost come back and are removed
+	 * again as stale on the next sync.
+	 */
+	private void rebuild() throws IOException {
+		List<Integer> numbers = segmentNumbers();
+		if (numbers.isEmpty())
+			return;
+		Tracer.trace(Level.WARN, "Rebuilding pack index of " + dir
+				+ "...");
+		ByteBuffer fixed = ByteBuffer.allocate(6);
+		ByteBuffer size = ByteBuffer.allocate(8);
+		for (int number : numbers) {
+			FileChannel in = FileChannel.open(segmentFile(number).toPath(),
+					StandardOpenOption.READ);
+			try {
+				long position = 0;
+				while ((position = nextMarker(in, position)) >= 0) {
+					fixed.clear();
+					in.read(fixed, position);
+					int nameLength = fixed.getShort(4);
+					long dataOffset = position + 6 + nameLength + 8;
+					ByteBuffer name = ByteBuffer.allocate(Math.max(0,
+							nameLength));
+					size.clear();
+					if (nameLength <= 0
+							|| in.read(name, position + 6) < nameLength
+							|| in.read(size, position + 6 + nameLength) < 8
+							|| size.getLong(0) < 0
+							|| dataOffset + size.getLong(0) > in.size()) {
+						// torn or not a record after all
+						Tracer.trace(Level.WARN, "Skipping damaged record at "
+								+ position + " of " + segmentFile(number)
+								+ "...");
+						position++;
+						continue;
+					}
+					long length = size.getLong(0);
+					entries.put(new String(name.array(),
+							StandardCharsets.UTF_8), new Entry(number,
+							dataOffset, length));
+					position = dataOffset + length;
+				}
+			} finally {
+				in.close();
+			}
+		}
+		dirty = true;
+		saveIndex();
+	}
+
+	/**
+	 * @return The position of the next record marker at or after from, or
+	 *         -1 if there is none.
+	 */
+	private static long nextMarker(FileChannel in, long from)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		long position = from;
+		while (position + 6 <= in.size()) {
+			buffer.clear();
+			int n = in.read(buffer, position);
+			for (int i = 0; i + 4 <= n; i++)
+				if (buffer.getInt(i) == MAGIC)
+					// too close to the end for a header: torn
+					return position + i + 6 <= in.size() ? position + i : -1;
+			if (n < 4)
+				return -1;
+			position += n - 3;
+		}
+		return -1;
+	}
+
+	private void saveIndex() throws IOException {
+		if (appender != null) {
+			appender.close();
+			appender = null;
+			appenderStream = null;
+		}
+		File index = new File(dir, INDEX);
+		File tmp = new File(dir, INDEX + ".tmp");
+		FileOutputStream stream = new FileOutputStream(tmp);
+		Writer out = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+		try {
+			for (Map.Entry<String, Entry> e : entries.entrySet())
+				out.write(e.getValue().toLine(e.getKey()) + "\n");
+			out.flush();
+			stream.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), index.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		dirty = false;
+	}
+
+	/**
+	 * @return The numbers of all segment files, in ascending order.
+	 */
+	private List<Integer> segmentNumbers() {
+		List<Integer> numbers = new ArrayList<Integer>();
+		String[] names = dir.list();
+		if (names == null)
+			return numbers;
+		for (String name : names) {
+			Matcher m = SEGMENT.matcher(name);
+			if (m.matches())
+				numbers.add(Integer.valueOf(m.group(1)));
+		}
+		Collections.sort(numbers);
+		return numbers;
+	}
+
+	private File segmentFile(int number) {
+		return new File(dir, String.format("faves-%05d.pack", number));
+	}
+
+	/**
+	 * @return The size of a record in a segment, header included.
+	 */
+	private static long recordLength(String filename, long length) {
+		return 4 + 2 + filename.getBytes(StandardCharsets.UTF_8).length + 8
+				+ length;
+	}
+
+	/**
+	 * Where a packed fave's bytes are.
+	 */
+	private static class Entry {
+
+		final int segment;
+
+		final long offset;
+
+		final long length;
+
+		Entry(int segment, long offset, long length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		String toLine(String filename) {
+			return segment + " " + offset + " " + length + " " + filename;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.concurrent;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.vonkoeller.flickrFaves.exceptions.FlickrFaveException;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         A simple structured scope for blocking tasks. Tasks forked into the
+ *         scope run on their own threads; join() waits for all of them. The
+ *         first task to fail cancels all others, and the failure is rethrown
+ *         by join(). Cancelling the scope interrupts all running tasks.
+ */
+public class TaskScope {
+
+	/** Runs the forked tasks. */
+	private final ExecutorService executor;
+
+	/** The threads currently running tasks of this scope. */
+	private final Set<Thread> running = ConcurrentHashMap.newKeySet();
+
+	/** The first failure of any task. */
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	/** Whether the scope has been cancelled. */
+	private volatile boolean cancelled = false;
+
+	/** The number of forked tasks that have not finished; guarded by this. */
+	private int outstanding = 0;
+
+	/**
+	 * Creates a scope running its tasks on threads from {@link Threads}.
+	 */
+	public TaskScope() {
+		this(Threads.newExecutor());
+	}
+
+	/**
+	 * @param executor
+	 *            Runs the forked tasks; shut down by close().
+	 */
+	public TaskScope(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Starts a task within this scope.
+	 *
+	 * @param task
+	 *            The task; its result is ignored.
+	 * @throws FlickrFaveException
+	 *             if another task of this scope has already failed.
+	 */
+	public void fork(final Callable<?> task) {
+		throwIfFailed();
+		synchronized (this) {
+			outstanding++;
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					Thread self = Thread.currentThread();
+					running.add(self);
+					try {
+						if (!cancelled)
+							task.call();
+					} catch (Throwable t) {
+						if (!cancelled || !(t instanceof InterruptedException))
+							fail(t);
+					} finally {
+						running.remove(self);
+						finished();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			finished();
+			throw new FlickrFaveException("Scope has been closed.", e);
+		}
+	}
+
+	/**
+	 * Waits until all forked tasks have finished.
+	 *
+	 * @throws InterruptedException
+	 *             if the waiting thread is interrupted; the scope is then
+	 *             cancelled.
+	 * @throws FlickrFaveException
+	 *             wrapping the first failure of any task.
+	 */
+	public void join() throws InterruptedException {
+		try {
+			synchronized (this) {
+				while (outstanding > 0)
+					wait();
+			}
+		} catch (InterruptedException e) {
+			cancel();
+			throw e;
+		}
+		throwIfFailed();
+	}
+
+	/**
+	 * Cancels all tasks: tasks that have not started yet are skipped and
+	 * running tasks are interrupted.
+	 */
+	public void cancel() {
+		cancelled = true;
+		for (Thread t : running)
+			t.interrupt();
+	}
+
+	/**
+	 * @throws FlickrFaveException
+	 *             wrapping the first failure of any task, if there was one.
+	 */
+	public void throwIfFailed() {
+		Throwable t = failure.get();
+		if (t != null)
+			throw new FlickrFaveException("A concurrent task failed.", t);
+	}
+
+	/**
+	 * Cancels remaining tasks and releases the scope's threads.
+	 */
+	public void close() {
+		cancel();
+		executor.shutdown();
+	}
+
+	private void fail(Throwable t) {
+		if (failure.compareAndSet(null, t))
+			cancel();
+	}
+
+	private synchronized void finished() {
+		if (--outstanding == 0)
+			notifyAll();
+	}
+}
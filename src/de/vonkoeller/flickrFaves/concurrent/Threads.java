@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import de.vonkoeller.flickrFaves.config.Options;
+import de.vonkoeller.flickrFaves.debug.Tracer;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Creates the threads FlickrFaves runs its blocking work on. If the
+ *         "virtualThreads" option is enabled and the JRE supports them (Java
+ *         21 or later), these are virtual threads; otherwise they are ordinary
+ *         platform threads. Virtual threads are looked up reflectively so that
+ *         FlickrFaves still runs on older JREs.
+ */
+public final class Threads {
+
+	/** Whether virtual threads are enabled and available; null if unknown. */
+	private static Boolean virtual = null;
+
+	/**
+	 * Utility class -- cannot be instantiated.
+	 */
+	private Threads() {
+		// empty on purpose
+	}
+
+	/**
+	 * @return true if work is run on virtual threads.
+	 */
+	public static synchronized boolean isVirtual() {
+		if (virtual == null) {
+			virtual = Boolean.FALSE;
+			if (Options.getBoolean("virtualThreads", false)) {
+				try {
+					// on Java 19 and 20 this throws unless preview is enabled
+					Thread.class.getMethod("ofVirtual").invoke(null);
+					virtual = Boolean.TRUE;
+				} catch (Exception e) {
+					Tracer.trace("Virtual threads are not available on this "
+							+ "JRE, using platform threads instead...");
+				}
+			}
+		}
+		return virtual.booleanValue();
+	}
+
+	/**
+	 * Creates an executor that runs every task on a new thread: a virtual
+	 * thread if enabled, otherwise a cached platform thread.
+	 *
+	 * @return The executor.
+	 */
+	public static ExecutorService newExecutor() {
+		if (isVirtual()) {
+			try {
+				Method m = Executors.class
+						.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) m.invoke(null);
+			} catch (Exception e) {
+				Tracer.trace("Could not create virtual thread executor: " + e);
+			}
+		}
+		return Executors.newCachedThreadPool();
+	}
+
+	/**
+	 * Starts a new thread running the given Runnable.
+	 *
+	 * @param name
+	 *            The thread's name.
+	 * @param runnable
+	 *            What to run.
+	 * @return The started thread.
+	 */
+	public static Thread start(String name, Runnable runnable) {
+		if (isVirtual()) {
+			try {
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(
+						null);
+				builder = builderClass.getMethod("name", String.class).invoke(
+						builder, name);
+				return (Thread) builderClass.getMethod("start",
+						Runnable.class).invoke(builder, runnable);
+			} catch (Exception e) {
+				Tracer.trace("Could not start virtual thread: " + e);
+			}
+		}
+		Thread thread = new Thread(runnable, name);
+		thread.start();
+		return thread;
+	}
+}
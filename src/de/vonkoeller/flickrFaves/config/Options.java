@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.config;
+
+import java.io.File;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Advanced options that are not exposed in the GUI. They are read from
+ *         system properties prefixed with "flickrFaves.", e.g.
+ *         <code>-DflickrFaves.apiCache=true</code>.
+ */
+public final class Options {
+
+	/** The prefix of all system properties read by this class. */
+	public static final String PREFIX = "flickrFaves.";
+
+	/**
+	 * Utility class -- cannot be instantiated.
+	 */
+	private Options() {
+		// empty on purpose
+	}
+
+	/**
+	 * @param name
+	 *            The option name without prefix.
+	 * @param def
+	 *            The value to return if the option is not set.
+	 * @return The option's value or def.
+	 */
+	public static String getString(String name, String def) {
+		String value = System.getProperty(PREFIX + name);
+		if (value == null || value.trim().length() == 0)
+			return def;
+		return value.trim();
+	}
+
+	/**
+	 * @param name
+	 *            The option name without prefix.
+	 * @param def
+	 *            The value to return if the option is not set.
+	 * @return The option's value or def.
+	 */
+	public static boolean getBoolean(String name, boolean def) {
+		String value = getString(name, null);
+		if (value == null)
+			return def;
+		return Boolean.parseBoolean(value);
+	}
+
+	/**
+	 * @param name
+	 *            The option name without prefix.
+	 * @param def
+	 *            The value to return if the option is not set or invalid.
+	 * @return The option's value or def.
+	 */
+	public static int getInt(String name, int def) {
+		String value = getString(name, null);
+		if (value == null)
+			return def;
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	/**
+	 * @param name
+	 *            The option name without prefix.
+	 * @param def
+	 *            The value to return if the option is not set or invalid.
+	 * @return The option's value or def.
+	 */
+	public static long getLong(String name, long def) {
+		String value = getString(name, null);
+		if (value == null)
+			return def;
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	/**
+	 * @param name
+	 *            The option name without prefix.
+	 * @param def
+	 *            The value to return if the option is not set or invalid.
+	 * @return The option's value or def.
+	 */
+	public static double getDouble(String name, double def) {
+		String value = getString(name, null);
+		if (value == null)
+			return def;
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	/**
+	 * Returns a directory option. If the option is not set, the directory
+	 * defaults to the given sub-directory of FlickrFaves' home directory.
+	 *
+	 * @param name
+	 *            The option name without prefix.
+	 * @param defSubDir
+	 *            The sub-directory of the home directory to use by default.
+	 * @return The directory; it is not guaranteed to exist.
+	 */
+	public static File getDir(String name, String defSubDir) {
+		String value = getString(name, null);
+		if (value != null)
+			return new File(value);
+		return new File(getHomeDir(), defSubDir);
+	}
+
+	/**
+	 * @return FlickrFaves' own directory within the user's home directory.
+	 */
+	public static File getHomeDir() {
+		return new File(System.getProperty("user.home"), ".flickrFaves");
+	}
+}
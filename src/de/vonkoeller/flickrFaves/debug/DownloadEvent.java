@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.debug;
+
+import java.net.URI;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Base of the Flight Recorder events about a single fave. When no
+ *         recording is running, begin() and commit() do nothing, so callers
+ *         only need to check shouldCommit() before computing field values.
+ */
+@Category({ "FlickrFaves", "Download" })
+public abstract class DownloadEvent extends Event {
+
+	@Label("Photo ID")
+	public String photoId;
+
+	@Label("Host")
+	public String host;
+
+	/**
+	 * Sets photo ID and host.
+	 *
+	 * @param photoId
+	 *            The fave's Flickr id.
+	 * @param url
+	 *            The URL being downloaded from; may be null.
+	 */
+	public void set(String photoId, String url) {
+		this.photoId = photoId;
+		this.host = hostOf(url);
+	}
+
+	static String hostOf(String url) {
+		if (url == null)
+			return null;
+		try {
+			return URI.create(url).getHost();
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+}
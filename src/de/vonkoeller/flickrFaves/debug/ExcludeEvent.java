@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.debug;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         A fave has been excluded from future downloads.
+ */
+@Name("flickrFaves.Exclude")
+@Label("Exclude")
+@Description("Fave excluded from future downloads")
+public class ExcludeEvent extends DownloadEvent {
+
+	@Label("Reason")
+	public String reason;
+
+	/**
+	 * Records an exclusion if a recording is running.
+	 *
+	 * @param photoId
+	 *            The fave's Flickr id.
+	 * @param url
+	 *            The URL the fave was downloaded from; may be null.
+	 * @param reason
+	 *            Why the fave is excluded.
+	 */
+	public static void emit(String photoId, String url, String reason) {
+		ExcludeEvent event = new ExcludeEvent();
+		if (!event.shouldCommit())
+			return;
+		event.set(photoId, url);
+		event.reason = reason;
+		event.commit();
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.debug;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Fetching one page of the list of faves from the Flickr API.
+ */
+@Name("flickrFaves.PageFetch")
+@Label("Page Fetch")
+@Description("One page of the list of faves fetched from the Flickr API")
+@Category({ "FlickrFaves", "API" })
+public class PageFetchEvent extends Event {
+
+	@Label("Page")
+	public int page;
+
+	@Label("Faves")
+	public int faves;
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.debug;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         A block or a whole fave is retried after a network error.
+ */
+@Name("flickrFaves.Retry")
+@Label("Retry")
+@Description("Block or whole fave retried after a network error")
+public class RetryEvent extends DownloadEvent {
+
+	@Label("What")
+	public String what;
+
+	@Label("Cause")
+	public String cause;
+
+	/**
+	 * Records a retry if a recording is running.
+	 *
+	 * @param photoId
+	 *            The fave's Flickr id.
+	 * @param url
+	 *            The URL being downloaded from; may be null.
+	 * @param what
+	 *            "block" or "fave".
+	 * @param cause
+	 *            The error that made the retry necessary.
+	 */
+	public static void emit(String photoId, String url, String what,
+			Throwable cause) {
+		RetryEvent event = new RetryEvent();
+		if (!event.shouldCommit())
+			return;
+		event.set(photoId, url);
+		event.what = what;
+		event.cause = String.valueOf(cause);
+		event.commit();
+	}
+}
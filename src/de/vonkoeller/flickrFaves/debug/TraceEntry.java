@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.debug;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         A single trace message. Only the raw parts are captured when the
+ *         message is traced; the timestamp is formatted when the entry is
+ *         written out.
+ */
+final class TraceEntry {
+
+	private static final DateTimeFormatter FORMAT = DateTimeFormatter
+			.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(
+					ZoneId.systemDefault());
+
+	/** The position of this entry in the sequence of all entries. */
+	final long sequence;
+
+	final long time;
+
+	final Tracer.Level level;
+
+	final String thread;
+
+	/** What the thread was working on, e.g. a fave's file name; may be null. */
+	final String context;
+
+	final String message;
+
+	TraceEntry(long sequence, long time, Tracer.Level level, String thread,
+			String context, String message) {
+		this.sequence = sequence;
+		this.time = time;
+		this.level = level;
+		this.thread = thread;
+		this.context = context;
+		this.message = message;
+	}
+
+	/**
+	 * Appends the formatted entry and a line break.
+	 */
+	void appendTo(StringBuilder sb) {
+		FORMAT.formatTo(Instant.ofEpochMilli(time), sb);
+		sb.append(' ').append(level).append(" [").append(thread);
+		if (context != null)
+			sb.append(' ').append(context);
+		sb.append("] ").append(message).append('\n');
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(64 + message.length());
+		appendTo(sb);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.debug;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Keeps the most recent trace entries in a fixed number of slots.
+ *         Writers claim a sequence number and overwrite the matching slot
+ *         without taking a lock; readers skip slots that have already been
+ *         overwritten or not yet been filled.
+ */
+final class TraceRing {
+
+	private final AtomicReferenceArray<TraceEntry> slots;
+
+	private final int mask;
+
+	/** The sequence number of the next entry. */
+	private final AtomicLong next = new AtomicLong();
+
+	/**
+	 * @param capacity
+	 *            The minimum number of entries to keep; rounded up to a power
+	 *            of two.
+	 */
+	TraceRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		slots = new AtomicReferenceArray<TraceEntry>(size);
+		mask = size - 1;
+	}
+
+	/**
+	 * @return A new entry, stored in the ring.
+	 */
+	TraceEntry add(long time, Tracer.Level level, String thread,
+			String context, String message) {
+		long sequence = next.getAndIncrement();
+		TraceEntry entry = new TraceEntry(sequence, time, level, thread,
+				context, message);
+		slots.set((int) (sequence & mask), entry);
+		return entry;
+	}
+
+	/**
+	 * @return The retained entries, oldest first, one per line.
+	 */
+	String snapshot() {
+		long end = next.get();
+		long start = Math.max(0, end - slots.length());
+		StringBuilder sb = new StringBuilder();
+		for (long s = start; s < end; s++) {
+			TraceEntry entry = slots.get((int) (s & mask));
+			if (entry != null && entry.sequence == s)
+				entry.appendTo(sb);
+		}
+		return sb.toString();
+	}
+}
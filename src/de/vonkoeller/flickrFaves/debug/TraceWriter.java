@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.debug;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Writes trace entries to the console and/or to rotating log files on
+ *         a background thread, so that tracing threads never wait for I/O.
+ *         If the writer falls behind, entries are dropped rather than
+ *         blocking; they are still kept in the ring buffer.
+ */
+final class TraceWriter implements Runnable {
+
+	/** The name of the current log file; older files get ".1", ".2", ... */
+	static final String FILENAME = "flickrFaves.log";
+
+	private final BlockingQueue<TraceEntry> queue;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final boolean toConsole;
+
+	/** The log directory or null to not write log files. */
+	private final File dir;
+
+	private final long maxBytes;
+
+	private final int maxFiles;
+
+	private Writer file = null;
+
+	private long fileBytes = 0;
+
+	/**
+	 * @param queueSize
+	 *            The number of entries that may wait to be written.
+	 * @param toConsole
+	 *            Whether to print entries to standard out.
+	 * @param dir
+	 *            The log directory or null to not write log files.
+	 * @param maxBytes
+	 *            The size at which the log file is rotated.
+	 * @param maxFiles
+	 *            The number of log files to keep, including the current one.
+	 */
+	TraceWriter(int queueSize, boolean toConsole, File dir, long maxBytes,
+			int maxFiles) {
+		this.queue = new ArrayBlockingQueue<TraceEntry>(Math.max(1, queueSize));
+		this.toConsole = toConsole;
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		this.maxFiles = Math.max(1, maxFiles);
+	}
+
+	/**
+	 * Starts the writer thread and makes sure pending entries are written
+	 * when the JVM exits.
+	 */
+	void start() {
+		Thread thread = new Thread(this, "trace-writer");
+		thread.setDaemon(true);
+		thread.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "trace-flush"));
+	}
+
+	/**
+	 * Queues an entry for writing without blocking.
+	 */
+	void offer(TraceEntry entry) {
+		if (!queue.offer(entry))
+			dropped.incrementAndGet();
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				TraceEntry first = queue.take();
+				List<TraceEntry> batch = new ArrayList<TraceEntry>();
+				batch.add(first);
+				queue.drainTo(batch);
+				write(batch);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes everything still queued.
+	 */
+	void drain() {
+		List<TraceEntry> batch = new ArrayList<TraceEntry>();
+		queue.drainTo(batch);
+		write(batch);
+	}
+
+	private synchronized void write(List<TraceEntry> batch) {
+		StringBuilder sb = new StringBuilder(batch.size() * 128);
+		long lost = dropped.getAndSet(0);
+		if (lost > 0)
+			sb.append("... ").append(lost)
+					.append(" trace messages dropped ...\n");
+		for (TraceEntry entry : batch)
+			entry.appendTo(sb);
+		if (sb.length() == 0)
+			return;
+		String text = sb.toString();
+		if (toConsole) {
+			System.out.print(text);
+			System.out.flush();
+		}
+		if (dir != null)
+			writeToFile(text);
+	}
+
+	private void writeToFile(String text) {
+		try {
+			if (file != null && fileBytes >= maxBytes)
+				rotate();
+			if (file == null) {
+				dir.mkdirs();
+				File current = new File(dir, FILENAME);
+				fileBytes = current.length();
+				file = new OutputStreamWriter(new FileOutputStream(current,
+						true), StandardCharsets.UTF_8);
+			}
+			file.write(text);
+			file.flush();
+			fileBytes += text.length();
+		} catch (IOException e) {
+			// nowhere left to report this; fall back to the console
+			System.err.println("Could not write trace file: " + e);
+		}
+	}
+
+	/**
+	 * Closes the current log file and shifts the older ones, dropping the
+	 * oldest.
+	 */
+	private void rotate() throws IOException {
+		file.close();
+		file = null;
+		new File(dir, FILENAME + "." + (maxFiles - 1)).delete();
+		for (int i = maxFiles - 2; i >= 1; i--)
+			new File(dir, FILENAME + "." + i).renameTo(new File(dir, FILENAME
+					+ "." + (i + 1)));
+		File current = new File(dir, FILENAME);
+		if (maxFiles > 1)
+			current.renameTo(new File(dir, FILENAME + ".1"));
+		else
+			current.delete();
+	}
+}
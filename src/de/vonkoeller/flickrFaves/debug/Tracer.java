@@ -1,17 +1,29 @@
 package de.vonkoeller.flickrFaves.debug;
 
-import java.util.Date;
+import java.util.function.Supplier;
 
+import de.vonkoeller.flickrFaves.config.Options;
 import de.vonkoeller.flickrFaves.gui.Constants;
 
 /**
  * @author Magnus von Koeller
- * 
- *         Called to trace the program's progress. Logs all messages and makes
- *         them available in case of an error.
+ *
+ *         Called to trace the program's progress. Keeps the most recent
+ *         messages in memory to make them available in case of an error, and
+ *         hands them to a background writer for the console (if DEBUG is
+ *         enabled) and for rotating log files (if the "traceToFile" option is
+ *         set). Messages below the level set by the "traceLevel" option are
+ *         discarded; pass a Supplier to avoid building them at all.
  */
 public final class Tracer {
 
+	/**
+	 * The importance of a trace message.
+	 */
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR
+	}
+
 	/**
 	 * Utility class -- cannot be instantiated.
 	 */
@@ -19,19 +31,96 @@ public final class Tracer {
 		// empty on purpose
 	}
 
-	private static StringBuffer trace = new StringBuffer();
+	/** Messages below this level are discarded. */
+	private static final Level threshold = parseLevel(Options.getString(
+			"traceLevel", "INFO"));
+
+	/** The most recent messages, for error reports. */
+	private static final TraceRing ring = new TraceRing(Options.getInt(
+			"traceBufferSize", Constants.TRACE_BUFFER_SIZE));
+
+	/** Writes messages out in the background; null if there is no output. */
+	private static final TraceWriter writer = createWriter();
+
+	/** What each thread is currently working on. */
+	private static final ThreadLocal<String> context = new ThreadLocal<String>();
 
 	public static void trace(String message) {
-		message = new Date() + ": " + message;
-		if (Constants.DEBUG) {
-			System.out.println(message);
-		}
-		trace.append(message);
-		trace.append("\n");
+		trace(Level.INFO, message);
 	}
 
+	public static void trace(Level level, String message) {
+		if (level.compareTo(threshold) < 0)
+			return;
+		TraceEntry entry = ring.add(System.currentTimeMillis(), level, Thread
+				.currentThread().getName(), context.get(), message);
+		if (writer != null)
+			writer.offer(entry);
+	}
+
+	/**
+	 * Traces a message that is only built if the level is enabled.
+	 */
+	public static void trace(Level level, Supplier<String> message) {
+		if (isEnabled(level))
+			trace(level, message.get());
+	}
+
+	/**
+	 * Traces a debug message that is only built if debug tracing is enabled.
+	 */
+	public static void debug(Supplier<String> message) {
+		trace(Level.DEBUG, message);
+	}
+
+	/**
+	 * @return true if messages of the given level are traced.
+	 */
+	public static boolean isEnabled(Level level) {
+		return level.compareTo(threshold) >= 0;
+	}
+
+	/**
+	 * Sets what the current thread is working on, e.g. the file name of a
+	 * fave. It is included in all messages traced by this thread.
+	 *
+	 * @param current
+	 *            The context or null to clear it.
+	 */
+	public static void setContext(String current) {
+		if (current == null)
+			context.remove();
+		else
+			context.set(current);
+	}
+
+	/**
+	 * @return The most recent messages, oldest first.
+	 */
 	public static String getTrace() {
-		return trace.toString();
+		return ring.snapshot();
+	}
+
+	private static Level parseLevel(String name) {
+		try {
+			return Level.valueOf(name.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return Level.INFO;
+		}
+	}
+
+	private static TraceWriter createWriter() {
+		boolean toFile = Options.getBoolean("traceToFile", false);
+		if (!Constants.DEBUG && !toFile)
+			return null;
+		TraceWriter w = new TraceWriter(Options.getInt("traceQueueSize",
+				Constants.TRACE_BUFFER_SIZE), Constants.DEBUG,
+				toFile ? Options.getDir("traceDir", "logs") : null,
+				Options.getLong("traceFileMaxBytes",
+						Constants.TRACE_FILE_MAX_BYTES), Options.getInt(
+						"traceFiles", Constants.TRACE_FILES));
+		w.start();
+		return w;
 	}
 
 }
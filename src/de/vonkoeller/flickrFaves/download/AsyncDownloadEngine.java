@@ -0,0 +1,482 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import de.vonkoeller.flickrFaves.config.Options;
+import de.vonkoeller.flickrFaves.debug.ExcludeEvent;
+import de.vonkoeller.flickrFaves.debug.ResolveEvent;
+import de.vonkoeller.flickrFaves.debug.RetryEvent;
+import de.vonkoeller.flickrFaves.debug.Tracer;
+import de.vonkoeller.flickrFaves.debug.Tracer.Level;
+import de.vonkoeller.flickrFaves.debug.TransferEvent;
+import de.vonkoeller.flickrFaves.debug.VerifyEvent;
+import de.vonkoeller.flickrFaves.download.DownloadListener.Outcome;
+import de.vonkoeller.flickrFaves.download.DownloadListener.Stage;
+import de.vonkoeller.flickrFaves.gui.Constants;
+import de.vonkoeller.flickrFaves.metrics.Metrics;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Download engine built on java.net.http.HttpClient. Every fave runs
+ *         through a non-blocking pipeline of resolve (find the largest
+ *         accessible size), fetch (stream the body into a part file), verify
+ *         (length, completeness and minimum size) and commit (move the part file into
+ *         place). A handful of threads keeps many transfers in flight.
+ */
+public class AsyncDownloadEngine implements DownloadEngine {
+
+	/** The timeout in seconds before a fave download is interrupted. */
+	private static final int TIMEOUT = Options.getInt("downloadTimeout",
+			Constants.DOWNLOAD_TIMEOUT);
+
+	/** The maximum number of faves in flight at the same time. */
+	private final int maxInFlight;
+
+	/** The number of threads driving the HTTP client. */
+	private final int threads;
+
+	/**
+	 * @param maxInFlight
+	 *            The maximum number of faves in flight at the same time.
+	 * @param threads
+	 *            The number of threads driving the HTTP client.
+	 */
+	public AsyncDownloadEngine(int maxInFlight, int threads) {
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.threads = Math.max(1, threads);
+	}
+
+	public int downloadAll(Scheduler queue, int minSize,
+			DownloadListener listener) {
+		ExecutorService ioPool = Executors.newFixedThreadPool(threads);
+		ExecutorService verifyPool = Executors.newFixedThreadPool(Runtime
+				.getRuntime().availableProcessors());
+		try {
+			HttpClient client = HttpClient.newBuilder()
+					.version(HttpClient.Version.HTTP_2)
+					// don't follow redirects to the image not available image
+					.followRedirects(HttpClient.Redirect.NEVER)
+					.connectTimeout(
+							Duration.ofSeconds(TIMEOUT))
+					.executor(ioPool).build();
+			Run run = new Run(client, ioPool, verifyPool, queue, minSize,
+					listener);
+			return run.await();
+		} finally {
+			ioPool.shutdown();
+			verifyPool.shutdown();
+		}
+	}
+
+	/**
+	 * The state of a single call to downloadAll.
+	 */
+	private class Run {
+
+		private final HttpClient client;
+
+		private final ExecutorService ioPool;
+
+		private final ExecutorService verifyPool;
+
+		private final int minSize;
+
+		private final DownloadListener listener;
+
+		private final Scheduler pending;
+
+		/** Released once no fave is in flight and none is started. */
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		/** The faves whose pipeline has been started and not completed. */
+		private final AtomicInteger inFlight = new AtomicInteger();
+
+		private final AtomicInteger failed = new AtomicInteger();
+
+		Run(HttpClient client, ExecutorService ioPool,
+				ExecutorService verifyPool, Scheduler queue,
+				int minSize, DownloadListener listener) {
+			this.client = client;
+			this.ioPool = ioPool;
+			this.verifyPool = verifyPool;
+			this.minSize = minSize;
+			this.listener = listener;
+			this.pending = queue;
+		}
+
+		/**
+		 * Starts the first transfers and blocks until all faves are handled.
+		 *
+		 * @return The number of failed downloads.
+		 */
+		int await() {
+			for (int i = 0; i < maxInFlight; i++)
+				launchNext();
+			if (inFlight.get() == 0)
+				return failed.get();
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return failed.get();
+		}
+
+		/**
+		 * Takes the next fave off the queue and starts its pipeline. When the
+		 * pipeline completes, the next fave is started in its place; the run
+		 * is done when a pipeline completes without a successor and none is
+		 * in flight anymore. The queue may stop early once the budget is used
+		 * up. A listener that throws is traced; it must not keep the successor
+		 * from starting or the run from ending.
+		 */
+		private void launchNext() {
+			final DownloadTask task = pending.next();
+			if (task == null)
+				return;
+			Metrics.QUEUE_DEPTH.set(pending.size());
+			// before counting it in flight, in case the listener throws
+			listener.statusChanged(task, "Connecting...");
+			inFlight.incrementAndGet();
+			Metrics.ACTIVE_CONNECTIONS.inc();
+			process(task, 0).whenCompleteAsync((outcome, ex) -> {
+				try {
+					Metrics.ACTIVE_CONNECTIONS.dec();
+					if (ex != null) {
+						Tracer.trace(Level.WARN, "Download of " + task
+								+ " failed: " + ex);
+						listener.taskFailed(task,
+								ex instanceof CompletionException
+										&& ex.getCause() != null ? ex
+										.getCause() : ex);
+						outcome = Outcome.FAILED;
+					}
+					// a fave put back is retried in this slot or a later one
+					if (outcome != Outcome.FAILED
+							|| !pending.retryLater(task)) {
+						if (outcome == Outcome.FAILED)
+							failed.incrementAndGet();
+						else if (outcome == Outcome.DEFERRED)
+							pending.defer(task);
+						listener.taskFinished(task, outcome);
+					}
+				} catch (RuntimeException e) {
+					Tracer.trace(Level.ERROR, "Listener failed after "
+							+ task + ": " + e);
+				} finally {
+					// start the successor first so that inFlight cannot drop
+					// to zero while faves are still waiting
+					try {
+						launchNext();
+					} catch (RuntimeException e) {
+						Tracer.trace(Level.ERROR, "Could not start the fave "
+								+ "after " + task + ": " + e);
+					} finally {
+						if (inFlight.decrementAndGet() == 0)
+							done.countDown();
+					}
+				}
+			}, ioPool);
+		}
+
+		/**
+		 * Runs the whole pipeline for one fave. On a network error the whole
+		 * fave is retried once. The disk space claimed for an attempt is
+		 * released when it ends.
+		 */
+		private CompletableFuture<Outcome> process(final DownloadTask task,
+				final int attempt) {
+			final AtomicLong claimed = new AtomicLong();
+			return resolveAndFetch(task, task.getCandidateUrls(), 0, claimed)
+					.thenComposeAsync(
+							fetched -> verifyAndCommit(task, fetched),
+							verifyPool)
+					.handle((outcome, ex) -> {
+						DiskSpace.release(claimed.getAndSet(0));
+						if (ex == null)
+							return CompletableFuture.completedFuture(outcome);
+						task.getPartFile().delete();
+						if (attempt > 0)
+							return CompletableFuture.<Outcome> failedFuture(ex);
+						Tracer.trace(Level.WARN, "Caught " + ex
+								+ " while downloading "
+								+ task + "... Retrying whole image...");
+						Metrics.RETRIES.inc();
+						RetryEvent.emit(task.getId(), task.getResolvedUrl(),
+								"fave", ex);
+						return process(task, attempt + 1);
+					}).thenCompose(Function.identity());
+		}
+
+		/**
+		 * Tries the candidate URLs in order until one answers with 200, and
+		 * streams that body into the part file.
+		 *
+		 * @param claimed
+		 *            Receives the disk space claimed for the body.
+		 */
+		private CompletableFuture<Fetched> resolveAndFetch(
+				final DownloadTask task, final List<String> urls,
+				final int index, final AtomicLong claimed) {
+			if (index >= urls.size())
+				return CompletableFuture.completedFuture(Fetched.UNAVAILABLE);
+			HttpRequest request = HttpRequest
+					.newBuilder(URI.create(urls.get(index)))
+					.header("User-Agent", Constants.USER_AGENT)
+					.timeout(Duration.ofSeconds(TIMEOUT))
+					.GET().build();
+			return client.sendAsync(request,
+					new FetchHandler(task, urls.get(index), System.nanoTime(),
+							claimed))
+					.thenCompose(response -> {
+						Fetched fetched = response.body();
+						if (fetched == Fetched.UNAVAILABLE)
+							return resolveAndFetch(task, urls, index + 1,
+									claimed);
+						if (fetched.status == Fetched.DOWNLOADED)
+							Tracer.trace("Fetched " + task + " from "
+									+ response.uri());
+						return CompletableFuture.completedFuture(fetched);
+					});
+		}
+
+		/**
+		 * Checks the part file and moves it into place. Runs on the verify
+		 * pool since decoding images is CPU-bound.
+		 */
+		private CompletableFuture<Outcome> verifyAndCommit(DownloadTask task,
+				Fetched fetched) {
+			if (fetched == Fetched.UNAVAILABLE) {
+				Tracer.trace("No size of " + task + " is accessible...");
+				return CompletableFuture.completedFuture(Outcome.UNAVAILABLE);
+			}
+			if (fetched.status == Fetched.SKIPPED) {
+				Tracer.trace("Skipping file " + task
+						+ " -- already downloaded...");
+				return CompletableFuture.completedFuture(Outcome.SKIPPED);
+			}
+			if (fetched.status == Fetched.DEFERRED) {
+				Tracer.trace(Level.WARN, "Not enough disk space for " + task
+						+ " -- deferring it and all faves left...");
+				return CompletableFuture.completedFuture(Outcome.DEFERRED);
+			}
+
+			listener.statusChanged(task, "Verifying...");
+			long verifyStart = System.nanoTime();
+			File part = task.getPartFile();
+			if (fetched.size >= 0 && fetched.size != fetched.written) {
+				part.delete();
+				return CompletableFuture.failedFuture(new IOException(
+						"Truncated download of " + task + ": got "
+								+ fetched.written + " of " + fetched.size
+								+ " bytes"));
+			}
+			try {
+				if (!Images.isComplete(part)) {
+					part.delete();
+					return CompletableFuture.failedFuture(new IOException(
+							"Incomplete image " + task
+									+ ": no end of image marker in "
+									+ fetched.written + " bytes"));
+				}
+			} catch (IOException e) {
+				return CompletableFuture.failedFuture(e);
+			}
+			VerifyEvent verify = new VerifyEvent();
+			verify.begin();
+			boolean largeEnough = Images.isLargeEnough(part, minSize);
+			listener.stageFinished(task, Stage.VERIFY, System.nanoTime()
+					- verifyStart);
+			verify.end();
+			if (verify.shouldCommit()) {
+				verify.set(task.getId(), task.getResolvedUrl());
+				verify.bytes = fetched.written;
+				verify.largeEnough = largeEnough;
+				verify.commit();
+			}
+			if (!largeEnough) {
+				Tracer.trace("Image " + task
+						+ " not large enough! Deleting and excluding.");
+				part.delete();
+				try {
+					task.getExclusionFile().createNewFile();
+				} catch (IOException e) {
+					return CompletableFuture.failedFuture(e);
+				}
+				ExcludeEvent.emit(task.getId(), task.getResolvedUrl(),
+						"smaller than " + minSize + " pixels");
+				return CompletableFuture.completedFuture(Outcome.TOO_SMALL);
+			}
+			try {
+				commit(part, task.getTarget());
+			} catch (IOException e) {
+				return CompletableFuture.failedFuture(e);
+			}
+			task.recordChecksum(fetched.written, fetched.checksum);
+			Tracer.trace("Done downloading " + task + "...");
+			return CompletableFuture.completedFuture(Outcome.DOWNLOADED);
+		}
+
+		/**
+		 * Decides, once the response headers are in, what to do with the body.
+		 */
+		private class FetchHandler implements BodyHandler<Fetched> {
+
+			private final DownloadTask task;
+
+			private final String url;
+
+			/** When the request was sent, in System.nanoTime(). */
+			private final long sent;
+
+			/** Receives the disk space claimed for the body. */
+			private final AtomicLong claimed;
+
+			/** Begins when the request is sent. */
+			private final ResolveEvent resolve = new ResolveEvent();
+
+			FetchHandler(DownloadTask task, String url, long sent,
+					AtomicLong claimed) {
+				this.task = task;
+				this.url = url;
+				this.sent = sent;
+				this.claimed = claimed;
+				resolve.begin();
+			}
+
+			public HttpResponse.BodySubscriber<Fetched> apply(
+					ResponseInfo info) {
+				resolve.end();
+				if (resolve.shouldCommit()) {
+					resolve.set(task.getId(), url);
+					resolve.status = info.statusCode();
+					resolve.commit();
+				}
+				if (info.statusCode() != 200)
+					return BodySubscribers.replacing(Fetched.UNAVAILABLE);
+				task.setResolvedUrl(url);
+				listener.stageFinished(task, Stage.RESOLVE, System.nanoTime()
+						- sent);
+
+				final long size = info.headers()
+						.firstValueAsLong("Content-Length").orElse(-1);
+				if (task.isAlreadyDownloaded(size))
+					return BodySubscribers.replacing(new Fetched(
+							Fetched.SKIPPED, size, 0, null));
+				if (!DiskSpace.claim(task.getTarget().getParentFile(), size))
+					return BodySubscribers.replacing(new Fetched(
+							Fetched.DEFERRED, size, 0, null));
+				claimed.set(size);
+
+				listener.transferStarted(task, size);
+				listener.statusChanged(task, "Downloading...");
+				final long transferStart = System.nanoTime();
+				final TransferEvent transfer = new TransferEvent();
+				transfer.begin();
+				final FileChannelSubscriber subscriber = new FileChannelSubscriber(
+						task.getPartFile(), size, task, listener);
+				return BodySubscribers.mapping(subscriber, written -> {
+					listener.stageFinished(task, Stage.TRANSFER,
+							System.nanoTime() - transferStart);
+					transfer.end();
+					if (transfer.shouldCommit()) {
+						transfer.set(task.getId(), url);
+						transfer.bytes = written;
+						transfer.commit();
+					}
+					return new Fetched(Fetched.DOWNLOADED, size, written,
+							subscriber.getChecksum());
+				});
+			}
+		}
+	}
+
+	/**
+	 * Moves a verified part file to its target, atomically if possible.
+	 */
+	static void commit(File part, File target) throws IOException {
+		try {
+			Files.move(part.toPath(), target.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(part.toPath(), target.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * The result of the fetch stage.
+	 */
+	private static class Fetched {
+
+		static final int DOWNLOADED = 0;
+
+		static final int SKIPPED = 1;
+
+		/** Not started for lack of disk space. */
+		static final int DEFERRED = 2;
+
+		/** No candidate URL answered with 200. */
+		static final Fetched UNAVAILABLE = new Fetched(-1, -1, 0, null);
+
+		/** DOWNLOADED, SKIPPED or DEFERRED. */
+		final int status;
+
+		/** The announced size in bytes or -1 if unknown. */
+		final long size;
+
+		/** The number of bytes actually written. */
+		final long written;
+
+		/** The checksum of the written bytes. */
+		final String checksum;
+
+		Fetched(int status, long size, long written, String checksum) {
+			this.status = status;
+			this.size = size;
+			this.written = written;
+			this.checksum = checksum;
+		}
+	}
+}
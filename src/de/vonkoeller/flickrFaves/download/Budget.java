@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.download;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.vonkoeller.flickrFaves.config.Options;
+import de.vonkoeller.flickrFaves.metrics.Metrics;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Limits a run to a wall-clock time and a number of bytes
+ *         transferred. Once either is used up, no further faves are started;
+ *         transfers in flight are allowed to finish. To keep the byte budget
+ *         from being overshot by everything in flight, it also counts as
+ *         used up once the bytes transferred plus the expected size of the
+ *         faves in flight reach it.
+ */
+public class Budget {
+
+	/** System.nanoTime() after which no fave is started; 0 for no limit. */
+	private final long deadline;
+
+	/** The bytes that may be transferred; 0 for no limit. */
+	private final long maxBytes;
+
+	/** Bytes transferred before the run started. */
+	private final long bytesBefore = Metrics.BYTES_TRANSFERRED.get();
+
+	/** What the budget was exhausted by; null while it is not. */
+	private volatile String exhaustedBy = null;
+
+	/** The faves handed out and not finished yet. */
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/** The faves downloaded, to estimate the size of a fave. */
+	private final AtomicInteger downloaded = new AtomicInteger();
+
+	/** The size of all faves downloaded. */
+	private final AtomicLong downloadedBytes = new AtomicLong();
+
+	/**
+	 * @param millis
+	 *            The wall-clock time of the run from now; 0 for no limit.
+	 * @param maxBytes
+	 *            The bytes that may be transferred; 0 for no limit.
+	 */
+	public Budget(long millis, long maxBytes) {
+		this.deadline = millis > 0 ? System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(millis) : 0;
+		this.maxBytes = Math.max(0, maxBytes);
+	}
+
+	/**
+	 * Creates the budget configured via the options "timeBudgetMinutes" and
+	 * "transferBudgetMB", counting from now.
+	 *
+	 * @return The budget or null if neither option is set.
+	 */
+	public static Budget fromOptions() {
+		long minutes = Options.getLong("timeBudgetMinutes", 0);
+		long megabytes = Options.getLong("transferBudgetMB", 0);
+		if (minutes <= 0 && megabytes <= 0)
+			return null;
+		return new Budget(TimeUnit.MINUTES.toMillis(minutes),
+				megabytes * 1024 * 1024);
+	}
+
+	/**
+	 * @return true if no further fave may be started.
+	 */
+	public boolean isExhausted() {
+		if (exhaustedBy != null)
+			return true;
+		if (deadline != 0 && System.nanoTime() - deadline >= 0)
+			exhaustedBy = "time";
+		else if (maxBytes != 0 && projectedBytes() >= maxBytes)
+			exhaustedBy = "bytes";
+		return exhaustedBy != null;
+	}
+
+	/**
+	 * @return The bytes of the faves downloaded plus the expected size of the
+	 *         faves in flight, based on the mean size of the faves downloaded
+	 *         so far, or the bytes transferred if that is more.
+	 */
+	private long projectedBytes() {
+		long used = Metrics.BYTES_TRANSFERRED.get() - bytesBefore;
+		int done = downloaded.get();
+		if (done == 0)
+			return used;
+		long bytes = downloadedBytes.get();
+		return Math.max(used, bytes + bytes / done * inFlight.get());
+	}
+
+	/**
+	 * Called when a fave is handed out to be downloaded.
+	 */
+	void started() {
+		inFlight.incrementAndGet();
+	}
+
+	/**
+	 * Called when a fave handed out has been handled, including when it is
+	 * put back to be retried later.
+	 *
+	 * @param bytes
+	 *            The size of the fave if it has been downloaded, -1
+	 *            otherwise.
+	 */
+	void finished(long bytes) {
+		inFlight.decrementAndGet();
+		if (bytes >= 0) {
+			downloadedBytes.addAndGet(bytes);
+			downloaded.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Wraps a download listener to follow the faves in flight.
+	 *
+	 * @param delegate
+	 *            The listener to forward all calls to.
+	 * @return The wrapping listener.
+	 */
+	public DownloadListener recording(final DownloadListener delegate) {
+		return new ForwardingDownloadListener(delegate) {
+			@Override
+			public void taskFinished(DownloadTask task, Outcome outcome) {
+				finished(outcome == Outcome.DOWNLOADED ? task.getTarget()
+						.length() : -1);
+				super.taskFinished(task, outcome);
+			}
+		};
+	}
+
+	/**
+	 * @return "time" or "bytes" if the budget has been used up, null
+	 *         otherwise.
+	 */
+	public String getExhaustedBy() {
+		return exhaustedBy;
+	}
+}
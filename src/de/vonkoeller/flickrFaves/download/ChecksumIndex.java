@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.download;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.vonkoeller.flickrFaves.debug.Tracer;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Remembers size and checksum of every fave downloaded into a
+ *         directory. The index is a text file in the directory itself, one
+ *         "&lt;algorithm&gt;:&lt;hex&gt; &lt;size&gt; &lt;file name&gt;" line
+ *         per fave. New entries are appended as soon as a fave is committed;
+ *         removed entries are only dropped when the index is saved.
+ */
+public class ChecksumIndex {
+
+	/** The name of the index file within the download directory. */
+	public static final String FILENAME = ".flickrFaves-checksums";
+
+	/** The index file. */
+	private final File file;
+
+	/** File name to entry. */
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	/** Whether entries were removed or superseded since the last save. */
+	private boolean dirty = false;
+
+	/** Appends new entries; opened lazily. */
+	private Writer appender = null;
+
+	/**
+	 * Loads the index of a download directory; a missing index is empty.
+	 *
+	 * @param dir
+	 *            The download directory.
+	 */
+	public ChecksumIndex(File dir) {
+		this.file = new File(dir, FILENAME);
+		if (!file.exists())
+			return;
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), StandardCharsets.UTF_8));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					String[] parts = line.split(" ", 3);
+					if (parts.length < 3 || line.startsWith("#"))
+						continue;
+					try {
+						entries.put(parts[2], new Entry(parts[0],
+								Long.parseLong(parts[1])));
+					} catch (NumberFormatException e) {
+						dirty = true;
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Tracer.trace("Could not read checksum index " + file + ": " + e);
+		}
+	}
+
+	/**
+	 * Records a committed fave.
+	 *
+	 * @param filename
+	 *            The fave's file name.
+	 * @param size
+	 *            The number of bytes written.
+	 * @param checksum
+	 *            The checksum computed while downloading.
+	 */
+	public synchronized void record(String filename, long size,
+			String checksum) {
+		if (entries.put(filename, new Entry(checksum, size)) != null)
+			dirty = true;
+		try {
+			if (appender == null)
+				appender = new OutputStreamWriter(new FileOutputStream(file,
+						true), StandardCharsets.UTF_8);
+			appender.write(checksum + " " + size + " " + filename + "\n");
+			appender.flush();
+		} catch (IOException e) {
+			Tracer.trace("Could not append to checksum index " + file + ": "
+					+ e);
+		}
+	}
+
+	/**
+	 * Forgets a fave, e.g. because it has been deleted.
+	 */
+	public synchronized void remove(String filename) {
+		if (entries.remove(filename) != null)
+			dirty = true;
+	}
+
+	/**
+	 * @return The recorded checksum of a fave or null if unknown.
+	 */
+	public synchronized String getChecksum(String filename) {
+		Entry e = entries.get(filename);
+		return e == null ? null : e.checksum;
+	}
+
+	/**
+	 * Checks a downloaded file against the index without reading it.
+	 *
+	 * @param target
+	 *            The downloaded file.
+	 * @return true if the file is recorded and still has the recorded size.
+	 */
+	public synchronized boolean isComplete(File target) {
+		Entry e = entries.get(target.getName());
+		return e != null && target.length() == e.size;
+	}
+
+	/**
+	 * Rewrites the index without removed and superseded entries if
+	 * necessary, and closes it.
+	 */
+	public synchronized void save() {
+		try {
+			if (appender != null) {
+				appender.close();
+				appender = null;
+			}
+			if (!dirty)
+				return;
+			File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+			Writer out = new OutputStreamWriter(new FileOutputStream(tmp),
+					StandardCharsets.UTF_8);
+			try {
+				for (Map.Entry<String, Entry> e : entries.entrySet())
+					out.write(e.getValue().checksum + " " + e.getValue().size
+							+ " " + e.getKey() + "\n");
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			dirty = false;
+		} catch (IOException e) {
+			Tracer.trace("Could not save checksum index " + file + ": " + e);
+		}
+	}
+
+	private static class Entry {
+
+		final String checksum;
+
+		final long size;
+
+		Entry(String checksum, long size) {
+			this.checksum = checksum;
+			this.size = size;
+		}
+	}
+}
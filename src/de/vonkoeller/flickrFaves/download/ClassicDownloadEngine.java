@@ -0,0 +1,528 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.download;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import de.vonkoeller.flickrFaves.config.Options;
+import de.vonkoeller.flickrFaves.debug.ConnectEvent;
+import de.vonkoeller.flickrFaves.debug.ExcludeEvent;
+import de.vonkoeller.flickrFaves.debug.ResolveEvent;
+import de.vonkoeller.flickrFaves.debug.RetryEvent;
+import de.vonkoeller.flickrFaves.debug.Tracer;
+import de.vonkoeller.flickrFaves.debug.Tracer.Level;
+import de.vonkoeller.flickrFaves.debug.TransferEvent;
+import de.vonkoeller.flickrFaves.debug.VerifyEvent;
+import de.vonkoeller.flickrFaves.download.DownloadListener.Outcome;
+import de.vonkoeller.flickrFaves.download.DownloadListener.Stage;
+import de.vonkoeller.flickrFaves.gui.Constants;
+import de.vonkoeller.flickrFaves.metrics.Metrics;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         The original download engine: downloads one fave after the other
+ *         over blocking HttpURLConnections on the calling thread.
+ */
+public class ClassicDownloadEngine implements DownloadEngine {
+
+	/** The timeout in milliseconds before a fave download is interrupted. */
+	private static final int TIMEOUT = Options.getInt("downloadTimeout",
+			Constants.DOWNLOAD_TIMEOUT) * 1000;
+
+	public int downloadAll(Scheduler queue, int minSize,
+			DownloadListener listener) {
+		int numFailedDownloads = 0;
+		DownloadTask task;
+		while ((task = queue.next()) != null) {
+			Metrics.QUEUE_DEPTH.set(queue.size());
+			Outcome outcome = downloadOne(task, minSize, listener);
+			if (outcome == Outcome.FAILED) {
+				if (queue.retryLater(task))
+					continue;
+				numFailedDownloads++;
+			} else if (outcome == Outcome.DEFERRED)
+				queue.defer(task);
+			listener.taskFinished(task, outcome);
+		}
+		return numFailedDownloads;
+	}
+
+	/**
+	 * Downloads a single fave, treating I/O errors as a failed download.
+	 * 
+	 * @return What happened.
+	 */
+	Outcome downloadOne(DownloadTask task, int minSize,
+			DownloadListener listener) {
+		Tracer.setContext(task.getFilename());
+		Metrics.ACTIVE_CONNECTIONS.inc();
+		try {
+			return download(task, minSize, listener, true);
+		} catch (IOException e) {
+			/*
+			 * Getting an IOException here really shouldn't happen; however, we
+			 * might as well handle it graciously and try downloading the other
+			 * photos.
+			 */
+			Tracer.trace(Level.WARN, "Caught IOException outside "
+					+ "downloadImage() while attemption to download "
+					+ task.getFilename() + " -- failing gracefully");
+			listener.taskFailed(task, e);
+			task.getPartFile().delete();
+			return Outcome.FAILED;
+		} finally {
+			Metrics.ACTIVE_CONNECTIONS.dec();
+			Tracer.setContext(null);
+		}
+	}
+
+	/**
+	 * Downloads the largest available size of a single fave.
+	 * 
+	 * @param segmentable
+	 *            Whether a large fave may be downloaded in segments.
+	 */
+	private Outcome download(DownloadTask task, int minSize,
+			DownloadListener listener, boolean segmentable) throws IOException {
+		Tracer.trace("Now downloading largest size for " + task.getId());
+		String curFilename = task.getFilename();
+		File out = task.getTarget();
+
+		// download the largest available size
+		long resolveStart = System.nanoTime();
+		long connectNanos = 0;
+		HttpURLConnection urlConn = null;
+		for (String url : task.getCandidateUrls()) {
+			ResolveEvent resolve = new ResolveEvent();
+			resolve.begin();
+			urlConn = openHttpConnection(url);
+			long connectStart = System.nanoTime();
+			connect(task, url, urlConn);
+			connectNanos += System.nanoTime() - connectStart;
+			int status = urlConn.getResponseCode();
+			resolve.end();
+			if (resolve.shouldCommit()) {
+				resolve.set(task.getId(), url);
+				resolve.status = status;
+				resolve.commit();
+			}
+			if (status == 200)
+				break;
+			urlConn.disconnect();
+			urlConn = null;
+		}
+		listener.stageFinished(task, Stage.CONNECT, connectNanos);
+		listener.stageFinished(task, Stage.RESOLVE, System.nanoTime()
+				- resolveStart - connectNanos);
+		if (urlConn == null) {
+			Tracer.trace("No size of " + curFilename + " is accessible...");
+			return Outcome.UNAVAILABLE;
+		}
+
+		// a URL is available, download it, check size later
+		task.setResolvedUrl(urlConn.getURL().toString());
+		listener.statusChanged(task, "Connecting...");
+
+		// get file size; videos may be larger than 2 GB
+		long fileSize = urlConn.getContentLengthLong();
+
+		// check if this image is already downloaded
+		if (out.exists()) {
+			// if overwrite is not enabled, then the file was already skipped
+			// earlier to save time
+
+			// also skip if it is already downloaded and the file size matches
+			// (otherwise incomplete download => delete)
+			if (task.isAlreadyDownloaded(fileSize)) {
+				Tracer.trace("Skipping file " + curFilename
+						+ " -- already downloaded...");
+				urlConn.disconnect();
+				return Outcome.SKIPPED;
+			}
+			// delete file otherwise -- overwrite is enabled and file sizes do
+			// not match
+			else {
+				Tracer.trace("Deleting and re-downloading file "
+						+ curFilename + "...");
+				out.delete();
+			}
+		}
+
+		// rather than fail file by file on a full disk, leave the rest for
+		// the next run; the room stays claimed while the fave is written
+		if (!DiskSpace.claim(out.getParentFile(), fileSize)) {
+			Tracer.trace(Level.WARN, "Not enough disk space for "
+					+ curFilename + " -- deferring it and all faves left...");
+			urlConn.disconnect();
+			return Outcome.DEFERRED;
+		}
+		try {
+			return transfer(task, urlConn, fileSize, minSize, listener,
+					segmentable);
+		} finally {
+			DiskSpace.release(fileSize);
+		}
+	}
+
+	/**
+	 * Downloads a fave that answered with 200 into its part file, verifies
+	 * it and moves it into place.
+	 * 
+	 * @param urlConn
+	 *            The connection that answered with 200.
+	 * @param fileSize
+	 *            Its Content-Length or -1 if unknown.
+	 */
+	private Outcome transfer(DownloadTask task, HttpURLConnection urlConn,
+			long fileSize, int minSize, DownloadListener listener,
+			boolean segmentable) throws IOException {
+		String curFilename = task.getFilename();
+		File out = task.getTarget();
+		// written to the part file and only moved to the target once
+		// complete, so an interrupted download never looks finished
+		File part = task.getPartFile();
+
+		// large files are downloaded over several connections at once
+		if (segmentable && SegmentedDownload.isWorthwhile(urlConn, fileSize)) {
+			String validator = SegmentedDownload.validatorOf(urlConn);
+			urlConn.disconnect();
+			return downloadSegmented(task, fileSize, validator, minSize,
+					listener);
+		}
+
+		// open URL for download
+		BufferedInputStream inS = new BufferedInputStream(
+				urlConn.getInputStream());
+		// open part file for saving, preallocated to the announced size
+		BufferedOutputStream outS = new BufferedOutputStream(
+				DiskSpace.openPreallocated(part, fileSize));
+
+		listener.transferStarted(task, fileSize);
+		listener.statusChanged(task, "Downloading...");
+		Tracer.trace("Now downloading " + curFilename + " from "
+				+ urlConn.getURL());
+
+		// start copying, byte by byte, computing the checksum on the way
+		long transferStart = System.nanoTime();
+		TransferEvent transfer = new TransferEvent();
+		transfer.begin();
+		StreamingChecksum checksum = StreamingChecksum.create();
+		long bytesCopied;
+		try {
+			// try to download image; might time out
+			bytesCopied = downloadComplete(inS, outS, part, fileSize,
+					checksum, task, listener);
+		} catch (IOException e) {
+			/*
+			 * An IOException at this point often means that the connection
+			 * has timed out or that there is a network issue of some sort.
+			 * This should result in the more specific SocketTimeoutException;
+			 * however, it can also result in other IOExceptions such as a
+			 * generic '504 gateway timeout'. Therefore we retry retry
+			 * downloading the whole image once.
+			 */
+			Tracer.trace(Level.WARN, "Caught IOException while attempting "
+					+ "download... Retrying whole image...");
+			Metrics.RETRIES.inc();
+			RetryEvent.emit(task.getId(), task.getResolvedUrl(), "fave", e);
+			inS.close();
+			outS.close();
+			urlConn = (HttpURLConnection) urlConn.getURL().openConnection();
+
+			// set timeout
+			urlConn.setConnectTimeout(TIMEOUT);
+			urlConn.setReadTimeout(TIMEOUT);
+
+			checksum = StreamingChecksum.create();
+			try {
+				// reconnecting may fail, too, e.g. with a 504 or a redirect
+				// to the image not available image
+				int status = urlConn.getResponseCode();
+				if (status != 200)
+					throw new IOException("Retry answered with " + status);
+				inS = new BufferedInputStream(urlConn.getInputStream());
+				// the first response may have announced a wrong size
+				fileSize = urlConn.getContentLengthLong();
+				// the byte count starts over
+				listener.transferStarted(task, fileSize);
+				outS = new BufferedOutputStream(DiskSpace.openPreallocated(
+						part, fileSize));
+				bytesCopied = downloadComplete(inS, outS, part, fileSize,
+						checksum, task, listener);
+			} catch (IOException e2) {
+				// connection timed out again -- give up
+				Tracer.trace(Level.WARN,
+						"Caught IOException again... Giving up...");
+				listener.taskFailed(task, e2);
+				inS.close();
+				outS.close();
+				part.delete();
+				return Outcome.FAILED;
+			}
+		}
+
+		// close streams
+		inS.close();
+		outS.close();
+		listener.stageFinished(task, Stage.TRANSFER, System.nanoTime()
+				- transferStart);
+		transfer.end();
+		if (transfer.shouldCommit()) {
+			transfer.set(task.getId(), task.getResolvedUrl());
+			transfer.bytes = bytesCopied;
+			transfer.commit();
+		}
+
+		if (!verify(task, part, bytesCopied, minSize, listener))
+			return Outcome.TOO_SMALL;
+
+		AsyncDownloadEngine.commit(part, out);
+		task.recordChecksum(bytesCopied, checksum.getValue());
+		Tracer.trace("Done downloading " + curFilename + "...");
+		return Outcome.DOWNLOADED;
+	}
+
+	/**
+	 * Downloads a large fave in segments into its part file and only commits
+	 * it to the target once every segment has arrived and it is verified. If
+	 * the fave changes on the server meanwhile, it is downloaded again as a
+	 * whole.
+	 */
+	private Outcome downloadSegmented(DownloadTask task, long fileSize,
+			String validator, int minSize, DownloadListener listener)
+			throws IOException {
+		File part = task.getPartFile();
+		SegmentedDownload segmented = new SegmentedDownload(
+				task.getResolvedUrl(), fileSize, TIMEOUT, validator, task,
+				listener);
+		listener.transferStarted(task, fileSize);
+		listener.statusChanged(task, "Downloading...");
+		Tracer.trace("Now downloading " + task.getFilename() + " in "
+				+ segmented.getSegments() + " segments from "
+				+ task.getResolvedUrl());
+
+		long transferStart = System.nanoTime();
+		TransferEvent transfer = new TransferEvent();
+		transfer.begin();
+		String checksum;
+		try {
+			checksum = segmented.downloadTo(part);
+			if (!Images.isComplete(part))
+				throw new IOException("Incomplete image: no end of image "
+						+ "marker in " + fileSize + " bytes");
+		} catch (SegmentedDownload.ChangedException e) {
+			// the segments may mix two versions -- start over in one piece
+			Tracer.trace(Level.WARN, "Fave changed during segmented download ("
+					+ e.getMessage() + ")... Restarting whole fave...");
+			Metrics.RETRIES.inc();
+			RetryEvent.emit(task.getId(), task.getResolvedUrl(), "fave", e);
+			part.delete();
+			return download(task, minSize, listener, false);
+		} catch (IOException e) {
+			Tracer.trace(Level.WARN, "Segmented download failed (" + e
+					+ ")... Giving up...");
+			listener.taskFailed(task, e);
+			part.delete();
+			return Outcome.FAILED;
+		}
+		listener.stageFinished(task, Stage.TRANSFER, System.nanoTime()
+				- transferStart);
+		transfer.end();
+		if (transfer.shouldCommit()) {
+			transfer.set(task.getId(), task.getResolvedUrl());
+			transfer.bytes = fileSize;
+			transfer.commit();
+		}
+
+		if (!verify(task, part, fileSize, minSize, listener))
+			return Outcome.TOO_SMALL;
+
+		AsyncDownloadEngine.commit(part, task.getTarget());
+		task.recordChecksum(fileSize, checksum);
+		Tracer.trace("Done downloading " + task.getFilename() + "...");
+		return Outcome.DOWNLOADED;
+	}
+
+	/**
+	 * Checks the dimensions of a downloaded file and, if it is too small,
+	 * deletes it and excludes the fave from future downloads.
+	 * 
+	 * @return true if the file is large enough to keep.
+	 */
+	private static boolean verify(DownloadTask task, File file, long bytes,
+			int minSize, DownloadListener listener) throws IOException {
+		listener.statusChanged(task, "Verifying...");
+		Tracer.trace("Checking dimensions of the downloaded file...");
+		long verifyStart = System.nanoTime();
+		VerifyEvent verify = new VerifyEvent();
+		verify.begin();
+		boolean largeEnough = file.exists()
+				&& Images.isLargeEnough(file, minSize);
+		listener.stageFinished(task, Stage.VERIFY, System.nanoTime()
+				- verifyStart);
+		verify.end();
+		if (verify.shouldCommit()) {
+			verify.set(task.getId(), task.getResolvedUrl());
+			verify.bytes = bytes;
+			verify.largeEnough = largeEnough;
+			verify.commit();
+		}
+		if (largeEnough)
+			return true;
+		Tracer.trace("Image not large enough! Deleting and excluding.");
+
+		// image is too small
+		file.delete();
+
+		// make sure that we don't try this again
+		task.getExclusionFile().createNewFile();
+		ExcludeEvent.emit(task.getId(), task.getResolvedUrl(), "smaller than "
+				+ minSize + " pixels");
+		return false;
+	}
+
+	/**
+	 * Copies the download to the file like downloadImage and makes sure that
+	 * it is complete.
+	 * 
+	 * @return The number of bytes copied.
+	 * @throws IOException
+	 *             also if the image ends early.
+	 */
+	private static long downloadComplete(BufferedInputStream inS,
+			BufferedOutputStream outS, File out, long fileSize,
+			StreamingChecksum checksum, DownloadTask task,
+			DownloadListener listener) throws IOException {
+		long bytesCopied = downloadImage(inS, outS, fileSize, checksum, task,
+				listener);
+		outS.flush();
+		if (!Images.isComplete(out))
+			throw new IOException("Incomplete image: no end of image marker "
+					+ "in " + bytesCopied + " bytes");
+		return bytesCopied;
+	}
+
+	/**
+	 * Copies the download to the file, updating the checksum on the way.
+	 * 
+	 * @return The number of bytes copied.
+	 * @throws IOException
+	 *             also if fewer bytes than announced arrive.
+	 */
+	static long downloadImage(BufferedInputStream inS,
+			BufferedOutputStream outS, long fileSize,
+			StreamingChecksum checksum, DownloadTask task,
+			DownloadListener listener) throws IOException {
+		int numBytesRead = 0;
+		long bytesCopied = 0;
+		byte[] bytesRead = new byte[512];
+		while (true) {
+			// read bytes; retry three times in case of timeout
+			boolean success = false;
+			int timeOutCount = 0;
+			while (!success) {
+				try {
+					numBytesRead = inS.read(bytesRead, 0, 512);
+					success = true;
+				} catch (IOException e) {
+					/*
+					 * An IOException at this point often means that the
+					 * connection has timed out or that there is a network issue
+					 * of some sort. This should result in the more specific
+					 * SocketTimeoutException; however, it can also result in
+					 * other IOExceptions such as a generic '504 gateway
+					 * timeout'. Therefore we retry retry downloading the whole
+					 * image once.
+					 */
+					timeOutCount++;
+					if (timeOutCount > 2)
+						throw e;
+					// try again
+					success = false;
+					Metrics.RETRIES.inc();
+					RetryEvent.emit(task.getId(), task.getResolvedUrl(),
+							"block", e);
+					Tracer.trace(Level.WARN, "Connection error (IOException) #"
+							+ timeOutCount + ", retrying last block...");
+				}
+			}
+			// end of file? -- then stop loop
+			if (numBytesRead < 1)
+				break;
+			// write bytes and update count
+			outS.write(bytesRead, 0, numBytesRead);
+			checksum.update(bytesRead, 0, numBytesRead);
+			bytesCopied += numBytesRead;
+			Metrics.BYTES_TRANSFERRED.add(numBytesRead);
+
+			// update progress if file size is available
+			if (fileSize > 0)
+				listener.bytesTransferred(task, bytesCopied);
+		}
+
+		// a connection closed early looks like a regular end of file
+		if (fileSize > 0 && bytesCopied != fileSize)
+			throw new IOException("Truncated download: got " + bytesCopied
+					+ " of " + fileSize + " bytes");
+		return bytesCopied;
+	}
+
+	/**
+	 * Connects, recording the connection and TLS handshake as an event even
+	 * if they fail.
+	 */
+	private static void connect(DownloadTask task, String url,
+			HttpURLConnection urlConn) throws IOException {
+		ConnectEvent connect = new ConnectEvent();
+		connect.begin();
+		try {
+			urlConn.connect();
+		} finally {
+			connect.end();
+			if (connect.shouldCommit()) {
+				connect.set(task.getId(), url);
+				connect.commit();
+			}
+		}
+	}
+
+	/**
+	 * Prepares a connection without connecting it yet, so that the caller
+	 * can time the connect on its own.
+	 */
+	private static HttpURLConnection openHttpConnection(String url)
+			throws IOException {
+		// disable redirects to make sure we don't get the image not
+		// available image
+		HttpURLConnection.setFollowRedirects(false);
+		HttpURLConnection largestUrl = (HttpURLConnection) new URL(url)
+				.openConnection();
+		// a stalled server must not block the resolution either
+		largestUrl.setConnectTimeout(TIMEOUT);
+		largestUrl.setReadTimeout(TIMEOUT);
+
+		return largestUrl;
+	}
+}
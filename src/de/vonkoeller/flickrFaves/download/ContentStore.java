@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import com.flickr4java.flickr.photos.Photo;
+
+import de.vonkoeller.flickrFaves.debug.Tracer;
+import de.vonkoeller.flickrFaves.download.DownloadListener.Outcome;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Content-addressed store shared by all download directories and
+ *         accounts. Every downloaded fave is kept once in the store, keyed by
+ *         its id and original secret, and hard-linked into each download
+ *         directory as the usual "&lt;id&gt;.jpg" or "&lt;id&gt;.mp4". Deleting a
+ *         stale fave from one directory therefore only removes that
+ *         directory's link. If hard links are not supported, files are
+ *         copied instead and the entry is marked as copied, so it is never
+ *         pruned.
+ */
+public class ContentStore {
+
+	/** Suffix of the marker next to an entry that was copied, not linked. */
+	private static final String COPIED = ".copied";
+
+	/** The root directory of the store. */
+	private final File root;
+
+	/**
+	 * @param root
+	 *            The root directory of the store; created if necessary.
+	 */
+	public ContentStore(File root) {
+		this.root = root;
+		root.mkdirs();
+	}
+
+	/**
+	 * Builds the store key of a fave. The original secret changes whenever
+	 * the owner replaces the photo, so a replaced photo gets a new key.
+	 *
+	 * @return The key or null if the fave has no secret to key by.
+	 */
+	static String key(DownloadTask task) {
+		Photo photo = task.getPhoto();
+		String secret = photo.getOriginalSecret();
+		if (secret == null || secret.length() == 0)
+			secret = photo.getSecret();
+		if (secret == null || secret.length() == 0)
+			return null;
+		String filename = task.getFilename();
+		return photo.getId() + "_" + secret
+				+ filename.substring(filename.lastIndexOf('.'));
+	}
+
+	/**
+	 * @return The store file for a key, sharded by the id's last two digits.
+	 */
+	private File entry(String key) {
+		String id = key.substring(0, key.indexOf('_'));
+		String shard = id.length() < 2 ? id : id.substring(id.length() - 2);
+		return new File(new File(root, shard), key);
+	}
+
+	/**
+	 * Places a fave that is already in the store into its download directory
+	 * and records its checksum there. Since the entry may come from a
+	 * directory with a lower minimum size, it is checked against minSize
+	 * first; if it is too small, the fave is excluded instead.
+	 *
+	 * @param task
+	 *            The fave.
+	 * @param minSize
+	 *            The minimum size of the download directory in pixels.
+	 * @return SKIPPED if the fave is now in place, TOO_SMALL if it is now
+	 *         excluded, or null if it still needs to be downloaded.
+	 */
+	public Outcome linkInto(DownloadTask task, int minSize) {
+		String key = key(task);
+		if (key == null)
+			return null;
+		File entry = entry(key);
+		if (!entry.exists())
+			return null;
+		try {
+			if (minSize > 0 && !Images.isLargeEnough(entry, minSize)) {
+				Tracer.trace("Excluding " + task + " -- its copy in the "
+						+ "content store is smaller than " + minSize
+						+ " pixels...");
+				task.getExclusionFile().createNewFile();
+				return Outcome.TOO_SMALL;
+			}
+			if (link(entry.toPath(), task.getTarget().toPath()))
+				markCopied(entry);
+			task.recordChecksum(entry.length(), StreamingChecksum.of(entry));
+			Tracer.trace("Linked " + task + " from the content store...");
+			return Outcome.SKIPPED;
+		} catch (IOException e) {
+			Tracer.trace("Could not link " + task + " from the content store: "
+					+ e);
+			return null;
+		}
+	}
+
+	/**
+	 * Adds a freshly downloaded fave to the store.
+	 *
+	 * @param task
+	 *            The fave; its target file must exist.
+	 */
+	public void add(DownloadTask task) {
+		String key = key(task);
+		if (key == null)
+			return;
+		File entry = entry(key);
+		if (entry.exists())
+			return;
+		try {
+			if (link(task.getTarget().toPath(), entry.toPath()))
+				markCopied(entry);
+		} catch (IOException e) {
+			Tracer.trace("Could not add " + task + " to the content store: "
+					+ e);
+		}
+	}
+
+	/**
+	 * Wraps a listener so that every downloaded fave is added to this store.
+	 *
+	 * @param delegate
+	 *            The listener to forward all calls to.
+	 * @return The wrapping listener.
+	 */
+	public DownloadListener recording(final DownloadListener delegate) {
+		return new ForwardingDownloadListener(delegate) {
+			@Override
+			public void taskFinished(DownloadTask task, Outcome outcome) {
+				if (outcome == Outcome.DOWNLOADED)
+					add(task);
+				super.taskFinished(task, outcome);
+			}
+		};
+	}
+
+	/**
+	 * Deletes store entries that are no longer linked from any download
+	 * directory. Only possible on file systems reporting link counts; does
+	 * nothing elsewhere. Entries that were ever copied are kept, since their
+	 * copies do not count as links.
+	 *
+	 * @return The number of deleted entries.
+	 */
+	public int prune() {
+		int pruned = 0;
+		File[] shards = root.listFiles();
+		if (shards == null)
+			return 0;
+		for (File shard : shards) {
+			File[] entries = shard.listFiles();
+			if (entries == null)
+				continue;
+			for (File entry : entries) {
+				if (entry.getName().endsWith(COPIED)
+						|| new File(entry.getPath() + COPIED).exists())
+					continue;
+				try {
+					Object links = Files.getAttribute(entry.toPath(),
+							"unix:nlink");
+					if (links instanceof Integer
+							&& ((Integer) links).intValue() == 1
+							&& entry.delete())
+						pruned++;
+				} catch (UnsupportedOperationException e) {
+					// no link counts on this file system
+					return pruned;
+				} catch (IOException e) {
+					Tracer.trace("Could not check " + entry + ": " + e);
+				}
+			}
+		}
+		return pruned;
+	}
+
+	/**
+	 * Marks an entry as copied to or from a download directory.
+	 */
+	private static void markCopied(File entry) {
+		try {
+			new File(entry.getPath() + COPIED).createNewFile();
+		} catch (IOException e) {
+			Tracer.trace("Could not mark " + entry + " as copied: " + e);
+		}
+	}
+
+	/**
+	 * Makes link refer to the same content as existing, replacing link if it
+	 * exists.
+	 *
+	 * @return true if existing had to be copied rather than linked.
+	 */
+	private static boolean link(Path existing, Path link) throws IOException {
+		Files.createDirectories(link.getParent());
+		Path tmp = link.resolveSibling("." + link.getFileName() + ".link");
+		Files.deleteIfExists(tmp);
+		boolean copied = false;
+		try {
+			Files.createLink(tmp, existing);
+		} catch (UnsupportedOperationException e) {
+			Files.copy(existing, tmp);
+			copied = true;
+		} catch (FileSystemException e) {
+			// e.g. different file systems
+			Files.copy(existing, tmp);
+			copied = true;
+		}
+		try {
+			Files.move(tmp, link, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp, link, StandardCopyOption.REPLACE_EXISTING);
+		}
+		return copied;
+	}
+}
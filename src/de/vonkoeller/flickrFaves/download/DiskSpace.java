@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.vonkoeller.flickrFaves.config.Options;
+import de.vonkoeller.flickrFaves.gui.Constants;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Keeps downloads from filling up the disk. Before a fave is written,
+ *         the free space must exceed its size plus a reserve; otherwise the
+ *         fave is deferred and no further faves are started. Transfers in
+ *         flight claim their size until they are committed or discarded, so
+ *         that concurrent transfers cannot all pass the check against the
+ *         same free space. Files are preallocated to their announced size,
+ *         which lets the file system place them in one piece where it
+ *         supports that.
+ */
+public final class DiskSpace {
+
+	/** Rough JPEG size per pixel of an original, for estimates. */
+	private static final double BYTES_PER_PIXEL = 0.5;
+
+	/** Bytes claimed by transfers in flight. */
+	private static final AtomicLong claimed = new AtomicLong();
+
+	/**
+	 * Utility class -- cannot be instantiated.
+	 */
+	private DiskSpace() {
+		// empty on purpose
+	}
+
+	/**
+	 * @return The bytes to keep free, set via the "minFreeMB" option.
+	 */
+	public static long getReserve() {
+		return Options.getLong("minFreeMB", Constants.MIN_FREE_MB) * 1024 * 1024;
+	}
+
+	/**
+	 * Checks whether a file of the given size fits into a directory and
+	 * still leaves the reserve free, besides the room claimed by transfers
+	 * in flight.
+	 *
+	 * @param dir
+	 *            The directory to write to.
+	 * @param size
+	 *            The size of the file or -1 if unknown.
+	 * @return true if the file may be written.
+	 */
+	public static boolean hasRoomFor(File dir, long size) {
+		return dir.getUsableSpace() - claimed.get() - Math.max(0, size)
+				>= getReserve();
+	}
+
+	/**
+	 * Like hasRoomFor, but also claims the room for a transfer if it fits.
+	 * The claim must be released once the file is committed or discarded.
+	 * Until then, the bytes already written count twice, which errs on the
+	 * safe side.
+	 *
+	 * @param dir
+	 *            The directory to write to.
+	 * @param size
+	 *            The size of the file or -1 if unknown.
+	 * @return true if the file may be written; nothing is claimed otherwise.
+	 */
+	public static boolean claim(File dir, long size) {
+		long bytes = Math.max(0, size);
+		if (dir.getUsableSpace() - claimed.addAndGet(bytes) >= getReserve())
+			return true;
+		claimed.addAndGet(-bytes);
+		return false;
+	}
+
+	/**
+	 * Releases the room claimed for a transfer.
+	 *
+	 * @param size
+	 *            The size passed to claim.
+	 */
+	public static void release(long size) {
+		claimed.addAndGet(-Math.max(0, size));
+	}
+
+	/**
+	 * Estimates the size of a fave from its listed dimensions, before any of
+	 * it is fetched.
+	 *
+	 * @return The estimated size in bytes.
+	 */
+	public static long estimate(DownloadTask task) {
+		if (task.getFilename().endsWith(".mp4"))
+			return Constants.VIDEO_ESTIMATE;
+		int[] dims = MetadataFilter.largestDimensions(task.getPhoto());
+		if (dims == null)
+			return Constants.PHOTO_ESTIMATE;
+		return (long) (BYTES_PER_PIXEL * dims[0] * dims[1]);
+	}
+
+	/**
+	 * @return The estimated size of all given faves in bytes.
+	 */
+	public static long estimate(Collection<DownloadTask> tasks) {
+		long total = 0;
+		for (DownloadTask task : tasks)
+			total += estimate(task);
+		return total;
+	}
+
+	/**
+	 * Creates a file preallocated to its expected size and opens it for
+	 * writing from the start. The caller must write exactly size bytes or
+	 * discard the file. As the file has its full length from the start, it
+	 * must be a part file that is only moved to its target once complete.
+	 *
+	 * @param file
+	 *            The file to create or overwrite.
+	 * @param size
+	 *            The expected size or -1 if unknown.
+	 * @return An unbuffered stream writing to the file.
+	 */
+	public static OutputStream openPreallocated(File file, long size)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(Math.max(0, size));
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+		// closing the stream closes the channel and with it the file
+		return Channels.newOutputStream(raf.getChannel());
+	}
+}
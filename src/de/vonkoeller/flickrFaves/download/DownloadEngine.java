@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.download;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Downloads planned faves. Implementations decide how many transfers
+ *         run at once and on which threads.
+ */
+public interface DownloadEngine {
+
+	/**
+	 * Downloads all faves the scheduler hands out and returns once every one
+	 * of them has been handled. Failed faves are offered back to the
+	 * scheduler, which may hand them out again later.
+	 *
+	 * @param queue
+	 *            The faves to download.
+	 * @param minSize
+	 *            The minimum resolution (in at least one dimension) (in px)
+	 * @param listener
+	 *            Receives progress updates.
+	 * @return The number of faves that could not be downloaded.
+	 */
+	int downloadAll(Scheduler queue, int minSize,
+			DownloadListener listener);
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.download;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Receives progress updates from a download engine. Engines that run
+ *         several transfers at once call these methods from several threads.
+ */
+public interface DownloadListener {
+
+	/** The possible results of a single fave download. */
+	enum Outcome {
+		/** The fave was downloaded and committed. */
+		DOWNLOADED,
+		/** The fave was already downloaded completely. */
+		SKIPPED,
+		/** The fave was smaller than the minimum size and is now excluded. */
+		TOO_SMALL,
+		/** No size of the fave could be accessed. */
+		UNAVAILABLE,
+		/** The download failed because of a network or disk error. */
+		FAILED,
+		/** The fave was not started for lack of disk space. */
+		DEFERRED
+	}
+
+	/** The stages a fave passes through while being downloaded. */
+	enum Stage {
+		/** Finding the largest accessible size, up to its response headers. */
+		RESOLVE,
+		/** Establishing connections; not reported by every engine. */
+		CONNECT,
+		/** Receiving the body. */
+		TRANSFER,
+		/** Checking the downloaded file. */
+		VERIFY
+	}
+
+	/**
+	 * The status of a fave has changed, e.g. from connecting to downloading.
+	 *
+	 * @param task
+	 *            The fave.
+	 * @param status
+	 *            A short human-readable status, e.g. "Connecting...".
+	 */
+	void statusChanged(DownloadTask task, String status);
+
+	/**
+	 * The transfer of a fave's bytes begins.
+	 *
+	 * @param task
+	 *            The fave.
+	 * @param size
+	 *            The expected size in bytes or -1 if unknown.
+	 */
+	void transferStarted(DownloadTask task, long size);
+
+	/**
+	 * More bytes of a fave have been written to disk.
+	 *
+	 * @param task
+	 *            The fave.
+	 * @param bytesCopied
+	 *            The number of bytes copied so far.
+	 */
+	void bytesTransferred(DownloadTask task, long bytesCopied);
+
+	/**
+	 * A fave has been handled completely.
+	 *
+	 * @param task
+	 *            The fave.
+	 * @param outcome
+	 *            What happened.
+	 */
+	void taskFinished(DownloadTask task, Outcome outcome);
+
+	/**
+	 * A fave has passed through a stage. Called before taskFinished.
+	 *
+	 * @param task
+	 *            The fave.
+	 * @param stage
+	 *            The stage.
+	 * @param nanos
+	 *            The time spent in the stage.
+	 */
+	default void stageFinished(DownloadTask task, Stage stage, long nanos) {
+		// most listeners don't care
+	}
+
+	/**
+	 * The download of a fave has failed. Called before taskFinished with
+	 * outcome FAILED.
+	 *
+	 * @param task
+	 *            The fave.
+	 * @param cause
+	 *            Why it failed.
+	 */
+	default void taskFailed(DownloadTask task, Throwable cause) {
+		// most listeners don't care
+	}
+}
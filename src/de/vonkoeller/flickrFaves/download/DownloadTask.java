@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.download;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.photos.Photo;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         A single fave that has been planned for download.
+ */
+public class DownloadTask {
+
+	/** The fave's metadata from the list of faves. */
+	private final Photo photo;
+
+	/** The file name, i.e. "&lt;id&gt;.jpg" or "&lt;id&gt;.mp4". */
+	private final String filename;
+
+	/** The directory to download to. */
+	private final File dir;
+
+	/** The position of this fave in the list of faves, starting at 1. */
+	private final int number;
+
+	/** The checksum index of the download directory; may be null. */
+	private ChecksumIndex checksumIndex = null;
+
+	/** The URL the fave is downloaded from, once it is known. */
+	private volatile String resolvedUrl = null;
+
+	/**
+	 * @param photo
+	 *            The fave's metadata.
+	 * @param dir
+	 *            The directory to download to.
+	 * @param filename
+	 *            The file name within dir.
+	 * @param number
+	 *            The position of this fave in the list, starting at 1.
+	 */
+	public DownloadTask(Photo photo, File dir, String filename, int number) {
+		this.photo = photo;
+		this.dir = dir;
+		this.filename = filename;
+		this.number = number;
+	}
+
+	/**
+	 * @return The URLs to try, largest size first.
+	 */
+	public List<String> getCandidateUrls() {
+		List<String> urls = new ArrayList<String>(4);
+		try {
+			addIfNotNull(urls, photo.getOriginalUrl());
+		} catch (FlickrException e) {
+			// if the original url just isn't available, fine. no need
+			// to panic.
+		}
+		addIfNotNull(urls, photo.getLarge2048Url());
+		addIfNotNull(urls, photo.getLarge1600Url());
+		addIfNotNull(urls, photo.getLargeUrl());
+		return urls;
+	}
+
+	private static void addIfNotNull(List<String> urls, String url) {
+		if (url != null)
+			urls.add(url);
+	}
+
+	/**
+	 * Checks whether the fave has already been downloaded completely. If the
+	 * server announced the size, the file must have exactly that size;
+	 * otherwise it must match the size recorded in the checksum index.
+	 * 
+	 * @param contentLength
+	 *            The size announced by the server or -1 if unknown.
+	 * @return true if the target is complete and need not be downloaded.
+	 */
+	public boolean isAlreadyDownloaded(long contentLength) {
+		File target = getTarget();
+		if (!target.exists())
+			return false;
+		if (contentLength >= 0)
+			return contentLength == target.length();
+		return checksumIndex != null && checksumIndex.isComplete(target);
+	}
+
+	/**
+	 * Records the checksum of the committed target in the checksum index.
+	 * 
+	 * @param size
+	 *            The number of bytes written.
+	 * @param checksum
+	 *            The checksum computed while downloading.
+	 */
+	public void recordChecksum(long size, String checksum) {
+		if (checksumIndex != null)
+			checksumIndex.record(filename, size, checksum);
+	}
+
+	/**
+	 * @param checksumIndex
+	 *            The checksum index of the download directory.
+	 */
+	public void setChecksumIndex(ChecksumIndex checksumIndex) {
+		this.checksumIndex = checksumIndex;
+	}
+
+	/**
+	 * @return The URL the fave is downloaded from or null if not yet known.
+	 */
+	public String getResolvedUrl() {
+		return resolvedUrl;
+	}
+
+	/**
+	 * @param resolvedUrl
+	 *            The URL of the largest accessible size.
+	 */
+	public void setResolvedUrl(String resolvedUrl) {
+		this.resolvedUrl = resolvedUrl;
+	}
+
+	/**
+	 * @return The fave's metadata.
+	 */
+	public Photo getPhoto() {
+		return photo;
+	}
+
+	/**
+	 * @return The fave's Flickr id.
+	 */
+	public String getId() {
+		return photo.getId();
+	}
+
+	/**
+	 * @return The file name, e.g. "1234567.jpg".
+	 */
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * @return The file the fave is saved to.
+	 */
+	public File getTarget() {
+		return new File(dir, filename);
+	}
+
+	/**
+	 * @return The temporary file a download is written to before it is
+	 *         committed to the target.
+	 */
+	public File getPartFile() {
+		return new File(dir, "." + filename + ".part");
+	}
+
+	/**
+	 * @return The exclusion file which prevents this fave from being
+	 *         downloaded again.
+	 */
+	public File getExclusionFile() {
+		return new File(dir, "." + filename + ".exclude");
+	}
+
+	/**
+	 * @return The position of this fave in the list, starting at 1.
+	 */
+	public int getNumber() {
+		return number;
+	}
+
+	@Override
+	public String toString() {
+		return filename;
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow.Subscription;
+
+import de.vonkoeller.flickrFaves.debug.Tracer;
+import de.vonkoeller.flickrFaves.metrics.Metrics;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Writes a response body straight into a file channel as the buffers
+ *         arrive, computing their checksum on the way. The body is the
+ *         number of bytes written.
+ */
+class FileChannelSubscriber implements BodySubscriber<Long> {
+
+	/** Completed with the number of bytes written. */
+	private final CompletableFuture<Long> result = new CompletableFuture<Long>();
+
+	/** The file to write to. */
+	private final File file;
+
+	/** The announced size or -1 if unknown. */
+	private final long size;
+
+	/** The fave being downloaded. */
+	private final DownloadTask task;
+
+	/** Receives progress updates. */
+	private final DownloadListener listener;
+
+	private Subscription subscription;
+
+	private FileChannel channel;
+
+	private long written = 0;
+
+	/** Computed while the buffers are written. */
+	private final StreamingChecksum checksum = StreamingChecksum.create();
+
+	FileChannelSubscriber(File file, long size, DownloadTask task,
+			DownloadListener listener) {
+		this.file = file;
+		this.size = size;
+		this.task = task;
+		this.listener = listener;
+	}
+
+	public void onSubscribe(Subscription subscription) {
+		this.subscription = subscription;
+		try {
+			channel = FileChannel.open(file.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			// preallocate, so that the file system can place it in one piece
+			if (size > 0)
+				channel.write(ByteBuffer.allocate(1), size - 1);
+		} catch (IOException e) {
+			subscription.cancel();
+			result.completeExceptionally(e);
+			return;
+		}
+		subscription.request(1);
+	}
+
+	public void onNext(List<ByteBuffer> buffers) {
+		long before = written;
+		try {
+			for (ByteBuffer buffer : buffers) {
+				checksum.update(buffer);
+				while (buffer.hasRemaining())
+					written += channel.write(buffer);
+			}
+		} catch (IOException e) {
+			subscription.cancel();
+			close();
+			result.completeExceptionally(e);
+			return;
+		}
+		Metrics.BYTES_TRANSFERRED.add(written - before);
+		listener.bytesTransferred(task, written);
+		subscription.request(1);
+	}
+
+	public void onError(Throwable throwable) {
+		close();
+		result.completeExceptionally(throwable);
+	}
+
+	public void onComplete() {
+		try {
+			// cut off what was preallocated but never arrived
+			if (written < size)
+				channel.truncate(written);
+		} catch (IOException e) {
+			close();
+			result.completeExceptionally(e);
+			return;
+		}
+		close();
+		result.complete(written);
+	}
+
+	public CompletionStage<Long> getBody() {
+		return result;
+	}
+
+	/**
+	 * @return The checksum of all bytes written; only valid once the body is
+	 *         complete.
+	 */
+	String getChecksum() {
+		return checksum.getValue();
+	}
+
+	private void close() {
+		if (channel == null)
+			return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			Tracer.trace("Could not close " + file + ": " + e);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.download;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Passes all events on to another listener. Subclasses override the
+ *         events they want to observe and call the super implementation.
+ */
+public abstract class ForwardingDownloadListener implements DownloadListener {
+
+	private final DownloadListener delegate;
+
+	/**
+	 * @param delegate
+	 *            The listener to pass all events on to.
+	 */
+	protected ForwardingDownloadListener(DownloadListener delegate) {
+		this.delegate = delegate;
+	}
+
+	public void statusChanged(DownloadTask task, String status) {
+		delegate.statusChanged(task, status);
+	}
+
+	public void transferStarted(DownloadTask task, long size) {
+		delegate.transferStarted(task, size);
+	}
+
+	public void bytesTransferred(DownloadTask task, long bytesCopied) {
+		delegate.bytesTransferred(task, bytesCopied);
+	}
+
+	public void taskFinished(DownloadTask task, Outcome outcome) {
+		delegate.taskFinished(task, outcome);
+	}
+
+	public void stageFinished(DownloadTask task, Stage stage, long nanos) {
+		delegate.stageFinished(task, stage, nanos);
+	}
+
+	public void taskFailed(DownloadTask task, Throwable cause) {
+		delegate.taskFailed(task, cause);
+	}
+}
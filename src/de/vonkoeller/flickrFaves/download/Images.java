@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.download;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+
+import de.vonkoeller.flickrFaves.debug.Tracer;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Image checks shared by all download engines.
+ */
+public final class Images {
+
+	/**
+	 * Utility class -- cannot be instantiated.
+	 */
+	private Images() {
+		// empty on purpose
+	}
+
+	/**
+	 * Checks whether a downloaded file is large enough. Files that cannot be
+	 * decoded (e.g. videos) are considered large enough.
+	 *
+	 * @param file
+	 *            The downloaded file.
+	 * @param minSize
+	 *            The minimum resolution (in at least one dimension) (in px)
+	 * @return false if the file is an image smaller than minSize in both
+	 *         dimensions.
+	 */
+	public static boolean isLargeEnough(File file, int minSize) {
+		BufferedImage image = null;
+		try {
+			image = getBufferedImage(file);
+		} catch (Exception e) {
+			Tracer.trace("Exception "
+					+ e
+					+ " occured when trying to get file dimensions. Ignoring...");
+		}
+		return image == null || image.getWidth() >= minSize
+				|| image.getHeight() >= minSize;
+	}
+
+	public static BufferedImage getBufferedImage(File stream)
+			throws FileNotFoundException, IOException {
+		BufferedImage bufferedImage = null;
+		ImageInputStream imageStream = new FileImageInputStream(stream);
+
+		Iterator<ImageReader> iter = ImageIO.getImageReaders(imageStream);
+
+		Exception lastException = null;
+		try {
+			while (iter.hasNext()) {
+				ImageReader reader = null;
+				try {
+					reader = iter.next();
+					ImageReadParam param = reader.getDefaultReadParam();
+					reader.setInput(imageStream, true, true);
+					Iterator<ImageTypeSpecifier> imageTypes = reader
+							.getImageTypes(0);
+					while (imageTypes.hasNext()) {
+						ImageTypeSpecifier imageTypeSpecifier = imageTypes
+								.next();
+						int bufferedImageType = imageTypeSpecifier
+								.getBufferedImageType();
+						if (bufferedImageType == BufferedImage.TYPE_BYTE_GRAY) {
+							param.setDestinationType(imageTypeSpecifier);
+							break;
+						}
+					}
+					bufferedImage = reader.read(0, param);
+					if (null != bufferedImage)
+						break;
+				} catch (Exception e) {
+					lastException = e;
+				} finally {
+					if (null != reader)
+						reader.dispose();
+				}
+			}
+		} finally {
+			imageStream.close();
+		}
+		// If you don't have an image at the end of all readers
+		if (null == bufferedImage) {
+			if (null != lastException) {
+				throw new RuntimeException(lastException);
+			}
+		}
+		return bufferedImage;
+	}
+
+	/**
+	 * Checks whether a downloaded JPEG is complete, i.e. whether its end of
+	 * image marker arrived. A body cut short at a wrong Content-Length still
+	 * decodes, with the missing part grey. Data after the marker, as some
+	 * cameras append, is fine. Files that are not JPEGs and JPEGs whose
+	 * structure is not understood are considered complete; empty files are
+	 * not.
+	 *
+	 * @param file
+	 *            The downloaded file.
+	 * @return false if the file is empty or ends before the end of image
+	 *         marker.
+	 */
+	public static boolean isComplete(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file),
+				64 * 1024);
+		try {
+			int first = in.read();
+			if (first == -1)
+				return false;
+			if (first != 0xFF || in.read() != 0xD8)
+				return true;
+			// walk the segments; after start of scan, skip entropy-coded
+			// data, in which 0xFF is always followed by 0x00 or a restart
+			boolean inScan = false;
+			int b;
+			while ((b = in.read()) != -1) {
+				if (b != 0xFF) {
+					if (!inScan)
+						return true;
+					continue;
+				}
+				int marker;
+				do {
+					marker = in.read();
+				} while (marker == 0xFF);
+				if (marker == 0xD9)
+					return true;
+				if (marker == -1)
+					return false;
+				if (marker == 0x00 || marker == 0x01
+						|| (marker >= 0xD0 && marker <= 0xD7))
+					continue;
+				int high = in.read();
+				int low = in.read();
+				if (low == -1)
+					return false;
+				int length = (high << 8) | low;
+				if (length < 2)
+					return true;
+				for (long toSkip = length - 2; toSkip > 0;) {
+					long skipped = in.skip(toSkip);
+					if (skipped <= 0) {
+						if (in.read() == -1)
+							return false;
+						skipped = 1;
+					}
+					toSkip -= skipped;
+				}
+				inScan = marker == 0xDA;
+			}
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.download;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import com.flickr4java.flickr.photos.Photo;
+
+import de.vonkoeller.flickrFaves.config.Options;
+import de.vonkoeller.flickrFaves.debug.Tracer;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Decides in which subdirectory of the download directory a fave is
+ *         kept. The flat layout keeps all faves in the download directory
+ *         itself; the sharded layouts spread them over two levels of
+ *         numbered subdirectories so that no directory gets too large. The
+ *         layout a directory was last organized in is kept in
+ *         ".flickrFaves-layout"; when another layout is configured, the
+ *         existing faves are moved over once.
+ */
+public abstract class Layout {
+
+	/** The file recording the layout of a download directory. */
+	public static final String MARKER = ".flickrFaves-layout";
+
+	/** The names of shard directories. */
+	private static final Pattern SHARD = Pattern.compile("\\d+");
+
+	/** The depth of shard directories below the download directory. */
+	private static final int DEPTH = 2;
+
+	/**
+	 * Creates the layout selected via the "layout" option: "flat" (default),
+	 * "id" or "date".
+	 *
+	 * @return A new layout.
+	 */
+	public static Layout create() {
+		String name = Options.getString("layout", "flat");
+		if ("id".equals(name))
+			return new ById();
+		if ("date".equals(name))
+			return new ByDate();
+		return new Flat();
+	}
+
+	/**
+	 * @return The name of this layout, as given in the "layout" option.
+	 */
+	public abstract String getName();
+
+	/**
+	 * @param id
+	 *            The fave's id.
+	 * @param photo
+	 *            The fave's metadata or null if it is no longer a fave.
+	 * @return The subdirectory of a fave relative to the download directory,
+	 *         "" for the download directory itself, or null if it cannot be
+	 *         told without the metadata.
+	 */
+	abstract String shardOf(String id, Photo photo);
+
+	/**
+	 * @return The directory to keep a fave in, or null if it cannot be told
+	 *         without the metadata.
+	 */
+	public File dirFor(File root, String id, Photo photo) {
+		String shard = shardOf(id, photo);
+		if (shard == null)
+			return null;
+		return shard.isEmpty() ? root : new File(root, shard);
+	}
+
+	/**
+	 * Lists files in the download directory and in its shard directories,
+	 * whatever the layout, so that faves are found even in a directory that
+	 * has not been moved over completely.
+	 *
+	 * @param root
+	 *            The download directory.
+	 * @param filter
+	 *            Selects the files to list.
+	 * @return All matching files.
+	 */
+	public static List<File> listFiles(File root, FilenameFilter filter) {
+		final List<File> files = new ArrayList<File>();
+		forEachFile(root, filter, new Consumer<File>() {
+			public void accept(File file) {
+				files.add(file);
+			}
+		});
+		return files;
+	}
+
+	/**
+	 * Like listFiles, but hands each file over as soon as it is read, so
+	 * that not even the largest directory needs to be held in memory.
+	 * Directories that cannot be read are skipped.
+	 *
+	 * @param root
+	 *            The download directory.
+	 * @param filter
+	 *            Selects the files to hand over.
+	 * @param action
+	 *            Called for each matching file.
+	 */
+	public static void forEachFile(File root, FilenameFilter filter,
+			Consumer<File> action) {
+		walk(root, filter, 0, action);
+	}
+
+	private static void walk(File dir, FilenameFilter filter, int depth,
+			Consumer<File> action) {
+		try {
+			DirectoryStream<Path> entries = Files.newDirectoryStream(dir
+					.toPath());
+			try {
+				for (Path path : entries) {
+					File entry = path.toFile();
+					String name = entry.getName();
+					if (depth < DEPTH && SHARD.matcher(name).matches()
+							&& entry.isDirectory())
+						walk(entry, filter, depth + 1, action);
+					else if (filter.accept(dir, name))
+						action.accept(entry);
+				}
+			} finally {
+				entries.close();
+			}
+		} catch (IOException e) {
+			Tracer.debug(() -> "Could not list " + dir + ": " + e);
+		} catch (DirectoryIteratorException e) {
+			Tracer.debug(() -> "Could not list " + dir + ": " + e.getCause());
+		}
+	}
+
+	/**
+	 * Moves the faves of a download directory into this layout, unless the
+	 * directory is already organized in it. Each file is moved on its own,
+	 * so an interrupted migration simply continues on the next run.
+	 *
+	 * @param root
+	 *            The download directory.
+	 * @param photos
+	 *            The metadata of all current faves by id.
+	 * @param filter
+	 *            Selects the fave files and their exclusion files.
+	 * @return The number of files moved.
+	 */
+	public int migrate(File root, Map<String, Photo> photos,
+			FilenameFilter filter) throws IOException {
+		String current = readMarker(new File(root, MARKER));
+		if (getName().equals(current))
+			return 0;
+		Tracer.trace("Moving faves from the " + current + " to the "
+				+ getName() + " layout...");
+		int moved = 0;
+		for (File file : listFiles(root, filter)) {
+			String id = idOf(file.getName());
+			File dir = dirFor(root, id, photos.get(id));
+			if (dir == null || dir.equals(file.getParentFile()))
+				continue;
+			dir.mkdirs();
+			AsyncDownloadEngine.commit(file, new File(dir, file.getName()));
+			moved++;
+		}
+		finishMigration(root);
+		return moved;
+	}
+
+	/**
+	 * @param root
+	 *            The download directory.
+	 * @return Whether the directory is organized in another layout.
+	 */
+	public boolean needsMigration(File root) throws IOException {
+		return !getName().equals(readMarker(new File(root, MARKER)));
+	}
+
+	/**
+	 * Moves the files of a single fave into this layout from wherever
+	 * another layout keeps them. Used instead of migrate when the faves are
+	 * not all known up front; finishMigration must be called once all faves
+	 * have been moved.
+	 *
+	 * @param root
+	 *            The download directory.
+	 * @param id
+	 *            The fave's id.
+	 * @param photo
+	 *            The fave's metadata.
+	 * @param names
+	 *            The names of the fave's files, e.g. "1234.jpg" and
+	 *            ".1234.jpg.exclude".
+	 * @return The number of files moved.
+	 */
+	public int migrateFave(File root, String id, Photo photo, String... names)
+			throws IOException {
+		File target = dirFor(root, id, photo);
+		if (target == null)
+			return 0;
+		int moved = 0;
+		for (Layout other : new Layout[] { new Flat(), new ById(),
+				new ByDate() }) {
+			File dir = other.dirFor(root, id, photo);
+			if (dir == null || dir.equals(target))
+				continue;
+			for (String name : names) {
+				File file = new File(dir, name);
+				if (!file.exists())
+					continue;
+				target.mkdirs();
+				AsyncDownloadEngine.commit(file, new File(target, name));
+				moved++;
+			}
+		}
+		return moved;
+	}
+
+	/**
+	 * Removes the shard directories left empty by a migration and records
+	 * that the download directory is now organized in this layout.
+	 *
+	 * @param root
+	 *            The download directory.
+	 */
+	public void finishMigration(File root) throws IOException {
+		removeEmptyShards(root, 0);
+		File marker = new File(root, MARKER);
+		if ("flat".equals(getName()))
+			marker.delete();
+		else
+			writeMarker(marker);
+	}
+
+	/**
+	 * @return The id in a fave's file name, e.g. "1234" in "1234.jpg" or
+	 *         ".1234.jpg.exclude".
+	 */
+	static String idOf(String name) {
+		int start = name.startsWith(".") ? 1 : 0;
+		return name.substring(start, name.indexOf('.', start));
+	}
+
+	private static void removeEmptyShards(File dir, int depth) {
+		File[] entries = dir.listFiles();
+		if (entries == null)
+			return;
+		for (File entry : entries)
+			if (SHARD.matcher(entry.getName()).matches()
+					&& entry.isDirectory()) {
+				if (depth + 1 < DEPTH)
+					removeEmptyShards(entry, depth + 1);
+				// only succeeds if nothing is left in it
+				entry.delete();
+			}
+	}
+
+	private static String readMarker(File marker) throws IOException {
+		if (!marker.exists())
+			return "flat";
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(marker), StandardCharsets.UTF_8));
+		try {
+			String line = in.readLine();
+			return line == null ? "flat" : line.trim();
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeMarker(File marker) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(marker),
+				StandardCharsets.UTF_8);
+		try {
+			out.write(getName() + "\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * All faves in the download directory itself.
+	 */
+	private static class Flat extends Layout {
+
+		@Override
+		public String getName() {
+			return "flat";
+		}
+
+		@Override
+		String shardOf(String id, Photo photo) {
+			return "";
+		}
+	}
+
+	/**
+	 * Two levels of 100 directories each, named after the last four digits
+	 * of the id, e.g. "78/56/12345678.jpg". The last digits are spread
+	 * evenly, while the first ones are the same for years of uploads.
+	 */
+	private static class ById extends Layout {
+
+		@Override
+		public String getName() {
+			return "id";
+		}
+
+		@Override
+		String shardOf(String id, Photo photo) {
+			String padded = id.length() >= 4 ? id : "0000".substring(id
+					.length()) + id;
+			int n = padded.length();
+			return padded.substring(n - 2) + File.separator
+					+ padded.substring(n - 4, n - 2);
+		}
+	}
+
+	/**
+	 * A directory per year and month of upload, e.g. "2013/07/1234.jpg".
+	 * Faves without an upload date are kept in the download directory.
+	 */
+	private static class ByDate extends Layout {
+
+		@Override
+		public String getName() {
+			return "date";
+		}
+
+		@Override
+		String shardOf(String id, Photo photo) {
+			if (photo == null)
+				return null;
+			Date posted = photo.getDatePosted();
+			if (posted == null)
+				return "";
+			Calendar calendar = Calendar.getInstance(TimeZone
+					.getTimeZone("UTC"));
+			calendar.setTime(posted);
+			return String.format("%04d%s%02d", calendar.get(Calendar.YEAR),
+					File.separator, calendar.get(Calendar.MONTH) + 1);
+		}
+	}
+}
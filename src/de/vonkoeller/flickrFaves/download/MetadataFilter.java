@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.download;
+
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.Size;
+
+import de.vonkoeller.flickrFaves.config.Options;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Decides from the dimensions in the list of faves whether a photo is
+ *         wanted at all, before any of its bytes are fetched: by the range of
+ *         its aspect ratio, its orientation and its number of megapixels.
+ *         Photos whose dimensions are not listed pass, so that the size check
+ *         after the download remains the fallback.
+ */
+public class MetadataFilter {
+
+	/**
+	 * The orientations a photo can be required to have.
+	 */
+	public enum Orientation {
+		ANY, LANDSCAPE, PORTRAIT, SQUARE
+	}
+
+	/** The least width divided by height; 0 for no limit. */
+	private final double minAspect;
+
+	/** The greatest width divided by height; 0 for no limit. */
+	private final double maxAspect;
+
+	private final Orientation orientation;
+
+	/** The least number of megapixels; 0 for no limit. */
+	private final double minMegapixels;
+
+	/**
+	 * @param minAspect
+	 *            The least width divided by height; 0 for no limit.
+	 * @param maxAspect
+	 *            The greatest width divided by height; 0 for no limit.
+	 * @param orientation
+	 *            The required orientation.
+	 * @param minMegapixels
+	 *            The least number of megapixels; 0 for no limit.
+	 */
+	public MetadataFilter(double minAspect, double maxAspect,
+			Orientation orientation, double minMegapixels) {
+		this.minAspect = minAspect;
+		this.maxAspect = maxAspect;
+		this.orientation = orientation;
+		this.minMegapixels = minMegapixels;
+	}
+
+	/**
+	 * Creates the filter configured via the options "minAspect",
+	 * "maxAspect", "orientation" ("landscape", "portrait" or "square") and
+	 * "minMegapixels".
+	 *
+	 * @return The filter or null if none of the options is set.
+	 */
+	public static MetadataFilter fromOptions() {
+		double minAspect = Options.getDouble("minAspect", 0);
+		double maxAspect = Options.getDouble("maxAspect", 0);
+		double minMegapixels = Options.getDouble("minMegapixels", 0);
+		Orientation orientation;
+		try {
+			orientation = Orientation.valueOf(Options.getString(
+					"orientation", "any").toUpperCase());
+		} catch (IllegalArgumentException e) {
+			orientation = Orientation.ANY;
+		}
+		if (minAspect <= 0 && maxAspect <= 0 && minMegapixels <= 0
+				&& orientation == Orientation.ANY)
+			return null;
+		return new MetadataFilter(minAspect, maxAspect, orientation,
+				minMegapixels);
+	}
+
+	/**
+	 * Checks a photo against the filter.
+	 *
+	 * @param photo
+	 *            The photo's metadata from the list of faves.
+	 * @return Why the photo is not wanted or null if it is wanted or its
+	 *         dimensions are unknown.
+	 */
+	public String reject(Photo photo) {
+		int[] dims = largestDimensions(photo);
+		if (dims == null)
+			return null;
+		int width = dims[0];
+		int height = dims[1];
+		double aspect = (double) width / height;
+		if (minAspect > 0 && aspect < minAspect)
+			return "aspect ratio " + round(aspect) + " below " + minAspect;
+		if (maxAspect > 0 && aspect > maxAspect)
+			return "aspect ratio " + round(aspect) + " above " + maxAspect;
+		switch (orientation) {
+		case LANDSCAPE:
+			if (width <= height)
+				return "not landscape";
+			break;
+		case PORTRAIT:
+			if (height <= width)
+				return "not portrait";
+			break;
+		case SQUARE:
+			if (width != height)
+				return "not square";
+			break;
+		default:
+			break;
+		}
+		double megapixels = (double) width * height / 1000000;
+		if (minMegapixels > 0 && megapixels < minMegapixels)
+			return round(megapixels) + " megapixels, fewer than "
+					+ minMegapixels;
+		return null;
+	}
+
+	/**
+	 * @return Width and height of the largest size listed for a photo, i.e.
+	 *         the one that will be downloaded, or null if none is listed.
+	 */
+	static int[] largestDimensions(Photo photo) {
+		if (photo.getOriginalWidth() > 0 && photo.getOriginalHeight() > 0)
+			return new int[] { photo.getOriginalWidth(),
+					photo.getOriginalHeight() };
+		Size[] sizes = { photo.getOriginalSize(), photo.getLarge2048Size(),
+				photo.getLarge1600Size(), photo.getLargeSize() };
+		for (Size size : sizes)
+			if (size != null && size.getWidth() > 0 && size.getHeight() > 0)
+				return new int[] { size.getWidth(), size.getHeight() };
+		return null;
+	}
+
+	private static double round(double value) {
+		return Math.round(value * 100) / 100.0;
+	}
+}
@@ -0,0 +1,511 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.download;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+
+import com.flickr4java.flickr.photos.Photo;
+
+import de.vonkoeller.flickrFaves.config.Options;
+import de.vonkoeller.flickrFaves.debug.Tracer;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         The queue the download engines take faves from. Faves can be added
+ *         at any time, e.g. as their metadata arrives, and are handed out in
+ *         the order of the selected schedule. Faves that failed can be put
+ *         back to be retried once after all others. Once the budget of the
+ *         run is used up, no further faves are handed out; those left over
+ *         are saved and handed out first by the next run.
+ */
+public abstract class Scheduler {
+
+	/** The name of the file listing the faves left over by the last run. */
+	public static final String REMAINING = ".flickrFaves-remaining";
+
+	/** The number of faves handed out first that are remembered. */
+	private static final int HEAD = 20;
+
+	/** Stops handing out faves once used up; null for no limit. */
+	private Budget budget = null;
+
+	/** The ids of the faves left over by the last run. */
+	private Set<String> carriedOver = Collections.emptySet();
+
+	/** Faves left over by the last run, handed out before all others. */
+	private final Queue<DownloadTask> carried = new ArrayDeque<DownloadTask>();
+
+	/** The number of faves saved for the next run. */
+	private int saved = 0;
+
+	/** Faves that could not be started for lack of disk space. */
+	private final List<DownloadTask> deferred = new ArrayList<DownloadTask>();
+
+	/** Whether failed faves are retried once after all others. */
+	private final boolean retriesLast;
+
+	/** Failed faves waiting to be retried. */
+	private final Queue<DownloadTask> retries = new ArrayDeque<DownloadTask>();
+
+	/** The faves that have been put back once. */
+	private final Set<DownloadTask> retried = new HashSet<DownloadTask>();
+
+	/** The ids of the first faves handed out. */
+	private final List<String> head = new ArrayList<String>(HEAD);
+
+	protected Scheduler(boolean retriesLast) {
+		this.retriesLast = retriesLast;
+	}
+
+	/**
+	 * Creates the scheduler selected via the "schedule" option: "list" (the
+	 * order of the list of faves, the default), "newest" (most recently
+	 * uploaded first), "smallest" (fewest listed pixels first), "owners" or
+	 * "hosts" (round-robin across photo owners or image hosts). With the
+	 * "retriesLast" option, failed faves are retried after all others.
+	 *
+	 * @return A new, empty scheduler.
+	 */
+	public static Scheduler create() {
+		String name = Options.getString("schedule", "list");
+		boolean retriesLast = Options.getBoolean("retriesLast", false);
+		if ("newest".equals(name))
+			return new Ordered("newest", retriesLast, NEWEST);
+		if ("smallest".equals(name))
+			return new Ordered("smallest", retriesLast, SMALLEST);
+		if ("owners".equals(name))
+			return new RoundRobin("owners", retriesLast) {
+				@Override
+				String key(DownloadTask task) {
+					Photo photo = task.getPhoto();
+					return photo.getOwner() == null ? "" : photo.getOwner()
+							.getId();
+				}
+			};
+		if ("hosts".equals(name))
+			return new RoundRobin("hosts", retriesLast) {
+				@Override
+				String key(DownloadTask task) {
+					List<String> urls = task.getCandidateUrls();
+					try {
+						return urls.isEmpty() ? "" : String.valueOf(URI
+								.create(urls.get(0)).getHost());
+					} catch (IllegalArgumentException e) {
+						return "";
+					}
+				}
+			};
+		return new ListOrder(retriesLast);
+	}
+
+	/**
+	 * @return The name of the schedule, e.g. "smallest".
+	 */
+	public abstract String getName();
+
+	abstract void enqueue(DownloadTask task);
+
+	/**
+	 * @return The next fave in schedule order or null if there is none.
+	 */
+	abstract DownloadTask dequeue();
+
+	abstract int queued();
+
+	/**
+	 * @param budget
+	 *            Stops handing out faves once used up; null for no limit.
+	 */
+	public synchronized void setBudget(Budget budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * @return The budget of the run or null if it is unlimited.
+	 */
+	public synchronized Budget getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Reads the faves the last run left over in a download directory; they
+	 * are handed out before all others when added.
+	 *
+	 * @param dir
+	 *            The download directory.
+	 */
+	public synchronized void carryOver(File dir) {
+		File file = new File(dir, REMAINING);
+		if (!file.exists())
+			return;
+		Set<String> ids = new HashSet<String>();
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), StandardCharsets.UTF_8));
+			try {
+				String line;
+				while ((line = in.readLine()) != null)
+					if (line.length() > 0)
+						ids.add(line);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Tracer.trace("Could not read " + file + ": " + e);
+		}
+		carriedOver = ids;
+	}
+
+	/**
+	 * Saves the faves that have not been handed out, so that the next run
+	 * starts with them, or deletes the list if there are none.
+	 *
+	 * @param dir
+	 *            The download directory.
+	 * @return The number of faves saved.
+	 */
+	public synchronized int saveRemaining(File dir) {
+		File file = new File(dir, REMAINING);
+		List<String> ids = new ArrayList<String>();
+		for (DownloadTask task : deferred)
+			ids.add(task.getId());
+		for (DownloadTask task : carried)
+			ids.add(task.getId());
+		DownloadTask task;
+		while ((task = dequeue()) != null)
+			ids.add(task.getId());
+		for (DownloadTask retry : retries)
+			ids.add(retry.getId());
+		carried.clear();
+		retries.clear();
+		saved = ids.size();
+		if (ids.isEmpty()) {
+			file.delete();
+			return 0;
+		}
+		try {
+			Writer out = new OutputStreamWriter(new FileOutputStream(file),
+					StandardCharsets.UTF_8);
+			try {
+				for (String id : ids)
+					out.write(id + "\n");
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			Tracer.trace("Could not save " + file + ": " + e);
+		}
+		return ids.size();
+	}
+
+	/**
+	 * Adds a fave to the queue.
+	 */
+	public synchronized void add(DownloadTask task) {
+		if (carriedOver.contains(task.getId()))
+			carried.add(task);
+		else
+			enqueue(task);
+	}
+
+	/**
+	 * @return The next fave to download or null if there is none or the
+	 *         budget is used up; faves left over by the last run come first,
+	 *         failed faves put back after all others.
+	 */
+	public synchronized DownloadTask next() {
+		if (!deferred.isEmpty() || (budget != null && budget.isExhausted()))
+			return null;
+		DownloadTask task = carried.poll();
+		if (task == null)
+			task = dequeue();
+		if (task == null)
+			task = retries.poll();
+		if (task != null && head.size() < HEAD)
+			head.add(task.getId());
+		if (task != null && budget != null)
+			budget.started();
+		return task;
+	}
+
+	/**
+	 * Puts a failed fave back to be retried after all others, if retries
+	 * are scheduled last and it has not been put back before.
+	 *
+	 * @return true if the fave will be handed out again.
+	 */
+	public synchronized boolean retryLater(DownloadTask task) {
+		if (!retriesLast || !retried.add(task))
+			return false;
+		retries.add(task);
+		if (budget != null)
+			budget.finished(-1);
+		return true;
+	}
+
+	/**
+	 * Takes back a fave that could not be started for lack of disk space.
+	 * No further faves are handed out, and the fave is saved for the next
+	 * run along with all others left. Unlike a fave put back to be retried,
+	 * it is still reported as finished, which ends it in the budget.
+	 */
+	public synchronized void defer(DownloadTask task) {
+		deferred.add(task);
+	}
+
+	/**
+	 * @return What stopped the run early, "time", "bytes" or "disk", or
+	 *         null if nothing did.
+	 */
+	public synchronized String getStoppedBy() {
+		if (!deferred.isEmpty())
+			return "disk";
+		return budget == null ? null : budget.getExhaustedBy();
+	}
+
+	/**
+	 * @return Whether failed faves may be put back, i.e. whether the queue
+	 *         can grow again while faves are being downloaded.
+	 */
+	public boolean isRetryingLater() {
+		return retriesLast;
+	}
+
+	/**
+	 * @return The number of faves waiting.
+	 */
+	public synchronized int size() {
+		return carried.size() + queued() + retries.size();
+	}
+
+	/**
+	 * @return true if there are faves waiting and the budget allows
+	 *         handing them out.
+	 */
+	public synchronized boolean hasMore() {
+		return size() > 0 && deferred.isEmpty()
+				&& (budget == null || !budget.isExhausted());
+	}
+
+	/**
+	 * @return The number of failed faves put back.
+	 */
+	public synchronized int getDeferredRetries() {
+		return retried.size();
+	}
+
+	/**
+	 * @return The number of faves saved for the next run by saveRemaining.
+	 */
+	public synchronized int getSaved() {
+		return saved;
+	}
+
+	/**
+	 * @return The ids of the first faves handed out, in order.
+	 */
+	public synchronized List<String> getHead() {
+		return new ArrayList<String>(head);
+	}
+
+	/** Most recently uploaded first; faves without a date last. */
+	private static final Comparator<DownloadTask> NEWEST = new Comparator<DownloadTask>() {
+		public int compare(DownloadTask a, DownloadTask b) {
+			Date da = a.getPhoto().getDatePosted();
+			Date db = b.getPhoto().getDatePosted();
+			if (da != null && db != null && !da.equals(db))
+				return db.compareTo(da);
+			if (da == null != (db == null))
+				return da == null ? 1 : -1;
+			return Integer.compare(a.getNumber(), b.getNumber());
+		}
+	};
+
+	/**
+	 * Fewest listed pixels first, which is the best guess at the fewest bytes
+	 * before anything is fetched; faves without dimensions last.
+	 */
+	private static final Comparator<DownloadTask> SMALLEST = new Comparator<DownloadTask>() {
+		public int compare(DownloadTask a, DownloadTask b) {
+			int c = Long.compare(pixels(a), pixels(b));
+			return c != 0 ? c : Integer.compare(a.getNumber(), b.getNumber());
+		}
+
+		private long pixels(DownloadTask task) {
+			int[] dims = MetadataFilter.largestDimensions(task.getPhoto());
+			return dims == null ? Long.MAX_VALUE : (long) dims[0] * dims[1];
+		}
+	};
+
+	/**
+	 * The order of the list of faves.
+	 */
+	private static class ListOrder extends Scheduler {
+
+		private final Queue<DownloadTask> queue = new ArrayDeque<DownloadTask>();
+
+		ListOrder(boolean retriesLast) {
+			super(retriesLast);
+		}
+
+		@Override
+		public String getName() {
+			return "list";
+		}
+
+		@Override
+		void enqueue(DownloadTask task) {
+			queue.add(task);
+		}
+
+		@Override
+		DownloadTask dequeue() {
+			return queue.poll();
+		}
+
+		@Override
+		int queued() {
+			return queue.size();
+		}
+	}
+
+	/**
+	 * Hands out faves by priority; faves added later are ordered in.
+	 */
+	private static class Ordered extends Scheduler {
+
+		private final String name;
+
+		private final PriorityQueue<DownloadTask> queue;
+
+		Ordered(String name, boolean retriesLast,
+				Comparator<DownloadTask> order) {
+			super(retriesLast);
+			this.name = name;
+			this.queue = new PriorityQueue<DownloadTask>(64, order);
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		void enqueue(DownloadTask task) {
+			queue.add(task);
+		}
+
+		@Override
+		DownloadTask dequeue() {
+			return queue.poll();
+		}
+
+		@Override
+		int queued() {
+			return queue.size();
+		}
+	}
+
+	/**
+	 * Takes turns between groups of faves, e.g. their owners, keeping the
+	 * list order within each group.
+	 */
+	private abstract static class RoundRobin extends Scheduler {
+
+		private final String name;
+
+		/** Group key to its waiting faves. */
+		private final Map<String, Queue<DownloadTask>> groups = new HashMap<String, Queue<DownloadTask>>();
+
+		/** The groups with waiting faves, next turn first. */
+		private final Queue<String> turns = new ArrayDeque<String>();
+
+		private int queued = 0;
+
+		RoundRobin(String name, boolean retriesLast) {
+			super(retriesLast);
+			this.name = name;
+		}
+
+		/**
+		 * @return The group of a fave.
+		 */
+		abstract String key(DownloadTask task);
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		void enqueue(DownloadTask task) {
+			String key = key(task);
+			Queue<DownloadTask> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayDeque<DownloadTask>();
+				groups.put(key, group);
+				turns.add(key);
+			}
+			group.add(task);
+			queued++;
+		}
+
+		@Override
+		DownloadTask dequeue() {
+			String key = turns.poll();
+			if (key == null)
+				return null;
+			Queue<DownloadTask> group = groups.get(key);
+			DownloadTask task = group.poll();
+			if (group.isEmpty())
+				groups.remove(key);
+			else
+				turns.add(key);
+			queued--;
+			return task;
+		}
+
+		@Override
+		int queued() {
+			return queued;
+		}
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.vonkoeller.flickrFaves.concurrent.Threads;
+import de.vonkoeller.flickrFaves.config.Options;
+import de.vonkoeller.flickrFaves.debug.RetryEvent;
+import de.vonkoeller.flickrFaves.debug.Tracer;
+import de.vonkoeller.flickrFaves.debug.Tracer.Level;
+import de.vonkoeller.flickrFaves.gui.Constants;
+import de.vonkoeller.flickrFaves.metrics.Metrics;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Downloads a large file, typically a video, as several byte ranges
+ *         over concurrent connections into a preallocated file. A segment
+ *         that fails resumes where it stopped, up to three times; the
+ *         download only succeeds once every segment is complete. Every
+ *         range is asked for with If-Range, so a file that changes on the
+ *         server mid-download fails with ChangedException instead of mixing
+ *         two versions. Since the segments arrive out of order, the checksum
+ *         is computed from the finished file.
+ */
+class SegmentedDownload {
+
+	/** Attempts per segment before the download fails. */
+	private static final int MAX_ATTEMPTS = 3;
+
+	/** The size of the copy buffer of every segment. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** The URL to download. */
+	private final String url;
+
+	/** The size of the file in bytes. */
+	private final long size;
+
+	/** The number of segments. */
+	private final int segments;
+
+	/** Connect and read timeout in milliseconds. */
+	private final int timeout;
+
+	/** The ETag or Last-Modified of the first response or null. */
+	private final String validator;
+
+	/** The fave being downloaded. */
+	private final DownloadTask task;
+
+	/** Receives progress updates. */
+	private final DownloadListener listener;
+
+	/** Bytes received by all segments together. */
+	private final AtomicLong transferred = new AtomicLong();
+
+	/**
+	 * @param url
+	 *            The URL to download.
+	 * @param size
+	 *            The size of the file in bytes.
+	 * @param timeout
+	 *            Connect and read timeout in milliseconds.
+	 * @param validator
+	 *            The ETag or Last-Modified of the first response, see
+	 *            validatorOf, or null.
+	 * @param task
+	 *            The fave being downloaded.
+	 * @param listener
+	 *            Receives progress updates.
+	 */
+	SegmentedDownload(String url, long size, int timeout, String validator,
+			DownloadTask task, DownloadListener listener) {
+		this.url = url;
+		this.size = size;
+		this.segments = Math.max(1, Options.getInt("segments",
+				Constants.SEGMENTS));
+		this.timeout = timeout;
+		this.validator = validator;
+		this.task = task;
+		this.listener = listener;
+	}
+
+	/**
+	 * Checks whether a response is worth downloading in segments: it must be
+	 * at least as large as the "segmentThreshold" option and the server must
+	 * accept byte ranges.
+	 *
+	 * @param conn
+	 *            The connection that answered with 200.
+	 * @param size
+	 *            Its Content-Length or -1 if unknown.
+	 */
+	static boolean isWorthwhile(HttpURLConnection conn, long size) {
+		return size >= Options.getLong("segmentThreshold",
+				Constants.SEGMENT_THRESHOLD)
+				&& Options.getInt("segments", Constants.SEGMENTS) > 1
+				&& "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"));
+	}
+
+	/**
+	 * @param conn
+	 *            The connection that answered with 200.
+	 * @return Its ETag, unless weak, else its Last-Modified, else null.
+	 */
+	static String validatorOf(HttpURLConnection conn) {
+		String etag = conn.getHeaderField("ETag");
+		if (etag != null && !etag.startsWith("W/"))
+			return etag;
+		return conn.getHeaderField("Last-Modified");
+	}
+
+	/**
+	 * @return The number of segments.
+	 */
+	int getSegments() {
+		return segments;
+	}
+
+	/**
+	 * Downloads all segments into a file.
+	 *
+	 * @param part
+	 *            The file to download to; it is preallocated to the full size.
+	 * @return The checksum of the complete file.
+	 * @throws ChangedException
+	 *             if the file changed on the server since the first
+	 *             response.
+	 * @throws IOException
+	 *             if a segment fails for good.
+	 */
+	String downloadTo(File part) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(part, "rw");
+		ExecutorService pool = Threads.newExecutor();
+		try {
+			file.setLength(size);
+			final FileChannel channel = file.getChannel();
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int i = 0; i < segments; i++) {
+				final long start = size * i / segments;
+				final long end = size * (i + 1) / segments - 1;
+				results.add(pool.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						Tracer.setContext(task.getFilename());
+						try {
+							fetch(channel, start, end);
+						} finally {
+							Tracer.setContext(null);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results)
+				await(result);
+			if (transferred.get() != size)
+				throw new IOException("Segments of " + task + " add up to "
+						+ transferred.get() + " of " + size + " bytes");
+			return checksum(channel);
+		} finally {
+			pool.shutdownNow();
+			file.close();
+		}
+	}
+
+	/**
+	 * Waits for a segment and rethrows its failure.
+	 */
+	private static void await(Future<Void> result) throws IOException {
+		try {
+			result.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while downloading segments");
+		}
+	}
+
+	/**
+	 * Downloads the bytes from start to end (inclusive) into the channel,
+	 * resuming after a failure.
+	 */
+	private void fetch(FileChannel channel, long start, long end)
+			throws IOException {
+		long position = start;
+		int attempt = 0;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		while (true) {
+			HttpURLConnection conn = (HttpURLConnection) new URL(url)
+					.openConnection();
+			try {
+				conn.setConnectTimeout(timeout);
+				conn.setReadTimeout(timeout);
+				conn.setRequestProperty("Range", "bytes=" + position + "-"
+						+ end);
+				if (validator != null)
+					conn.setRequestProperty("If-Range", validator);
+				int status = conn.getResponseCode();
+				// the whole file instead of the range: it has changed, or
+				// the server ignores ranges after all
+				if (status == 200)
+					throw new ChangedException("Asked for bytes " + position
+							+ "-" + end + " of " + task
+							+ ", got the whole file");
+				String range = conn.getHeaderField("Content-Range");
+				if (status != 206 || range == null
+						|| !range.startsWith("bytes " + position + "-"))
+					throw new IOException("Asked for bytes " + position + "-"
+							+ end + ", got " + status + " " + range);
+				InputStream in = conn.getInputStream();
+				try {
+					int n;
+					while (position <= end
+							&& (n = in.read(buffer, 0, (int) Math.min(
+									buffer.length, end + 1 - position))) != -1) {
+						ByteBuffer b = ByteBuffer.wrap(buffer, 0, n);
+						while (b.hasRemaining())
+							position += channel.write(b, position);
+						Metrics.BYTES_TRANSFERRED.add(n);
+						listener.bytesTransferred(task, transferred.addAndGet(n));
+					}
+				} finally {
+					in.close();
+				}
+				if (position > end)
+					return;
+				throw new IOException("Segment " + start + "-" + end
+						+ " ended at byte " + position);
+			} catch (IOException e) {
+				conn.disconnect();
+				if (e instanceof ChangedException || ++attempt >= MAX_ATTEMPTS)
+					throw e;
+				Metrics.RETRIES.inc();
+				RetryEvent.emit(task.getId(), url, "segment", e);
+				Tracer.trace(Level.WARN, "Segment " + start + "-" + end
+						+ " failed (" + e + "), resuming at byte " + position
+						+ "...");
+			}
+		}
+	}
+
+	/**
+	 * Thrown if a segment is answered with the whole file rather than its
+	 * range; the segments already received may belong to another version.
+	 */
+	static class ChangedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		ChangedException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * @return The checksum of the complete file.
+	 */
+	private static String checksum(FileChannel channel) throws IOException {
+		StreamingChecksum checksum = StreamingChecksum.create();
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		long position = 0;
+		int n;
+		while ((n = channel.read(buffer, position)) != -1) {
+			position += n;
+			buffer.flip();
+			checksum.update(buffer);
+			buffer.clear();
+		}
+		return checksum.getValue();
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+import de.vonkoeller.flickrFaves.config.Options;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         A checksum computed while the bytes of a download stream through
+ *         the copy loop, so that no file has to be read again to get it.
+ */
+public abstract class StreamingChecksum {
+
+	/**
+	 * Creates a checksum of the algorithm selected via the "checksum"
+	 * option: "sha256" (the default) or "crc32c".
+	 *
+	 * @return A new checksum.
+	 */
+	public static StreamingChecksum create() {
+		if ("crc32c".equals(Options.getString("checksum", "sha256")))
+			return new Crc32c();
+		return new Sha256();
+	}
+
+	/**
+	 * Computes the checksum of a whole file.
+	 *
+	 * @return The checksum as "&lt;algorithm&gt;:&lt;hex value&gt;".
+	 */
+	public static String of(File file) throws IOException {
+		StreamingChecksum checksum = create();
+		byte[] buffer = new byte[64 * 1024];
+		InputStream in = new FileInputStream(file);
+		try {
+			int n;
+			while ((n = in.read(buffer)) != -1)
+				checksum.update(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+		return checksum.getValue();
+	}
+
+	/**
+	 * Adds bytes from an array.
+	 */
+	public abstract void update(byte[] b, int off, int len);
+
+	/**
+	 * Adds the remaining bytes of a buffer without changing its position.
+	 */
+	public abstract void update(ByteBuffer buffer);
+
+	/**
+	 * @return The checksum as "&lt;algorithm&gt;:&lt;hex value&gt;".
+	 */
+	public abstract String getValue();
+
+	static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	private static class Sha256 extends StreamingChecksum {
+
+		private final MessageDigest digest;
+
+		Sha256() {
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				// every JRE must support SHA-256
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public void update(byte[] b, int off, int len) {
+			digest.update(b, off, len);
+		}
+
+		public void update(ByteBuffer buffer) {
+			digest.update(buffer.duplicate());
+		}
+
+		public String getValue() {
+			return "sha256:" + toHex(digest.digest());
+		}
+	}
+
+	private static class Crc32c extends StreamingChecksum {
+
+		private final CRC32C crc = new CRC32C();
+
+		public void update(byte[] b, int off, int len) {
+			crc.update(b, off, len);
+		}
+
+		public void update(ByteBuffer buffer) {
+			crc.update(buffer.duplicate());
+		}
+
+		public String getValue() {
+			return "crc32c:" + String.format("%08x", crc.getValue());
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.download;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.vonkoeller.flickrFaves.concurrent.TaskScope;
+import de.vonkoeller.flickrFaves.concurrent.Threads;
+import de.vonkoeller.flickrFaves.debug.Tracer;
+import de.vonkoeller.flickrFaves.download.DownloadListener.Outcome;
+import de.vonkoeller.flickrFaves.exceptions.FlickrFaveException;
+import de.vonkoeller.flickrFaves.metrics.Metrics;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Runs the classic blocking download of every fave on its own thread
+ *         within a {@link TaskScope}. With virtual threads enabled (see
+ *         {@link Threads}) thousands of transfers can be in flight at little
+ *         cost. An unexpected error in one transfer cancels all others and
+ *         aborts the run.
+ */
+public class ThreadPerTaskDownloadEngine implements DownloadEngine {
+
+	/** The maximum number of faves in flight at the same time. */
+	private final int maxInFlight;
+
+	/** Does the actual downloading. */
+	private final ClassicDownloadEngine classic = new ClassicDownloadEngine();
+
+	/**
+	 * @param maxInFlight
+	 *            The maximum number of faves in flight at the same time.
+	 */
+	public ThreadPerTaskDownloadEngine(int maxInFlight) {
+		this.maxInFlight = Math.max(1, maxInFlight);
+	}
+
+	public int downloadAll(final Scheduler queue, final int minSize,
+			final DownloadListener listener) {
+		final Semaphore permits = new Semaphore(maxInFlight);
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicInteger inFlight = new AtomicInteger();
+		TaskScope scope = new TaskScope();
+		try {
+			while (true) {
+				// wait for a free slot, but stop early if a task has failed
+				while (!permits.tryAcquire(100, TimeUnit.MILLISECONDS))
+					scope.throwIfFailed();
+				final DownloadTask task = queue.next();
+				if (task == null) {
+					permits.release();
+					// a running fave put back for a retry comes in only
+					// before its transfer stops counting as in flight
+					if (!queue.isRetryingLater()
+							|| (inFlight.get() == 0 && !queue.hasMore()))
+						break;
+					Thread.sleep(100);
+					scope.throwIfFailed();
+					continue;
+				}
+				Metrics.QUEUE_DEPTH.set(queue.size());
+				inFlight.incrementAndGet();
+				scope.fork(new Callable<Void>() {
+					public Void call() {
+						try {
+							Outcome outcome = classic.downloadOne(task,
+									minSize, listener);
+							if (outcome == Outcome.FAILED) {
+								if (queue.retryLater(task))
+									return null;
+								failed.incrementAndGet();
+							} else if (outcome == Outcome.DEFERRED)
+								queue.defer(task);
+							listener.taskFinished(task, outcome);
+						} finally {
+							inFlight.decrementAndGet();
+							permits.release();
+						}
+						return null;
+					}
+				});
+			}
+			scope.join();
+		} catch (InterruptedException e) {
+			Tracer.trace("Download interrupted, cancelling all transfers...");
+			Thread.currentThread().interrupt();
+			throw new FlickrFaveException("Download interrupted.", e);
+		} finally {
+			scope.close();
+		}
+		return failed.get();
+	}
+}
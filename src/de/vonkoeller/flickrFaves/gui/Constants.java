@@ -53,6 +53,48 @@ public class Constants {
 	public static final int OAUTH_CALLBACK_PORT = 8801;
 	public static final String OAUTH_CALLBACK_URL = "http://localhost:" + OAUTH_CALLBACK_PORT;
 
+	/** The default time in seconds for which API responses are cached. */
+	public static final long API_CACHE_TTL = 60 * 60;
+
+	/** The default maximum size in bytes of the API response cache. */
+	public static final long API_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+
+	/** The default number of trace messages kept for error reports. */
+	public static final int TRACE_BUFFER_SIZE = 8192;
+
+	/** The default size in bytes at which the trace file is rotated. */
+	public static final long TRACE_FILE_MAX_BYTES = 10L * 1024 * 1024;
+
+	/** The default number of trace files kept. */
+	public static final int TRACE_FILES = 5;
+
+	/** The default size in bytes from which files are downloaded in segments. */
+	public static final long SEGMENT_THRESHOLD = 64L * 1024 * 1024;
+
+	/** The default number of segments of a large file. */
+	public static final int SEGMENTS = 4;
+
+	/** The default free disk space in MB that downloads must leave. */
+	public static final long MIN_FREE_MB = 256;
+
+	/** The size assumed for a photo without listed dimensions. */
+	public static final long PHOTO_ESTIMATE = 4L * 1024 * 1024;
+
+	/** The size assumed for a video. */
+	public static final long VIDEO_ESTIMATE = 64L * 1024 * 1024;
+
+	/** The default size in MB at which a new pack segment is started. */
+	public static final long PACK_SEGMENT_MB = 1024;
+
+	/** The default share of garbage in packs that triggers compaction. */
+	public static final double PACK_COMPACT_RATIO = 0.25;
+
+	/** The default number of fave ids kept in memory before spilling. */
+	public static final int ID_SPILL_THRESHOLD = 1000000;
+
+	/** The default number of times per second the transfer table is updated. */
+	public static final int MONITOR_FPS = 10;
+
 	/** Print debug messages? */
 	public static final boolean DEBUG = true;
 
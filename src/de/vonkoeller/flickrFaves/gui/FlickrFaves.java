@@ -18,10 +18,12 @@
  */
 package de.vonkoeller.flickrFaves.gui;
 
+import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.awt.GridLayout;
 import java.awt.Toolkit;
+import java.awt.Window;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.StringSelection;
 import java.awt.event.ActionEvent;
@@ -37,6 +39,7 @@ import java.net.URLConnection;
 import java.net.UnknownHostException;
 import java.util.prefs.Preferences;
 
+import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
@@ -51,6 +54,7 @@ import javax.swing.JPanel;
 import javax.swing.JProgressBar;
 import javax.swing.JSpinner;
 import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
 
 import com.flickr4java.flickr.FlickrException;
 import com.centerkey.bareBonesBrowserLaunch.BareBonesBrowserLaunch;
@@ -58,7 +62,10 @@ import com.centerkey.bareBonesBrowserLaunch.BareBonesBrowserLaunch;
 import de.vonkoeller.flickrFaves.api.AuthHolder;
 import de.vonkoeller.flickrFaves.api.Authentication;
 import de.vonkoeller.flickrFaves.api.Favorites;
+import de.vonkoeller.flickrFaves.concurrent.Threads;
+import de.vonkoeller.flickrFaves.config.Options;
 import de.vonkoeller.flickrFaves.debug.Tracer;
+import de.vonkoeller.flickrFaves.debug.Tracer.Level;
 import de.vonkoeller.flickrFaves.exceptions.FlickrFaveException;
 import de.vonkoeller.flickrFaves.server.SimpleHttpServer;
 
@@ -501,10 +508,13 @@ public class FlickrFaves extends JPanel implements ActionListener {
 		// clear pane
 		removeAll();
 		/*
-		 * Set layout manager. I will use a number of FlowLayouts within a
-		 * one-column GridLayout.
+		 * Set layout manager. The rows on top use a number of FlowLayouts
+		 * within a one-column GridLayout; the table of transfers takes the
+		 * remaining space.
 		 */
-		setLayout(new GridLayout(0, 1));
+		setLayout(new BorderLayout());
+		JPanel rows = new JPanel(new GridLayout(0, 1));
+		add(rows, BorderLayout.NORTH);
 
 		// first row: big explanatory label
 		JPanel p1 = new JPanel();
@@ -512,7 +522,7 @@ public class FlickrFaves extends JPanel implements ActionListener {
 		JLabel msg = new JLabel(
 				"<html><font size='+1'>Now Downloading...</font>");
 		p1.add(msg);
-		add(p1);
+		rows.add(p1);
 
 		// second row: total progress bar
 		Box p2 = Box.createHorizontalBox();
@@ -528,31 +538,24 @@ public class FlickrFaves extends JPanel implements ActionListener {
 		totalProgress.setMaximumSize(d);
 		p2.add(totalProgress);
 		p2.add(Box.createHorizontalStrut(30));
-		add(p2);
+		rows.add(p2);
 
-		// third row: file progress bar
-		Box p3 = Box.createHorizontalBox();
-		p3.add(Box.createHorizontalStrut(5));
-		JLabel filePrograssLabel = new JLabel("Download progress:");
-		p3.add(filePrograssLabel);
-		p3.add(Box.createHorizontalGlue());
-		final JProgressBar fileProgress = new JProgressBar(0, 0);
-		fileProgress.setIndeterminate(true);
-		fileProgress.setEnabled(false);
-		d = fileProgress.getPreferredSize();
-		d.width = 240;
-		fileProgress.setPreferredSize(d);
-		fileProgress.setMaximumSize(d);
-		p3.add(fileProgress);
-		p3.add(Box.createHorizontalStrut(30));
-		add(p3);
-
-		// fourth row: current progress message
-		JPanel p4 = new JPanel();
-		p4.setLayout(new FlowLayout(FlowLayout.LEFT));
+		// third row: current progress message
+		JPanel p3 = new JPanel();
+		p3.setLayout(new FlowLayout(FlowLayout.LEFT));
 		final JLabel progressMsg = new JLabel("Getting list of faves...");
-		p4.add(progressMsg);
-		add(p4);
+		p3.add(progressMsg);
+		rows.add(p3);
+
+		// below: all transfers under way
+		final TransferMonitor transfers = new TransferMonitor();
+		transfers.setBorder(BorderFactory.createEmptyBorder(0, 5, 5, 5));
+		add(transfers, BorderLayout.CENTER);
+
+		// make room for a few rows of transfers
+		Window window = SwingUtilities.getWindowAncestor(this);
+		if (window != null && window.getHeight() < 420)
+			window.setSize(Math.max(window.getWidth(), 520), 420);
 
 		// repaint
 		revalidate();
@@ -571,14 +574,13 @@ public class FlickrFaves extends JPanel implements ActionListener {
 							maxFavesCheck.isSelected(),
 							((Integer) maxFavesSpinner.getValue()),
 							deleteStaleCheck.isSelected(), flickrFaves,
-							totalProgress, fileProgress, progressMsg);
+							totalProgress, transfers, progressMsg);
 				} catch (FlickrFaveException e) {
 					flickrFaves.showExceptionAndQuit(e);
 				}
 			}
 		};
-		Thread dlFavesThread = new Thread(dlFaves);
-		dlFavesThread.start();
+		Threads.start("download", dlFaves);
 	}
 
 	/**
@@ -861,6 +863,17 @@ public class FlickrFaves extends JPanel implements ActionListener {
 		// use system-wide proxy configuration
 		System.setProperty("java.net.useSystemProxies", "true");
 
+		// expose metrics for monitoring if requested
+		int metricsPort = Options.getInt("metricsPort", 0);
+		if (metricsPort > 0) {
+			try {
+				SimpleHttpServer.startMetrics(metricsPort);
+			} catch (IOException e) {
+				Tracer.trace(Level.WARN, "Could not serve metrics on port "
+						+ metricsPort + ": " + e);
+			}
+		}
+
 		// initialize window
 		JFrame frame = new JFrame("FlickrFaves " + Constants.VERSION);
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.gui;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
+
+import de.vonkoeller.flickrFaves.config.Options;
+import de.vonkoeller.flickrFaves.download.DownloadListener;
+import de.vonkoeller.flickrFaves.download.DownloadTask;
+
+/**
+ * @author Magnus von Koeller
+ * 
+ *         Shows every transfer under way with its progress, rate and
+ *         estimated time left, and the throughput of all of them. The
+ *         download threads only update counters; a timer samples them a
+ *         limited number of times per second (the "monitorFps" option) and
+ *         updates the table in one go, so the event dispatch thread is not
+ *         flooded however many transfers run at once.
+ */
+public class TransferMonitor extends JPanel implements DownloadListener {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The weight of the latest sample in the smoothed rates. */
+	private static final double SMOOTHING = 0.3;
+
+	/** Transfers in the order of the list of faves. */
+	private static final Comparator<Transfer> BY_NUMBER = new Comparator<Transfer>() {
+		public int compare(Transfer a, Transfer b) {
+			return Integer.compare(a.task.getNumber(), b.task.getNumber());
+		}
+	};
+
+	/** Keeps the larger of two byte counts. */
+	private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+		public long applyAsLong(long left, long right) {
+			return Math.max(left, right);
+		}
+	};
+
+	/** The faves being downloaded, updated by the download threads. */
+	private final ConcurrentHashMap<DownloadTask, Transfer> active = new ConcurrentHashMap<DownloadTask, Transfer>();
+
+	/** The bytes received by all transfers. */
+	private final LongAdder received = new LongAdder();
+
+	private final TransferTableModel model = new TransferTableModel();
+
+	private final JLabel summary = new JLabel(" ");
+
+	/** Updates the table while it is shown. */
+	private final Timer timer;
+
+	/** When the counters were last sampled; only used by refresh. */
+	private long lastSample = System.nanoTime();
+
+	/** The bytes received at the last sample; only used by refresh. */
+	private long lastReceived = 0;
+
+	/** The smoothed throughput; only used by refresh. */
+	private double rate = 0;
+
+	public TransferMonitor() {
+		super(new BorderLayout());
+		JTable table = new JTable(model);
+		table.setFillsViewportHeight(true);
+		table.getColumnModel().getColumn(0).setPreferredWidth(110);
+		table.getColumnModel().getColumn(2).setPreferredWidth(110);
+		add(new JScrollPane(table), BorderLayout.CENTER);
+		add(summary, BorderLayout.SOUTH);
+
+		int fps = Math.max(1, Options.getInt("monitorFps",
+				Constants.MONITOR_FPS));
+		timer = new Timer(1000 / fps, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				refresh();
+			}
+		});
+	}
+
+	@Override
+	public void addNotify() {
+		super.addNotify();
+		timer.start();
+	}
+
+	@Override
+	public void removeNotify() {
+		timer.stop();
+		super.removeNotify();
+	}
+
+	/**
+	 * Samples the counters of all transfers and updates the table. Called on
+	 * the event dispatch thread.
+	 */
+	public void refresh() {
+		long now = System.nanoTime();
+		double seconds = Math.max(1e-3, (now - lastSample) / 1e9);
+		lastSample = now;
+
+		List<Transfer> rows = new ArrayList<Transfer>(active.values());
+		for (Transfer transfer : rows)
+			transfer.sample(seconds);
+		Collections.sort(rows, BY_NUMBER);
+		model.setRows(rows);
+
+		long total = received.sum();
+		rate = smooth(rate, (total - lastReceived) / seconds);
+		lastReceived = total;
+		summary.setText(" " + rows.size() + " transfers, "
+				+ formatBytes((long) rate) + "/s, " + formatBytes(total)
+				+ " received");
+	}
+
+	public void statusChanged(DownloadTask task, String status) {
+		transfer(task).status = status;
+	}
+
+	public void transferStarted(DownloadTask task, long size) {
+		Transfer transfer = transfer(task);
+		// a transfer started again, e.g. for a smaller size, begins at 0
+		transfer.bytes.set(0);
+		transfer.size = size;
+	}
+
+	public void bytesTransferred(DownloadTask task, long bytesCopied) {
+		// segments report from several threads, possibly out of order, so
+		// only the largest count so far is kept and each byte added once
+		long before = transfer(task).bytes.getAndAccumulate(bytesCopied,
+				MAX);
+		if (bytesCopied > before)
+			received.add(bytesCopied - before);
+	}
+
+	public void taskFinished(DownloadTask task, Outcome outcome) {
+		active.remove(task);
+	}
+
+	@Override
+	public void taskFailed(DownloadTask task, Throwable cause) {
+		// a fave put back to be retried shows up again once restarted
+		active.remove(task);
+	}
+
+	private Transfer transfer(DownloadTask task) {
+		Transfer transfer = active.get(task);
+		if (transfer == null) {
+			Transfer created = new Transfer(task);
+			transfer = active.putIfAbsent(task, created);
+			if (transfer == null)
+				transfer = created;
+		}
+		return transfer;
+	}
+
+	private static double smooth(double previous, double sample) {
+		return previous == 0 ? sample : previous + SMOOTHING
+				* (sample - previous);
+	}
+
+	/**
+	 * @return A size for display, e.g. "1.4 MB".
+	 */
+	static String formatBytes(long bytes) {
+		if (bytes < 1024)
+			return bytes + " B";
+		if (bytes < 1024 * 1024)
+			return String.format("%.1f KB", bytes / 1024.0);
+		return String.format("%.1f MB", bytes / (1024.0 * 1024));
+	}
+
+	/**
+	 * The counters of a single transfer. The download threads of the fave
+	 * write the volatile and atomic fields; the sampled ones belong to the
+	 * event dispatch thread.
+	 */
+	private static class Transfer {
+
+		final DownloadTask task;
+
+		volatile String status = "";
+
+		volatile long size = -1;
+
+		final AtomicLong bytes = new AtomicLong();
+
+		String sampledStatus;
+
+		long sampledSize;
+
+		long sampledBytes = 0;
+
+		/** The smoothed rate in bytes per second. */
+		double rate = 0;
+
+		Transfer(DownloadTask task) {
+			this.task = task;
+		}
+
+		void sample(double seconds) {
+			long current = bytes.get();
+			long delta = current - sampledBytes;
+			// started again from 0
+			rate = delta < 0 ? 0 : smooth(rate, delta / seconds);
+			sampledBytes = current;
+			sampledSize = size;
+			sampledStatus = status;
+		}
+	}
+
+	/**
+	 * The sampled transfers as a table.
+	 */
+	private static class TransferTableModel extends AbstractTableModel {
+
+		private static final long serialVersionUID = 1L;
+
+		private static final String[] COLUMNS = { "Fave", "Status",
+				"Progress", "Rate", "Left" };
+
+		private List<Transfer> rows = Collections.emptyList();
+
+		/**
+		 * Replaces all rows, notifying the table once.
+		 */
+		void setRows(List<Transfer> rows) {
+			int before = this.rows.size();
+			this.rows = rows;
+			if (before > 0 && before == rows.size())
+				fireTableRowsUpdated(0, before - 1);
+			else
+				fireTableDataChanged();
+		}
+
+		public int getRowCount() {
+			return rows.size();
+		}
+
+		public int getColumnCount() {
+			return COLUMNS.length;
+		}
+
+		@Override
+		public String getColumnName(int column) {
+			return COLUMNS[column];
+		}
+
+		public Object getValueAt(int row, int column) {
+			Transfer transfer = rows.get(row);
+			switch (column) {
+			case 0:
+				return transfer.task.getFilename();
+			case 1:
+				return transfer.sampledStatus;
+			case 2:
+				if (transfer.sampledSize <= 0)
+					return formatBytes(transfer.sampledBytes);
+				return (100 * transfer.sampledBytes / transfer.sampledSize)
+						+ "% of " + formatBytes(transfer.sampledSize);
+			case 3:
+				return transfer.rate < 1 ? "" : formatBytes((long) transfer.rate)
+						+ "/s";
+			default:
+				if (transfer.sampledSize <= 0 || transfer.rate < 1)
+					return "";
+				long seconds = (long) Math.ceil(Math.max(0,
+						transfer.sampledSize - transfer.sampledBytes)
+						/ transfer.rate);
+				return String.format("%d:%02d", seconds / 60, seconds % 60);
+			}
+		}
+	}
+}
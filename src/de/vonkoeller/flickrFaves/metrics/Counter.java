@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         A value that only goes up. Updates from many threads do not
+ *         contend with each other.
+ */
+public class Counter extends Metric {
+
+	private final LongAdder value = new LongAdder();
+
+	Counter(String name, String help, String labels) {
+		super(name, help, labels);
+	}
+
+	public void inc() {
+		value.increment();
+	}
+
+	public void add(long n) {
+		value.add(n);
+	}
+
+	public long get() {
+		return value.sum();
+	}
+
+	String getType() {
+		return "counter";
+	}
+
+	void writeSamples(StringBuilder sb) {
+		writeSample(sb, getName(), getLabels(), Long.toString(get()));
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         A value that goes up and down, e.g. the number of open connections.
+ */
+public class Gauge extends Metric {
+
+	private final AtomicLong value = new AtomicLong();
+
+	Gauge(String name, String help, String labels) {
+		super(name, help, labels);
+	}
+
+	public void set(long n) {
+		value.set(n);
+	}
+
+	public void inc() {
+		value.incrementAndGet();
+	}
+
+	public void dec() {
+		value.decrementAndGet();
+	}
+
+	public long get() {
+		return value.get();
+	}
+
+	String getType() {
+		return "gauge";
+	}
+
+	void writeSamples(StringBuilder sb) {
+		writeSample(sb, getName(), getLabels(), Long.toString(get()));
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.metrics;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Counts observed durations in fixed buckets. Observing a value only
+ *         increments two adders, so it is cheap enough for every fave.
+ */
+public class Histogram extends Metric {
+
+	/** Upper bounds of the buckets in seconds, from 5 ms to 5 minutes. */
+	static final double[] BOUNDS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+			1, 2.5, 5, 10, 30, 60, 300 };
+
+	/** Observations per bucket; the last one is for values above all bounds. */
+	private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+
+	private final DoubleAdder sum = new DoubleAdder();
+
+	Histogram(String name, String help, String labels) {
+		super(name, help, labels);
+		for (int i = 0; i < buckets.length; i++)
+			buckets[i] = new LongAdder();
+	}
+
+	/**
+	 * @param seconds
+	 *            The observed duration.
+	 */
+	public void observe(double seconds) {
+		int i = 0;
+		while (i < BOUNDS.length && seconds > BOUNDS[i])
+			i++;
+		buckets[i].increment();
+		sum.add(seconds);
+	}
+
+	/**
+	 * Observes the time elapsed since the given start.
+	 *
+	 * @param startNanos
+	 *            A value of System.nanoTime().
+	 */
+	public void observeSince(long startNanos) {
+		observeNanos(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @param nanos
+	 *            The observed duration in nanoseconds.
+	 */
+	public void observeNanos(long nanos) {
+		observe(nanos / 1e9);
+	}
+
+	/**
+	 * @return The number of observations.
+	 */
+	public long getCount() {
+		long count = 0;
+		for (LongAdder b : buckets)
+			count += b.sum();
+		return count;
+	}
+
+	String getType() {
+		return "histogram";
+	}
+
+	void writeSamples(StringBuilder sb) {
+		String sep = getLabels().length() > 0 ? getLabels() + "," : "";
+		long cumulative = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			cumulative += buckets[i].sum();
+			String le = i < BOUNDS.length ? Double.toString(BOUNDS[i]) : "+Inf";
+			writeSample(sb, getName() + "_bucket", sep + "le=\"" + le + "\"",
+					Long.toString(cumulative));
+		}
+		writeSample(sb, getName() + "_sum", getLabels(),
+				Double.toString(sum.sum()));
+		writeSample(sb, getName() + "_count", getLabels(),
+				Long.toString(cumulative));
+	}
+}
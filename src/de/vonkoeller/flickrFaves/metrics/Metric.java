@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.metrics;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         A named value that is exposed in the Prometheus text format.
+ *         Metrics sharing a name form a family and differ in their labels.
+ */
+public abstract class Metric {
+
+	private final String name;
+
+	private final String help;
+
+	/** The labels, e.g. <code>stage="verify"</code>, or an empty string. */
+	private final String labels;
+
+	Metric(String name, String help, String labels) {
+		this.name = name;
+		this.help = help;
+		this.labels = labels == null ? "" : labels;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	String getHelp() {
+		return help;
+	}
+
+	String getLabels() {
+		return labels;
+	}
+
+	/**
+	 * @return The Prometheus type: counter, gauge or histogram.
+	 */
+	abstract String getType();
+
+	/**
+	 * Appends the sample lines of this metric.
+	 */
+	abstract void writeSamples(StringBuilder sb);
+
+	/**
+	 * Appends one sample line.
+	 */
+	static void writeSample(StringBuilder sb, String name, String labels,
+			String value) {
+		sb.append(name);
+		if (labels.length() > 0)
+			sb.append('{').append(labels).append('}');
+		sb.append(' ').append(value).append('\n');
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import de.vonkoeller.flickrFaves.download.DownloadListener;
+import de.vonkoeller.flickrFaves.download.DownloadTask;
+import de.vonkoeller.flickrFaves.download.ForwardingDownloadListener;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         The registry of all metrics of a FlickrFaves process. Metrics are
+ *         updated where things happen and rendered in the Prometheus text
+ *         format on request.
+ */
+public final class Metrics {
+
+	/**
+	 * Utility class -- cannot be instantiated.
+	 */
+	private Metrics() {
+		// empty on purpose
+	}
+
+	/** The prefix of all metric names. */
+	private static final String PREFIX = "flickrfaves_";
+
+	/** Metric name to all metrics of that name, in registration order. */
+	private static final Map<String, List<Metric>> registry = new LinkedHashMap<String, List<Metric>>();
+
+	/** API method to call counter. */
+	private static final ConcurrentMap<String, Counter> apiCalls = new ConcurrentHashMap<String, Counter>();
+
+	public static final Counter FAVES_LISTED = counter("faves_listed_total",
+			"Faves returned by the list of faves.");
+
+	public static final Counter FAVES_DOWNLOADED = counter(
+			"faves_downloaded_total", "Faves downloaded and committed.");
+
+	public static final Counter FAVES_SKIPPED = counter("faves_skipped_total",
+			"Faves not downloaded because they already exist.");
+
+	public static final Counter FAVES_EXCLUDED = counter(
+			"faves_excluded_total",
+			"Faves excluded by an exclusion file or for being too small.");
+
+	public static final Counter FAVES_FILTERED = counter(
+			"faves_filtered_total",
+			"Faves not downloaded because their listed dimensions are unwanted.");
+
+	public static final Counter FAVES_UNAVAILABLE = counter(
+			"faves_unavailable_total", "Faves without an accessible size.");
+
+	public static final Counter FAVES_DEFERRED = counter(
+			"faves_deferred_total",
+			"Faves left for the next run for lack of disk space.");
+
+	public static final Counter FAVES_FAILED = counter("faves_failed_total",
+			"Faves that could not be downloaded.");
+
+	public static final Counter BYTES_TRANSFERRED = counter(
+			"bytes_transferred_total", "Bytes of faves received.");
+
+	public static final Counter RETRIES = counter("retries_total",
+			"Retried blocks and downloads after network errors.");
+
+	public static final Gauge QUEUE_DEPTH = gauge("download_queue_depth",
+			"Faves waiting to be downloaded.");
+
+	public static final Gauge ACTIVE_CONNECTIONS = gauge(
+			"active_connections", "Faves currently being downloaded.");
+
+	private static final String STAGE_HELP = "Time per fave spent in each download stage.";
+
+	/** Finding the largest accessible size, up to the response headers. */
+	public static final Histogram RESOLVE = histogram("fave_stage_seconds",
+			STAGE_HELP, "stage=\"resolve\"");
+
+	/** Establishing connections; only measured by the classic engines. */
+	public static final Histogram CONNECT = histogram("fave_stage_seconds",
+			STAGE_HELP, "stage=\"connect\"");
+
+	public static final Histogram TRANSFER = histogram("fave_stage_seconds",
+			STAGE_HELP, "stage=\"transfer\"");
+
+	public static final Histogram VERIFY = histogram("fave_stage_seconds",
+			STAGE_HELP, "stage=\"verify\"");
+
+	/**
+	 * Counts a call of a Flickr API method.
+	 *
+	 * @param method
+	 *            The method name, e.g. "flickr.favorites.getList".
+	 */
+	public static void apiCall(String method) {
+		Counter c = apiCalls.get(method);
+		if (c == null) {
+			Counter created = new Counter(PREFIX + "api_calls_total",
+					"Calls of Flickr API methods.", "method=\"" + method + "\"");
+			c = apiCalls.putIfAbsent(method, created);
+			if (c == null) {
+				c = created;
+				register(c);
+			}
+		}
+		c.inc();
+	}
+
+	/**
+	 * Wraps a listener so that the outcome and stage times of every fave are
+	 * recorded.
+	 *
+	 * @param delegate
+	 *            The listener to pass all events on to.
+	 * @return The counting listener.
+	 */
+	public static DownloadListener recording(final DownloadListener delegate) {
+		return new ForwardingDownloadListener(delegate) {
+			@Override
+			public void stageFinished(DownloadTask task, Stage stage,
+					long nanos) {
+				switch (stage) {
+				case RESOLVE:
+					RESOLVE.observeNanos(nanos);
+					break;
+				case CONNECT:
+					CONNECT.observeNanos(nanos);
+					break;
+				case TRANSFER:
+					TRANSFER.observeNanos(nanos);
+					break;
+				default:
+					VERIFY.observeNanos(nanos);
+				}
+				super.stageFinished(task, stage, nanos);
+			}
+
+			@Override
+			public void taskFinished(DownloadTask task, Outcome outcome) {
+				switch (outcome) {
+				case DOWNLOADED:
+					FAVES_DOWNLOADED.inc();
+					break;
+				case SKIPPED:
+					FAVES_SKIPPED.inc();
+					break;
+				case TOO_SMALL:
+					FAVES_EXCLUDED.inc();
+					break;
+				case UNAVAILABLE:
+					FAVES_UNAVAILABLE.inc();
+					break;
+				case DEFERRED:
+					FAVES_DEFERRED.inc();
+					break;
+				default:
+					FAVES_FAILED.inc();
+				}
+				super.taskFinished(task, outcome);
+			}
+		};
+	}
+
+	/**
+	 * @return All metrics in the Prometheus text exposition format.
+	 */
+	public static String scrape() {
+		StringBuilder sb = new StringBuilder(4096);
+		synchronized (registry) {
+			for (List<Metric> family : registry.values()) {
+				Metric first = family.get(0);
+				sb.append("# HELP ").append(first.getName()).append(' ')
+						.append(first.getHelp()).append('\n');
+				sb.append("# TYPE ").append(first.getName()).append(' ')
+						.append(first.getType()).append('\n');
+				for (Metric m : family)
+					m.writeSamples(sb);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static Counter counter(String name, String help) {
+		return register(new Counter(PREFIX + name, help, null));
+	}
+
+	private static Gauge gauge(String name, String help) {
+		return register(new Gauge(PREFIX + name, help, null));
+	}
+
+	private static Histogram histogram(String name, String help, String labels) {
+		return register(new Histogram(PREFIX + name, help, labels));
+	}
+
+	private static <M extends Metric> M register(M metric) {
+		synchronized (registry) {
+			List<Metric> family = registry.get(metric.getName());
+			if (family == null) {
+				family = new ArrayList<Metric>();
+				registry.put(metric.getName(), family);
+			}
+			family.add(metric);
+		}
+		return metric;
+	}
+}
@@ -0,0 +1,471 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.vonkoeller.flickrFaves.debug.Tracer;
+import de.vonkoeller.flickrFaves.download.DownloadListener;
+import de.vonkoeller.flickrFaves.download.DownloadListener.Outcome;
+import de.vonkoeller.flickrFaves.download.DownloadListener.Stage;
+import de.vonkoeller.flickrFaves.download.DownloadTask;
+import de.vonkoeller.flickrFaves.download.ForwardingDownloadListener;
+import de.vonkoeller.flickrFaves.download.Scheduler;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Collects what happened during one run and writes it as JSON to
+ *         ".flickrFaves-reports/run-&lt;timestamp&gt;.json" in the download
+ *         directory. The schema is versioned so that reports of different
+ *         runs can be compared; the newest reports are kept.
+ */
+public class RunReport {
+
+	/** The version of the JSON schema; increase on incompatible changes. */
+	private static final int SCHEMA_VERSION = 2;
+
+	/** The name of the report directory within the download directory. */
+	public static final String DIRNAME = ".flickrFaves-reports";
+
+	/** The number of hosts listed as slowest. */
+	private static final int SLOW_HOSTS = 5;
+
+	private final File dir;
+
+	private final long started = System.currentTimeMillis();
+
+	/** Phase name to wall time in nanoseconds, in the order of the phases. */
+	private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+	private String currentPhase = null;
+
+	private long currentPhaseStart;
+
+	/** Bytes transferred before this run, to compute this run's share. */
+	private final long bytesBefore = Metrics.BYTES_TRANSFERRED.get();
+
+	private long downloadNanos = 0;
+
+	private final Map<Stage, Samples> stages = new EnumMap<Stage, Samples>(
+			Stage.class);
+
+	private final Map<Outcome, Integer> outcomes = new EnumMap<Outcome, Integer>(
+			Outcome.class);
+
+	private final Map<String, HostStats> hosts = new HashMap<String, HostStats>();
+
+	private final List<String[]> failures = new ArrayList<String[]>();
+
+	/** The queue the faves were downloaded from; null if none. */
+	private Scheduler scheduler = null;
+
+	/**
+	 * @param dir
+	 *            The download directory.
+	 */
+	public RunReport(File dir) {
+		this.dir = dir;
+		for (Stage stage : Stage.values())
+			stages.put(stage, new Samples());
+		for (Outcome outcome : Outcome.values())
+			outcomes.put(outcome, 0);
+	}
+
+	/**
+	 * Ends the current phase, if any, and starts the next one.
+	 *
+	 * @param name
+	 *            The phase, e.g. "listing".
+	 */
+	public synchronized void startPhase(String name) {
+		endPhase();
+		currentPhase = name;
+		currentPhaseStart = System.nanoTime();
+	}
+
+	/**
+	 * Ends the current phase.
+	 */
+	public synchronized void endPhase() {
+		if (currentPhase == null)
+			return;
+		long nanos = System.nanoTime() - currentPhaseStart;
+		phases.put(currentPhase, nanos);
+		if ("download".equals(currentPhase))
+			downloadNanos = nanos;
+		currentPhase = null;
+	}
+
+	/**
+	 * @param scheduler
+	 *            The queue the faves are downloaded from; its order is
+	 *            included in the report.
+	 */
+	public synchronized void setScheduler(Scheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Wraps a listener so that stage times, outcomes and failures of all
+	 * faves are recorded.
+	 *
+	 * @param delegate
+	 *            The listener to pass all events on to.
+	 * @return The recording listener.
+	 */
+	public DownloadListener recording(DownloadListener delegate) {
+		return new ForwardingDownloadListener(delegate) {
+			@Override
+			public void stageFinished(DownloadTask task, Stage stage,
+					long nanos) {
+				synchronized (RunReport.this) {
+					stages.get(stage).add(nanos);
+					if (stage == Stage.TRANSFER)
+						host(task).nanos += nanos;
+				}
+				super.stageFinished(task, stage, nanos);
+			}
+
+			@Override
+			public void taskFailed(DownloadTask task, Throwable cause) {
+				synchronized (RunReport.this) {
+					failures.add(new String[] { task.getId(),
+							hostOf(task.getResolvedUrl()), String.valueOf(cause) });
+				}
+				super.taskFailed(task, cause);
+			}
+
+			@Override
+			public void taskFinished(DownloadTask task, Outcome outcome) {
+				synchronized (RunReport.this) {
+					outcomes.put(outcome, outcomes.get(outcome) + 1);
+					if (outcome == Outcome.DOWNLOADED) {
+						HostStats h = host(task);
+						h.faves++;
+						h.bytes += task.getTarget().length();
+					}
+				}
+				super.taskFinished(task, outcome);
+			}
+		};
+	}
+
+	private HostStats host(DownloadTask task) {
+		String name = hostOf(task.getResolvedUrl());
+		HostStats h = hosts.get(name);
+		if (h == null) {
+			h = new HostStats(name);
+			hosts.put(name, h);
+		}
+		return h;
+	}
+
+	private static String hostOf(String url) {
+		if (url == null)
+			return "unknown";
+		try {
+			String host = URI.create(url).getHost();
+			return host == null ? "unknown" : host;
+		} catch (IllegalArgumentException e) {
+			return "unknown";
+		}
+	}
+
+	/**
+	 * Ends the current phase and writes the report, dropping the oldest
+	 * reports beyond the given number.
+	 *
+	 * @param keep
+	 *            The number of reports to keep.
+	 * @return The report file or null if it could not be written.
+	 */
+	public File write(int keep) {
+		String json;
+		synchronized (this) {
+			endPhase();
+			json = toJson();
+		}
+		File reportDir = new File(dir, DIRNAME);
+		File file = new File(reportDir, "run-"
+				+ new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(
+						started)) + ".json");
+		try {
+			reportDir.mkdirs();
+			Writer out = new OutputStreamWriter(new FileOutputStream(file),
+					StandardCharsets.UTF_8);
+			try {
+				out.write(json);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			Tracer.trace("Could not write run report " + file + ": " + e);
+			return null;
+		}
+
+		// reports sort by their timestamp; delete the oldest
+		String[] names = reportDir.list();
+		if (names != null && names.length > keep) {
+			Arrays.sort(names);
+			for (int i = 0; i < names.length - keep; i++)
+				new File(reportDir, names[i]).delete();
+		}
+		Tracer.trace("Wrote run report " + file + "...");
+		return file;
+	}
+
+	private String toJson() {
+		StringBuilder sb = new StringBuilder(2048);
+		sb.append("{\n");
+		sb.append("  \"version\": ").append(SCHEMA_VERSION).append(",\n");
+		sb.append("  \"started\": ").append(quote(iso(started))).append(",\n");
+		sb.append("  \"directory\": ").append(quote(dir.getAbsolutePath()))
+				.append(",\n");
+
+		// wall time per phase; verify runs interleaved with the downloads,
+		// so its time is summed over all faves instead
+		sb.append("  \"phasesMs\": {");
+		String sep = "";
+		for (Map.Entry<String, Long> e : phases.entrySet()) {
+			sb.append(sep).append("\n    ").append(quote(e.getKey()))
+					.append(": ").append(millis(e.getValue()));
+			sep = ",";
+		}
+		sb.append(sep).append("\n    \"verify\": ")
+				.append(millis(stages.get(Stage.VERIFY).sum()));
+		sb.append("\n  },\n");
+
+		sb.append("  \"outcomes\": {");
+		sep = "";
+		for (Map.Entry<Outcome, Integer> e : outcomes.entrySet()) {
+			sb.append(sep).append("\n    ")
+					.append(quote(e.getKey().name().toLowerCase()))
+					.append(": ").append(e.getValue());
+			sep = ",";
+		}
+		sb.append("\n  },\n");
+
+		long bytes = Metrics.BYTES_TRANSFERRED.get() - bytesBefore;
+		double seconds = downloadNanos / 1e9;
+		sb.append("  \"throughput\": {\n");
+		sb.append("    \"bytes\": ").append(bytes).append(",\n");
+		sb.append("    \"bytesPerSecond\": ")
+				.append(seconds > 0 ? Math.round(bytes / seconds) : 0)
+				.append(",\n");
+		sb.append("    \"favesPerSecond\": ")
+				.append(seconds > 0 ? round(outcomes.get(Outcome.DOWNLOADED)
+						/ seconds) : 0).append("\n  },\n");
+
+		sb.append("  \"stagesMs\": {");
+		sep = "";
+		for (Map.Entry<Stage, Samples> e : stages.entrySet()) {
+			Samples s = e.getValue();
+			s.sort();
+			sb.append(sep).append("\n    ")
+					.append(quote(e.getKey().name().toLowerCase()))
+					.append(": { \"count\": ").append(s.size)
+					.append(", \"p50\": ").append(millis(s.percentile(50)))
+					.append(", \"p95\": ").append(millis(s.percentile(95)))
+					.append(", \"p99\": ").append(millis(s.percentile(99)))
+					.append(", \"max\": ").append(millis(s.percentile(100)))
+					.append(" }");
+			sep = ",";
+		}
+		sb.append("\n  },\n");
+
+		// slowest hosts by mean time to transfer a fave
+		List<HostStats> slow = new ArrayList<HostStats>();
+		for (HostStats h : hosts.values())
+			if (h.faves > 0)
+				slow.add(h);
+		Collections.sort(slow, new Comparator<HostStats>() {
+			public int compare(HostStats a, HostStats b) {
+				return Double.compare(b.meanNanos(), a.meanNanos());
+			}
+		});
+		sb.append("  \"slowHosts\": [");
+		sep = "";
+		for (HostStats h : slow.subList(0, Math.min(SLOW_HOSTS, slow.size()))) {
+			sb.append(sep).append("\n    { \"host\": ").append(quote(h.name))
+					.append(", \"faves\": ").append(h.faves)
+					.append(", \"bytes\": ").append(h.bytes)
+					.append(", \"meanMs\": ").append(millis(h.meanNanos()))
+					.append(" }");
+			sep = ",";
+		}
+		sb.append(slow.isEmpty() ? "],\n" : "\n  ],\n");
+
+		if (scheduler != null) {
+			sb.append("  \"schedule\": {\n");
+			sb.append("    \"order\": ").append(quote(scheduler.getName()))
+					.append(",\n");
+			sb.append("    \"retriesLast\": ")
+					.append(scheduler.isRetryingLater()).append(",\n");
+			sb.append("    \"deferredRetries\": ")
+					.append(scheduler.getDeferredRetries()).append(",\n");
+			String stoppedBy = scheduler.getStoppedBy();
+			sb.append("    \"stoppedBy\": ")
+					.append(stoppedBy == null ? "null" : quote(stoppedBy))
+					.append(",\n");
+			sb.append("    \"remaining\": ").append(scheduler.getSaved())
+					.append(",\n");
+			sb.append("    \"first\": [");
+			sep = "";
+			for (String id : scheduler.getHead()) {
+				sb.append(sep).append(quote(id));
+				sep = ", ";
+			}
+			sb.append("]\n  },\n");
+		}
+
+		sb.append("  \"failures\": [");
+		sep = "";
+		for (String[] f : failures) {
+			sb.append(sep).append("\n    { \"id\": ").append(quote(f[0]))
+					.append(", \"host\": ").append(quote(f[1]))
+					.append(", \"cause\": ").append(quote(f[2])).append(" }");
+			sep = ",";
+		}
+		sb.append(failures.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+		return sb.toString();
+	}
+
+	private static String iso(long time) {
+		return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date(
+				time));
+	}
+
+	private static double millis(double nanos) {
+		return round(nanos / 1e6);
+	}
+
+	private static double round(double value) {
+		return Math.round(value * 1000) / 1000.0;
+	}
+
+	/**
+	 * @return The string as a JSON string literal, quotes included.
+	 */
+	public static String quote(String s) {
+		StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * A growing array of durations in nanoseconds.
+	 */
+	private static class Samples {
+
+		long[] values = new long[64];
+
+		int size = 0;
+
+		void add(long nanos) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = nanos;
+		}
+
+		long sum() {
+			long sum = 0;
+			for (int i = 0; i < size; i++)
+				sum += values[i];
+			return sum;
+		}
+
+		void sort() {
+			Arrays.sort(values, 0, size);
+		}
+
+		/**
+		 * @return The nearest-rank percentile of the sorted samples, or 0 if
+		 *         there are none.
+		 */
+		long percentile(int p) {
+			if (size == 0)
+				return 0;
+			int rank = (int) Math.ceil(p / 100.0 * size);
+			return values[Math.max(0, rank - 1)];
+		}
+	}
+
+	private static class HostStats {
+
+		final String name;
+
+		int faves = 0;
+
+		long bytes = 0;
+
+		/** Time spent transferring faves from this host. */
+		long nanos = 0;
+
+		HostStats(String name) {
+			this.name = name;
+		}
+
+		double meanNanos() {
+			return faves == 0 ? 0 : (double) nanos / faves;
+		}
+	}
+}
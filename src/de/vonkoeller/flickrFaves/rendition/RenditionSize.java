@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.rendition;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         A screen size renditions are made for, e.g. 1920x1080.
+ */
+public class RenditionSize {
+
+	private final int width;
+
+	private final int height;
+
+	public RenditionSize(int width, int height) {
+		if (width < 1 || height < 1)
+			throw new IllegalArgumentException("Invalid rendition size "
+					+ width + "x" + height);
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Parses a comma-separated list of sizes such as "1920x1080,2560x1440".
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a size is malformed.
+	 */
+	public static List<RenditionSize> parseList(String sizes) {
+		List<RenditionSize> result = new ArrayList<RenditionSize>();
+		for (String size : sizes.split(",")) {
+			size = size.trim();
+			if (size.length() == 0)
+				continue;
+			String[] parts = size.toLowerCase().split("x");
+			try {
+				if (parts.length != 2)
+					throw new NumberFormatException();
+				result.add(new RenditionSize(Integer.parseInt(parts[0]),
+						Integer.parseInt(parts[1])));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid rendition size "
+						+ size);
+			}
+		}
+		return result;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public String toString() {
+		return width + "x" + height;
+	}
+}
@@ -0,0 +1,594 @@
+/*
+ * Copyright (C) 2006-2013 Magnus von Koeller
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+package de.vonkoeller.flickrFaves.rendition;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import de.vonkoeller.flickrFaves.config.Options;
+import de.vonkoeller.flickrFaves.debug.Tracer;
+import de.vonkoeller.flickrFaves.debug.Tracer.Level;
+import de.vonkoeller.flickrFaves.download.ChecksumIndex;
+import de.vonkoeller.flickrFaves.download.DownloadListener;
+import de.vonkoeller.flickrFaves.download.DownloadTask;
+import de.vonkoeller.flickrFaves.download.ForwardingDownloadListener;
+import de.vonkoeller.flickrFaves.download.Images;
+import de.vonkoeller.flickrFaves.download.StreamingChecksum;
+
+/**
+ * @author Magnus von Koeller
+ *
+ *         Generates screen-sized renditions of downloaded photos, e.g. for
+ *         wallpaper sets, as "&lt;width&gt;x&lt;height&gt;/&lt;id&gt;.jpg" in
+ *         a rendition directory. Every photo is decoded once and all of its
+ *         sizes are rendered in parallel on a fork/join pool of its own, so
+ *         that resizing neither competes with nor waits for the download
+ *         workers. Renditions are cached by the checksum of their source: a
+ *         rendition is only made again if the photo or the mode changed.
+ */
+public class Renditions {
+
+	/** The name of the cache index within the rendition directory. */
+	public static final String INDEX = ".flickrFaves-renditions";
+
+	/**
+	 * How a photo is fitted to a screen size.
+	 */
+	public enum Mode {
+		/** Fill the screen, cutting off what sticks out at the edges. */
+		CROP,
+		/** Show the whole photo within the screen size. */
+		FIT
+	}
+
+	/** The directory renditions are written to. */
+	private final File dir;
+
+	/** The screen sizes to render. */
+	private final List<RenditionSize> sizes;
+
+	private final Mode mode;
+
+	/** The JPEG quality of renditions between 0 and 1. */
+	private final float quality;
+
+	/** The checksums of the downloaded photos. */
+	private final ChecksumIndex checksums;
+
+	/** Runs the CPU-bound rendering. */
+	private final ForkJoinPool pool;
+
+	/** Rendition path to "&lt;source checksum&gt; &lt;mode&gt;". */
+	private final Map<String, String> index = new ConcurrentHashMap<String, String>();
+
+	/** The photos already handed to the pool. */
+	private final Set<String> submitted = ConcurrentHashMap.newKeySet();
+
+	/** The pending work, one task per photo. */
+	private final List<ForkJoinTask<?>> pending = new ArrayList<ForkJoinTask<?>>();
+
+	private final AtomicInteger rendered = new AtomicInteger();
+
+	private final AtomicInteger upToDate = new AtomicInteger();
+
+	private final AtomicInteger failed = new AtomicInteger();
+
+	/**
+	 * @param dir
+	 *            The directory to write renditions to; created if necessary.
+	 * @param sizes
+	 *            The screen sizes to render.
+	 * @param mode
+	 *            How photos are fitted to the sizes.
+	 * @param quality
+	 *            The JPEG quality between 0 and 1.
+	 * @param threads
+	 *            The parallelism of the rendering pool.
+	 * @param checksums
+	 *            The checksums of the downloaded photos.
+	 */
+	public Renditions(File dir, List<RenditionSize> sizes, Mode mode,
+			float quality, int threads, ChecksumIndex checksums) {
+		this.dir = dir;
+		this.sizes = sizes;
+		this.mode = mode;
+		this.quality = quality;
+		this.checksums = checksums;
+		this.pool = new ForkJoinPool(Math.max(1, threads));
+		dir.mkdirs();
+		loadIndex();
+	}
+
+	/**
+	 * Creates the rendition stage configured via the "renditions" option, a
+	 * list of sizes such as "1920x1080,2560x1440", with "renditionMode"
+	 * ("crop" or "fit"), "renditionDir", "renditionQuality" and
+	 * "renditionThreads".
+	 *
+	 * @param downloadDir
+	 *            The download directory; renditions go to its "renditions"
+	 *            subdirectory unless "renditionDir" is set.
+	 * @param checksums
+	 *            The checksums of the downloaded photos.
+	 * @return The stage or null if no renditions are configured.
+	 */
+	public static Renditions fromOptions(File downloadDir,
+			ChecksumIndex checksums) {
+		String spec = Options.getString("renditions", null);
+		if (spec == null)
+			return null;
+		List<RenditionSize> sizes = RenditionSize.parseList(spec);
+		if (sizes.isEmpty())
+			return null;
+		String dirName = Options.getString("renditionDir", null);
+		Mode mode = "fit".equalsIgnoreCase(Options.getString("renditionMode",
+				"crop")) ? Mode.FIT : Mode.CROP;
+		return new Renditions(dirName == null ? new File(downloadDir,
+				"renditions") : new File(dirName), sizes, mode,
+				(float) Options.getDouble("renditionQuality", 0.9),
+				Options.getInt("renditionThreads", Runtime.getRuntime()
+						.availableProcessors()), checksums);
+	}
+
+	/**
+	 * Wraps a download listener to render every photo as soon as it has been
+	 * downloaded.
+	 *
+	 * @param delegate
+	 *            The listener to forward all calls to.
+	 * @return The wrapping listener.
+	 */
+	public DownloadListener recording(final DownloadListener delegate) {
+		return new ForwardingDownloadListener(delegate) {
+			@Override
+			public void taskFinished(DownloadTask task, Outcome outcome) {
+				if (outcome == Outcome.DOWNLOADED)
+					submit(task.getTarget());
+				super.taskFinished(task, outcome);
+			}
+		};
+	}
+
+	/**
+	 * Renders a photo in the background unless it has been submitted before
+	 * or is not a photo.
+	 *
+	 * @param source
+	 *            The downloaded photo.
+	 */
+	public void submit(File source) {
+		if (!source.getName().endsWith(".jpg") || !source.exists()
+				|| !submitted.add(source.getName()))
+			return;
+		ForkJoinTask<?> task = pool.submit(new RenderPhoto(source));
+		synchronized (pending) {
+			pending.add(task);
+		}
+	}
+
+	/**
+	 * Deletes all renditions of a photo, e.g. because it is no longer a fave.
+	 *
+	 * @param filename
+	 *            The photo's file name.
+	 */
+	public void remove(String filename) {
+		for (RenditionSize size : sizes) {
+			String path = path(size, filename);
+			new File(dir, path).delete();
+			index.remove(path);
+		}
+	}
+
+	/**
+	 * Waits until all submitted photos are rendered, saves the cache index
+	 * and shuts the pool down.
+	 *
+	 * @return The number of renditions made.
+	 */
+	public int await() {
+		List<ForkJoinTask<?>> tasks;
+		synchronized (pending) {
+			tasks = new ArrayList<ForkJoinTask<?>>(pending);
+			pending.clear();
+		}
+		for (ForkJoinTask<?> task : tasks)
+			task.quietlyJoin();
+		pool.shutdown();
+		try {
+			pool.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		saveIndex();
+		Tracer.trace("Made " + rendered.get() + " renditions; "
+				+ upToDate.get() + " photos were up to date, " + failed.get()
+				+ " could not be rendered...");
+		return rendered.get();
+	}
+
+	/**
+	 * @return The path of a rendition relative to the rendition directory.
+	 */
+	private static String path(RenditionSize size, String filename) {
+		return size + "/" + filename;
+	}
+
+	/**
+	 * Decodes a photo once and renders all of its sizes that are out of date
+	 * as parallel subtasks.
+	 */
+	private class RenderPhoto extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final File source;
+
+		RenderPhoto(File source) {
+			this.source = source;
+		}
+
+		@Override
+		protected void compute() {
+			String name = source.getName();
+			Tracer.setContext(name);
+			try {
+				String key = checksum(source) + " " + mode;
+				List<RenderSize> work = new ArrayList<RenderSize>();
+				for (RenditionSize size : sizes) {
+					String path = path(size, name);
+					if (!key.equals(index.get(path))
+							|| !new File(dir, path).exists())
+						work.add(new RenderSize(size, path, key));
+				}
+				if (work.isEmpty()) {
+					upToDate.incrementAndGet();
+					return;
+				}
+				BufferedImage image = Images.getBufferedImage(source);
+				if (image == null)
+					throw new IOException("Not a readable image");
+				for (RenderSize size : work)
+					size.image = image;
+				invokeAll(work);
+			} catch (Exception e) {
+				failed.incrementAndGet();
+				Tracer.trace(Level.WARN, "Could not render " + name + ": " + e);
+			} finally {
+				Tracer.setContext(null);
+			}
+		}
+	}
+
+	/**
+	 * Renders and writes one size of a decoded photo.
+	 */
+	private class RenderSize extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final RenditionSize size;
+
+		private final String path;
+
+		private final String key;
+
+		/** The decoded photo; shared by all sizes and only read. */
+		BufferedImage image;
+
+		RenderSize(RenditionSize size, String path, String key) {
+			this.size = size;
+			this.path = path;
+			this.key = key;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				write(render(image, size.getWidth(), size.getHeight(), mode),
+						new File(dir, path));
+				index.put(path, key);
+				rendered.incrementAndGet();
+			} catch (IOException e) {
+				failed.incrementAndGet();
+				Tracer.trace(Level.WARN, "Could not write rendition " + path
+						+ ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Scales a photo to a screen size. Photos are never enlarged; a photo
+	 * smaller than the screen is only cropped to its aspect ratio.
+	 *
+	 * @param source
+	 *            The decoded photo.
+	 * @param width
+	 *            The screen width.
+	 * @param height
+	 *            The screen height.
+	 * @param mode
+	 *            Whether to fill the screen or to fit into it.
+	 * @return The rendition.
+	 */
+	static BufferedImage render(BufferedImage source, int width, int height,
+			Mode mode) {
+		int sw = source.getWidth();
+		int sh = source.getHeight();
+		double sx = (double) width / sw;
+		double sy = (double) height / sh;
+		int cx = 0;
+		int cy = 0;
+		int cw = sw;
+		int ch = sh;
+		double scale;
+		if (mode == Mode.CROP) {
+			// cut the source to the screen's aspect ratio around its centre
+			double cover = Math.max(sx, sy);
+			cw = Math.min(sw, (int) Math.round(width / cover));
+			ch = Math.min(sh, (int) Math.round(height / cover));
+			cx = (sw - cw) / 2;
+			cy = (sh - ch) / 2;
+			scale = Math.min(1, cover);
+		} else {
+			scale = Math.min(1, Math.min(sx, sy));
+		}
+		int tw = Math.max(1, (int) Math.round(cw * scale));
+		int th = Math.max(1, (int) Math.round(ch * scale));
+
+		// halve first; a single bilinear step over a large factor aliases
+		BufferedImage current;
+		if (cw / 2 >= tw && ch / 2 >= th) {
+			current = halve(source, cx, cy, cw, ch);
+			while (current.getWidth() / 2 >= tw
+					&& current.getHeight() / 2 >= th)
+				current = halve(current, 0, 0, current.getWidth(),
+						current.getHeight());
+		} else {
+			current = source.getSubimage(cx, cy, cw, ch);
+		}
+		return scale(current, tw, th);
+	}
+
+	/**
+	 * Halves a region of an image into a packed RGB image by averaging every
+	 * 2x2 block of pixels. Decoded JPEGs and packed RGB images are read
+	 * straight from their pixel arrays, which is several times faster than
+	 * scaling with Java2D; other images are converted first.
+	 */
+	private static BufferedImage halve(BufferedImage image, int x0, int y0,
+			int width, int height) {
+		int w = width / 2;
+		int h = height / 2;
+		BufferedImage half = new BufferedImage(w, h,
+				BufferedImage.TYPE_INT_RGB);
+		int[] dst = ((DataBufferInt) half.getRaster().getDataBuffer())
+				.getData();
+		int type = image.getType();
+		if (type == BufferedImage.TYPE_INT_RGB) {
+			int[] src = ((DataBufferInt) image.getRaster().getDataBuffer())
+					.getData();
+			int stride = image.getWidth();
+			for (int y = 0; y < h; y++) {
+				int top = (y0 + 2 * y) * stride + x0;
+				int bottom = top + stride;
+				int out = y * w;
+				for (int x = 0; x < w; x++) {
+					int a = src[top + 2 * x];
+					int b = src[top + 2 * x + 1];
+					int c = src[bottom + 2 * x];
+					int d = src[bottom + 2 * x + 1];
+					// red and blue are added together, green separately
+					int rb = (a & 0xFF00FF) + (b & 0xFF00FF) + (c & 0xFF00FF)
+							+ (d & 0xFF00FF) + 0x020002;
+					int g = (a & 0xFF00) + (b & 0xFF00) + (c & 0xFF00)
+							+ (d & 0xFF00) + 0x0200;
+					dst[out + x] = ((rb >>> 2) & 0xFF00FF)
+							| ((g >>> 2) & 0xFF00);
+				}
+			}
+		} else if (type == BufferedImage.TYPE_3BYTE_BGR
+				|| type == BufferedImage.TYPE_BYTE_GRAY) {
+			Raster raster = image.getRaster();
+			ComponentSampleModel model = (ComponentSampleModel) raster
+					.getSampleModel();
+			byte[] src = ((DataBufferByte) raster.getDataBuffer()).getData();
+			int stride = model.getScanlineStride();
+			int ps = model.getPixelStride();
+			int[] bands = model.getBandOffsets();
+			int r = bands[0];
+			int g = bands.length == 3 ? bands[1] : r;
+			int b = bands.length == 3 ? bands[2] : r;
+			int offset = raster.getDataBuffer().getOffset();
+			for (int y = 0; y < h; y++) {
+				int top = offset + (y0 + 2 * y) * stride + x0 * ps;
+				int bottom = top + stride;
+				int out = y * w;
+				for (int x = 0; x < w; x++) {
+					int p = top + 2 * x * ps;
+					int q = bottom + 2 * x * ps;
+					dst[out + x] = average(src, p, q, ps, r) << 16
+							| average(src, p, q, ps, g) << 8
+							| average(src, p, q, ps, b);
+				}
+			}
+		} else {
+			BufferedImage converted = new BufferedImage(width, height,
+					BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = converted.createGraphics();
+			try {
+				g.drawImage(image.getSubimage(x0, y0, width, height), 0, 0,
+						null);
+			} finally {
+				g.dispose();
+			}
+			return halve(converted, 0, 0, width, height);
+		}
+		return half;
+	}
+
+	/**
+	 * @return The average of one band of a 2x2 block of interleaved bytes.
+	 */
+	private static int average(byte[] src, int p, int q, int ps, int band) {
+		return ((src[p + band] & 0xFF) + (src[p + ps + band] & 0xFF)
+				+ (src[q + band] & 0xFF) + (src[q + ps + band] & 0xFF) + 2) >>> 2;
+	}
+
+	private static BufferedImage scale(BufferedImage image, int width,
+			int height) {
+		BufferedImage scaled = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = scaled.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+					RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.setRenderingHint(RenderingHints.KEY_RENDERING,
+					RenderingHints.VALUE_RENDER_QUALITY);
+			g.drawImage(image, 0, 0, width, height, null);
+		} finally {
+			g.dispose();
+		}
+		return scaled;
+	}
+
+	/**
+	 * Writes a rendition as JPEG via a temporary file, so that an interrupted
+	 * run never leaves a partial rendition behind.
+	 */
+	private void write(BufferedImage image, File target) throws IOException {
+		target.getParentFile().mkdirs();
+		File tmp = new File(target.getParentFile(), "." + target.getName()
+				+ ".part");
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg")
+				.next();
+		try {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(quality);
+			ImageOutputStream out = ImageIO.createImageOutputStream(tmp);
+			try {
+				writer.setOutput(out);
+				writer.write(null, new IIOImage(image, null, null), param);
+			} finally {
+				out.close();
+			}
+		} finally {
+			writer.dispose();
+		}
+		Files.move(tmp.toPath(), target.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * @return The checksum of a photo, from the checksum index if it is
+	 *         recorded there and computed otherwise.
+	 */
+	private String checksum(File source) throws IOException {
+		String recorded = checksums == null ? null : checksums
+				.getChecksum(source.getName());
+		if (recorded != null && checksums.isComplete(source))
+			return recorded;
+		StreamingChecksum checksum = StreamingChecksum.create();
+		InputStream in = new FileInputStream(source);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buffer)) != -1)
+				checksum.update(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+		return checksum.getValue();
+	}
+
+	private void loadIndex() {
+		File file = new File(dir, INDEX);
+		if (!file.exists())
+			return;
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), StandardCharsets.UTF_8));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					String[] parts = line.split(" ", 3);
+					if (parts.length == 3)
+						index.put(parts[2], parts[0] + " " + parts[1]);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Tracer.trace("Could not read rendition index " + file + ": " + e);
+		}
+	}
+
+	private void saveIndex() {
+		File file = new File(dir, INDEX);
+		File tmp = new File(dir, INDEX + ".tmp");
+		try {
+			Writer out = new OutputStreamWriter(new FileOutputStream(tmp),
+					StandardCharsets.UTF_8);
+			try {
+				for (Map.Entry<String, String> e : index.entrySet())
+					out.write(e.getValue() + " " + e.getKey() + "\n");
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			Tracer.trace("Could not save rendition index " + file + ": " + e);
+		}
+	}
+}
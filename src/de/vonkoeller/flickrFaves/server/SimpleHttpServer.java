@@ -5,25 +5,30 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import de.vonkoeller.flickrFaves.api.AuthHolder;
+import de.vonkoeller.flickrFaves.concurrent.Threads;
 import de.vonkoeller.flickrFaves.debug.Tracer;
 import de.vonkoeller.flickrFaves.exceptions.FlickrFaveException;
+import de.vonkoeller.flickrFaves.metrics.Metrics;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.BindException;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
 
 import static de.vonkoeller.flickrFaves.gui.Constants.OAUTH_CALLBACK_PORT;
 
 
 public class SimpleHttpServer {
     private static HttpServer server;
+    private static ExecutorService executor;
+    private static HttpServer metricsServer;
 
     public static void start() throws IOException {
         int port = OAUTH_CALLBACK_PORT;
@@ -36,14 +41,52 @@ public class SimpleHttpServer {
         }
 
         server.createContext("/", new MyHandler());
-        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/metrics", new MetricsHandler());
+        executor = Threads.newExecutor();
+        server.setExecutor(executor);
         server.start();
     }
 
     public static void stop() {
         if (server != null) {
             server.stop(0);
+            server = null;
         }
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Serves /metrics on a port of its own, so that it stays available while
+     * the OAuth callback server is stopped.
+     */
+    public static void startMetrics(int port) throws IOException {
+        metricsServer = HttpServer.create(new InetSocketAddress(port), 0);
+        metricsServer.createContext("/metrics", new MetricsHandler());
+        metricsServer.setExecutor(null);
+        metricsServer.start();
+        Tracer.trace("Serving metrics on port " + port + "...");
+    }
+
+    public static void stopMetrics() {
+        if (metricsServer != null) {
+            metricsServer.stop(0);
+            metricsServer = null;
+        }
+    }
+}
+
+class MetricsHandler implements HttpHandler {
+    public void handle(HttpExchange exchange) throws IOException {
+        byte[] body = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type",
+                "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream responseBody = exchange.getResponseBody();
+        responseBody.write(body);
+        responseBody.close();
     }
 }
 